@@ -0,0 +1,287 @@
+package net.snortum.hospitality;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A compact binary form of the data file. It loads without any text or date
+ * parsing, so it is much faster to open than the tab separated file, but it
+ * can't be edited in a spreadsheet. Use {@link RosterConverter} to go back and
+ * forth.
+ *
+ * <p>
+ * All numbers are big endian. The layout is:
+ * </p>
+ *
+ * <pre>
+ * magic "HOSPBIN\0", int version
+ * int count
+ * int[count]  member numbers
+ * int[count]  schedule with member number, -1 for none
+ * int[count]  last scheduled as days since 1/1/1970, Integer.MIN_VALUE for never
+ * byte[(count + 7) / 8]  team leader bits, low bit first
+ * int[count]  first name index into the string table
+ * int[count]  last name index into the string table
+ * int strings, then for each: int length, UTF-8 bytes
+ * </pre>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class BinaryRosterFormat {
+
+	// Constants
+	public final static byte[] MAGIC = { 'H', 'O', 'S', 'P', 'B', 'I', 'N', 0 };
+	public final static int VERSION = 1;
+	private final static int NO_MEMBER = -1;
+	private final static Charset UTF_8 = Charset.forName( "UTF-8" );
+
+	// All members are static
+	private BinaryRosterFormat() {
+	}
+
+	/**
+	 * Does the buffer start with the binary magic header?
+	 *
+	 * @param buf
+	 *            - the start of a data file, read with absolute gets
+	 * @return true if the data is in binary format
+	 */
+	public static boolean hasMagic( ByteBuffer buf ) {
+		if ( buf.limit() < MAGIC.length ) {
+			return false;
+		}
+
+		for ( int i = 0; i < MAGIC.length; i++ ) {
+			if ( buf.get( i ) != MAGIC[i] ) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Does the file start with the binary magic header? The channel position
+	 * is left at 0.
+	 *
+	 * @param channel
+	 *            - open channel to the data file
+	 * @return true if the file is in binary format
+	 * @throws IOException
+	 */
+	public static boolean hasMagic( FileChannel channel ) throws IOException {
+		ByteBuffer head = ByteBuffer.allocate( MAGIC.length );
+		channel.read( head, 0 );
+		head.flip();
+		return hasMagic( head );
+	}
+
+	/**
+	 * Read a whole binary file into members, with "schedule with" linked.
+	 *
+	 * @param channel
+	 *            - open channel to the data file
+	 * @return treeMap of memberId => member object
+	 * @throws IOException
+	 *             if the file can't be read or isn't a version this class
+	 *             understands
+	 */
+	public static TreeMap<Integer, HospitalityMember> read( FileChannel channel )
+			throws IOException {
+		return decode( Utility.readFile( channel ) );
+	}
+
+	/**
+	 * Decode members from a buffer holding a whole binary file.
+	 *
+	 * @param buf
+	 *            - the file contents, positioned at the start
+	 * @return treeMap of memberId => member object
+	 * @throws IOException
+	 *             if the data is not a binary roster
+	 */
+	public static TreeMap<Integer, HospitalityMember> decode( ByteBuffer buf )
+			throws IOException {
+		try {
+			int count = getHeader( buf );
+			int[] numbers = getInts( buf, count );
+			int[] schedWith = getInts( buf, count );
+			int[] epochDays = getInts( buf, count );
+			byte[] leaderBits = new byte[( count + 7 ) / 8];
+			buf.get( leaderBits );
+			int[] firstNames = getInts( buf, count );
+			int[] lastNames = getInts( buf, count );
+
+			List<byte[]> stringBytes = getStrings( buf );
+			String[] strings = new String[stringBytes.size()];
+			for ( int i = 0; i < strings.length; i++ ) {
+				strings[i] = new String( stringBytes.get( i ), UTF_8 );
+			}
+
+			TreeMap<Integer, HospitalityMember> tree =
+					new TreeMap<Integer, HospitalityMember>();
+
+			for ( int i = 0; i < count; i++ ) {
+				boolean leader = ( leaderBits[i >> 3] & ( 1 << ( i & 7 ) ) ) != 0;
+				// never scheduled is Integer.MIN_VALUE here and in a member
+				tree.put( numbers[i], new HospitalityMember( numbers[i],
+						strings[firstNames[i]], strings[lastNames[i]], null,
+						leader, epochDays[i] ) );
+			}
+
+			for ( int i = 0; i < count; i++ ) {
+				if ( schedWith[i] != NO_MEMBER ) {
+					tree.get( numbers[i] ).setScheduleWith(
+							tree.get( schedWith[i] ) ); // OK if it's null
+				}
+			}
+
+			return tree;
+		}
+		catch ( RuntimeException e ) {
+			// BufferUnderflowException or a bad string index
+			throw new IOException( "Corrupt binary roster", e );
+		}
+	}
+
+	/**
+	 * Encode members into a complete binary file.
+	 *
+	 * @param members
+	 *            - the members, in the order to write them
+	 * @return buffer holding the file, ready to write
+	 */
+	public static ByteBuffer encode( Collection<HospitalityMember> members ) {
+		int count = members.size();
+		int[] numbers = new int[count];
+		int[] schedWith = new int[count];
+		int[] epochDays = new int[count];
+		byte[] leaderBits = new byte[( count + 7 ) / 8];
+		int[] firstNames = new int[count];
+		int[] lastNames = new int[count];
+
+		// string table, each distinct name stored once
+		Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+		List<byte[]> strings = new ArrayList<byte[]>();
+
+		int i = 0;
+		for ( HospitalityMember hm : members ) {
+			numbers[i] = hm.getMemberNumber();
+			schedWith[i] =
+					hm.getScheduleWith() == null ? NO_MEMBER : hm
+							.getScheduleWith().getMemberNumber();
+			epochDays[i] = hm.getLastScheduledDay();
+			if ( hm.isTeamLeader() ) {
+				leaderBits[i >> 3] |= 1 << ( i & 7 );
+			}
+
+			firstNames[i] = intern( hm.getFirstName(), stringIndex, strings );
+			lastNames[i] = intern( hm.getLastName(), stringIndex, strings );
+			i++;
+		}
+
+		int stringBytes = 0;
+		for ( byte[] bytes : strings ) {
+			stringBytes += 4 + bytes.length;
+		}
+
+		int size =
+				MAGIC.length + 4 + 4 + count * 4 * 5 + leaderBits.length + 4
+						+ stringBytes;
+		ByteBuffer buf = ByteBuffer.allocate( size );
+		buf.put( MAGIC );
+		buf.putInt( VERSION );
+		buf.putInt( count );
+		putInts( buf, numbers );
+		putInts( buf, schedWith );
+		putInts( buf, epochDays );
+		buf.put( leaderBits );
+		putInts( buf, firstNames );
+		putInts( buf, lastNames );
+		buf.putInt( strings.size() );
+
+		for ( byte[] bytes : strings ) {
+			buf.putInt( bytes.length );
+			buf.put( bytes );
+		}
+
+		buf.flip();
+		return buf;
+	}
+
+	// Private methods
+
+	/**
+	 * @return index of the name in the string table, adding it if needed
+	 */
+	private static int intern( String name, Map<String, Integer> stringIndex,
+			List<byte[]> strings ) {
+		Integer index = stringIndex.get( name );
+
+		if ( index == null ) {
+			index = strings.size();
+			strings.add( name.getBytes( UTF_8 ) );
+			stringIndex.put( name, index );
+		}
+
+		return index;
+	}
+
+	/**
+	 * Check the magic header and version.
+	 *
+	 * @return the member count
+	 */
+	private static int getHeader( ByteBuffer buf ) throws IOException {
+		if ( !hasMagic( buf ) ) {
+			throw new IOException( "Not a binary roster" );
+		}
+
+		buf.position( MAGIC.length );
+		int version = buf.getInt();
+		if ( version != VERSION ) {
+			throw new IOException( "Unknown binary roster version " + version );
+		}
+
+		return buf.getInt();
+	}
+
+	/**
+	 * @return the string table, as UTF-8 bytes
+	 */
+	private static List<byte[]> getStrings( ByteBuffer buf ) {
+		int count = buf.getInt();
+		List<byte[]> strings = new ArrayList<byte[]>( count );
+
+		for ( int i = 0; i < count; i++ ) {
+			byte[] bytes = new byte[buf.getInt()];
+			buf.get( bytes );
+			strings.add( bytes );
+		}
+
+		return strings;
+	}
+
+	private static int[] getInts( ByteBuffer buf, int count ) {
+		int[] values = new int[count];
+		buf.asIntBuffer().get( values );
+		buf.position( buf.position() + count * 4 );
+		return values;
+	}
+
+	private static void putInts( ByteBuffer buf, int[] values ) {
+		buf.asIntBuffer().put( values );
+		buf.position( buf.position() + values.length * 4 );
+	}
+
+}
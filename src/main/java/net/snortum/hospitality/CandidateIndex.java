@@ -0,0 +1,598 @@
+package net.snortum.hospitality;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Members not yet looked at, ordered by (last scheduled date, member number),
+ * helper class for {@link Schedule}. Getting the next oldest member, the next
+ * oldest team leader or the next oldest member to schedule alone, and changing
+ * a member, are all O(log N), so selecting again never re-sorts or rescans the
+ * members.
+ *
+ * <p>
+ * Team leaders, other members scheduled alone and other members with a
+ * "schedule with" member are kept in separate sets with the same order.
+ * Members are read from the repository a window at a time, oldest first. The
+ * window doubles when the index runs past the members read so far. Each member
+ * number has one member object, so a member read again is the one selected.
+ * The objects are the index's own copies, so the members the repository hands
+ * out are never changed here. As a {@link MemberListener}, the index follows
+ * changes written to the repository.
+ * </p>
+ *
+ * <p>
+ * A member's partners may not have been read: a member with no "schedule
+ * with" of its own is grouped by the members that name it. The first time a
+ * group is asked for, the members who schedule with each of its members are
+ * read from the repository and kept, until none are left to read.
+ * </p>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class CandidateIndex implements MemberListener {
+
+	// Fields
+	private final MemberRepository repository;
+	private final Map<Integer, HospitalityMember> members =
+			new HashMap<Integer, HospitalityMember>();
+	private final Map<Integer, Integer> keys = new HashMap<Integer, Integer>();
+	private final Comparator<HospitalityMember> byKey;
+	private final TreeSet<HospitalityMember> leaders;
+	private final TreeSet<HospitalityMember> solo;
+	private final TreeSet<HospitalityMember> grouped;
+	private MemberGroups groups = new MemberGroups();
+	private final Set<Integer> linked = new HashSet<Integer>();
+	private int window;
+	private boolean exhausted;
+	private int horizonDay;
+	private Integer horizonNumber;
+	private int leaderWindow;
+	private boolean leadersRead;
+	private boolean leadersExhausted;
+	private int leaderHorizonDay;
+	private Integer leaderHorizonNumber;
+
+	/**
+	 * Create the index and read the first window of members.
+	 *
+	 * @param repository
+	 *            - where the members are
+	 * @param window
+	 *            - how many members to read at first
+	 */
+	CandidateIndex( MemberRepository repository, int window ) {
+		this.repository = repository;
+		this.window = window;
+		this.leaderWindow = window;
+		this.byKey = new Comparator<HospitalityMember>() {
+			@Override
+			public int compare( HospitalityMember arg0, HospitalityMember arg1 ) {
+				return compareKeys( keys.get( arg0.getMemberNumber() ),
+						arg0.getMemberNumber(),
+						keys.get( arg1.getMemberNumber() ),
+						arg1.getMemberNumber() );
+			}
+		};
+		this.leaders = new TreeSet<HospitalityMember>( byKey );
+		this.solo = new TreeSet<HospitalityMember>( byKey );
+		this.grouped = new TreeSet<HospitalityMember>( byKey );
+		load();
+	}
+
+	/**
+	 * @param number
+	 *            - the member number
+	 * @return the member object for this number, or null if it hasn't been
+	 *         read
+	 */
+	HospitalityMember get( Integer number ) {
+		return members.get( number );
+	}
+
+	/**
+	 * Use one object per member number. A member not seen before is copied
+	 * and added to the index, as is its "schedule with" member.
+	 *
+	 * @param read
+	 *            - the member as read
+	 * @return the member object to use
+	 */
+	HospitalityMember keep( HospitalityMember read ) {
+		HospitalityMember kept = members.get( read.getMemberNumber() );
+
+		if ( kept != null ) {
+			return kept;
+		}
+
+		HospitalityMember hm =
+				new HospitalityMember( read.getMemberNumber(),
+						read.getFirstName(), read.getLastName(),
+						read.getScheduleWith(), read.isTeamLeader(),
+						read.getLastScheduledDay() );
+		hm.setVersion( read.getVersion() );
+		members.put( hm.getMemberNumber(), hm );
+		keys.put( hm.getMemberNumber(), hm.getLastScheduledDay() );
+
+		if ( hm.getScheduleWith() != null ) {
+			hm.setScheduleWith( keep( hm.getScheduleWith() ) );
+		}
+
+		setFor( hm ).add( hm );
+		groups.add( hm );
+		return hm;
+	}
+
+	/**
+	 * @param hm
+	 *            - a member object from {@link #keep(HospitalityMember)}
+	 * @return the members who must be scheduled with this one, itself
+	 *         included, those who name any of them as "schedule with" too
+	 */
+	MemberGroups.Group groupOf( HospitalityMember hm ) {
+		while ( true ) {
+			MemberGroups.Group group = groups.groupOf( hm );
+			boolean grew = false;
+
+			for ( HospitalityMember member : new ArrayList<HospitalityMember>(
+					group.getMembers() ) ) {
+				if ( !linked.add( member.getMemberNumber() ) ) {
+					continue;
+				}
+
+				for ( HospitalityMember read : repository
+						.findScheduledWith( member.getMemberNumber() ) ) {
+					if ( !members.containsKey( read.getMemberNumber() ) ) {
+						keep( read );
+						grew = true;
+					}
+				}
+			}
+
+			if ( !grew ) {
+				return group;
+			}
+		}
+	}
+
+	/**
+	 * @return problems with "schedule with" found since the last call
+	 */
+	List<String> takeGroupProblems() {
+		return groups.takeProblems();
+	}
+
+	/**
+	 * @param hm
+	 *            - a member object from {@link #keep(HospitalityMember)}
+	 * @return true if the member hasn't been looked at
+	 */
+	boolean contains( HospitalityMember hm ) {
+		return setFor( hm ).contains( hm );
+	}
+
+	/**
+	 * @return the oldest member not looked at, or null if there are none
+	 */
+	HospitalityMember peek() {
+		return next( null );
+	}
+
+	/**
+	 * Look at the oldest member: remove it from the index.
+	 *
+	 * @return the oldest member not looked at, or null if there are none
+	 */
+	HospitalityMember poll() {
+		return take( peek() );
+	}
+
+	/**
+	 * @param hm
+	 *            - a member in the index
+	 * @return the next oldest member not looked at, or null if there are none
+	 */
+	HospitalityMember higher( HospitalityMember hm ) {
+		return next( hm );
+	}
+
+	/**
+	 * Look at the oldest team leader.
+	 *
+	 * @return the oldest team leader not looked at, or null if there are none
+	 */
+	HospitalityMember pollTeamLeader() {
+		while ( true ) {
+			HospitalityMember hm = first( leaders, null );
+
+			if ( exhausted
+					|| leadersExhausted
+					|| ( hm != null && ( isRead( hm ) || isLeaderRead( hm ) ) ) ) {
+				return take( hm );
+			}
+
+			if ( leadersRead ) {
+				leaderWindow *= 2;
+			}
+
+			loadLeaders();
+		}
+	}
+
+	/**
+	 * Look at the oldest member who isn't a team leader and has no "schedule
+	 * with" member.
+	 *
+	 * @return the member or null if there are none
+	 */
+	HospitalityMember pollSolo() {
+		while ( true ) {
+			HospitalityMember hm = first( solo, null );
+
+			if ( exhausted || ( hm != null && isRead( hm ) ) ) {
+				return take( hm );
+			}
+
+			window *= 2;
+			load();
+		}
+	}
+
+	/**
+	 * Mark a member as looked at.
+	 *
+	 * @param hm
+	 *            - a member object from {@link #keep(HospitalityMember)}
+	 * @return true if the member hadn't been looked at
+	 */
+	boolean remove( HospitalityMember hm ) {
+		return setFor( hm ).remove( hm );
+	}
+
+	/**
+	 * Put back a member that was looked at but not selected.
+	 *
+	 * @param hm
+	 *            - a member object from {@link #keep(HospitalityMember)}
+	 */
+	void restore( HospitalityMember hm ) {
+		setFor( hm ).add( hm );
+	}
+
+	/**
+	 * Members were added or changed: move them to their new set and date. A
+	 * member already read is changed in place, so the selected members stay
+	 * the same objects. A member selected here but given another last
+	 * scheduled date elsewhere is left alone, at its old version, as in
+	 * {@link #membersScheduled(Collection, Date)}. The groups are only found
+	 * again if a "schedule with" changed.
+	 */
+	@Override
+	public void membersUpdated( Collection<HospitalityMember> changed ) {
+		boolean relinked = false;
+
+		for ( HospitalityMember hm : changed ) {
+			HospitalityMember kept = members.get( hm.getMemberNumber() );
+
+			if ( kept == null ) {
+				keep( hm );
+				continue;
+			}
+
+			boolean waiting = unindex( kept );
+
+			if ( !waiting && kept != hm
+					&& kept.getLastScheduledDay() != hm.getLastScheduledDay() ) {
+				continue;
+			}
+
+			relinked |= refresh( kept, hm );
+
+			if ( waiting ) {
+				setFor( kept ).add( kept );
+			}
+		}
+
+		if ( relinked ) {
+			regroup();
+		}
+	}
+
+	/**
+	 * Read a member again after a write conflicted, and put it back in the
+	 * index as it is now. Unlike {@link #membersUpdated(Collection)}, a
+	 * selected member takes the date and version read, so selecting it again
+	 * won't conflict.
+	 *
+	 * @param number
+	 *            - the member number
+	 */
+	void reload( Integer number ) {
+		HospitalityMember hm = repository.findById( number );
+
+		if ( hm == null ) {
+			memberRemoved( number );
+			return;
+		}
+
+		HospitalityMember kept = members.get( number );
+
+		if ( kept == null ) {
+			keep( hm );
+			return;
+		}
+
+		unindex( kept ); // under the old key
+		boolean relinked = refresh( kept, hm );
+		setFor( kept ).add( kept );
+
+		if ( relinked ) {
+			regroup();
+		}
+	}
+
+	@Override
+	public void memberRemoved( Integer number ) {
+		HospitalityMember kept = members.remove( number );
+		linked.remove( number );
+
+		if ( kept != null ) {
+			unindex( kept );
+			keys.remove( number );
+
+			if ( !groups.removeAlone( number ) ) {
+				regroup();
+			}
+		}
+	}
+
+	/**
+	 * Members were scheduled: move them to their new date. They can be
+	 * selected again after everyone scheduled before them. A member selected
+	 * here but scheduled by another session is left alone, at its old version,
+	 * so scheduling it here will conflict.
+	 */
+	@Override
+	public void membersScheduled( Collection<HospitalityMember> scheduled,
+			Date date ) {
+		int day = MemberRecord.toDay( date );
+
+		for ( HospitalityMember hm : scheduled ) {
+			HospitalityMember kept = keep( hm );
+			boolean waiting = unindex( kept ); // under the old key
+
+			if ( !waiting && kept != hm
+					&& kept.getVersion() != hm.getVersion() ) {
+				continue;
+			}
+
+			kept.setVersion( hm.getVersion() );
+			kept.setLastScheduledDay( day );
+			keys.put( kept.getMemberNumber(), day );
+			setFor( kept ).add( kept );
+			groups.groupOf( kept ).updateOldest( keys );
+		}
+	}
+
+	// Private methods
+
+	/**
+	 * Find the groups again after "schedule with" was changed. Union-find
+	 * can't split a group, and edits are rare. Problems were reported when
+	 * the members were read, so they aren't reported again.
+	 */
+	private void regroup() {
+		groups = new MemberGroups();
+		groups.addAll( members.values() );
+		groups.takeProblems();
+	}
+
+	/**
+	 * Copy a member as read into the index's object for it, and move its key
+	 * to the new date. The member must be out of its set. Its group is kept
+	 * up to date unless "schedule with" changed.
+	 *
+	 * @return true if "schedule with" may have changed, so the groups must be
+	 *         found again
+	 */
+	private boolean refresh( HospitalityMember kept, HospitalityMember hm ) {
+		// changed in place, so there is nothing to compare with
+		boolean relinked = kept == hm;
+
+		if ( kept != hm ) {
+			relinked =
+					numberOf( kept.getScheduleWith() ) != numberOf( hm
+							.getScheduleWith() );
+			kept.setFirstName( hm.getFirstName() );
+			kept.setLastName( hm.getLastName() );
+			kept.setTeamLeader( hm.isTeamLeader() );
+			kept.setLastScheduledDay( hm.getLastScheduledDay() );
+			kept.setVersion( hm.getVersion() );
+			kept.setScheduleWith( hm.getScheduleWith() == null ? null
+					: keep( hm.getScheduleWith() ) );
+		}
+
+		keys.put( kept.getMemberNumber(), kept.getLastScheduledDay() );
+
+		if ( !relinked ) {
+			groups.groupOf( kept ).updateOldest( keys );
+		}
+
+		return relinked;
+	}
+
+	/**
+	 * @return a member's number, or {@link MemberRecord#NO_MEMBER} for none
+	 */
+	private static int numberOf( HospitalityMember hm ) {
+		return hm == null ? MemberRecord.NO_MEMBER : hm.getMemberNumber();
+	}
+
+	/**
+	 * @return the set a member belongs in
+	 */
+	private TreeSet<HospitalityMember> setFor( HospitalityMember hm ) {
+		if ( hm.isTeamLeader() ) {
+			return leaders;
+		}
+
+		return hm.getScheduleWith() == null ? solo : grouped;
+	}
+
+	/**
+	 * Take a member out of whichever set it is in. The member's fields may
+	 * have changed since it was added, so every set is tried.
+	 *
+	 * @return true if the member was in a set
+	 */
+	private boolean unindex( HospitalityMember hm ) {
+		boolean removed = leaders.remove( hm );
+		removed |= solo.remove( hm );
+		removed |= grouped.remove( hm );
+		return removed;
+	}
+
+	/**
+	 * Remove a member from its set if it isn't null.
+	 */
+	private HospitalityMember take( HospitalityMember hm ) {
+		if ( hm != null ) {
+			setFor( hm ).remove( hm );
+		}
+
+		return hm;
+	}
+
+	/**
+	 * Find the oldest member in any set after <code>after</code>, reading
+	 * more from the repository if members not read yet could come first.
+	 *
+	 * @param after
+	 *            - a member in the index, or null to start at the oldest
+	 * @return the member or null if there are none
+	 */
+	private HospitalityMember next( HospitalityMember after ) {
+		while ( true ) {
+			HospitalityMember hm =
+					oldest( first( leaders, after ),
+							oldest( first( solo, after ), first( grouped, after ) ) );
+
+			if ( exhausted || ( hm != null && isRead( hm ) ) ) {
+				return hm;
+			}
+
+			window *= 2;
+			load();
+		}
+	}
+
+	/**
+	 * @return the first member of a set after <code>after</code>, or null
+	 */
+	private HospitalityMember first( TreeSet<HospitalityMember> set,
+			HospitalityMember after ) {
+		if ( after != null ) {
+			return set.higher( after );
+		}
+
+		return set.isEmpty() ? null : set.first();
+	}
+
+	/**
+	 * @return the older of two members, either of which may be null
+	 */
+	private HospitalityMember oldest( HospitalityMember hm0,
+			HospitalityMember hm1 ) {
+		if ( hm0 == null ) {
+			return hm1;
+		}
+
+		if ( hm1 == null ) {
+			return hm0;
+		}
+
+		return byKey.compare( hm0, hm1 ) <= 0 ? hm0 : hm1;
+	}
+
+	/**
+	 * @return true if no member still in the repository comes before this one
+	 */
+	private boolean isRead( HospitalityMember hm ) {
+		return horizonNumber != null
+				&& compareKeys( keys.get( hm.getMemberNumber() ),
+						hm.getMemberNumber(), horizonDay, horizonNumber ) <= 0;
+	}
+
+	/**
+	 * @return true if no team leader still in the repository comes before this
+	 *         one
+	 */
+	private boolean isLeaderRead( HospitalityMember hm ) {
+		return leaderHorizonNumber != null
+				&& compareKeys( keys.get( hm.getMemberNumber() ),
+						hm.getMemberNumber(), leaderHorizonDay,
+						leaderHorizonNumber ) <= 0;
+	}
+
+	/**
+	 * Read a window of the oldest members from the repository.
+	 */
+	private void load() {
+		List<HospitalityMember> oldest = repository.findOldest( window );
+		exhausted = oldest.size() < window;
+
+		for ( HospitalityMember hm : oldest ) {
+			keep( hm );
+		}
+
+		if ( !oldest.isEmpty() ) {
+			HospitalityMember last = oldest.get( oldest.size() - 1 );
+			horizonDay = last.getLastScheduledDay();
+			horizonNumber = last.getMemberNumber();
+		}
+	}
+
+	/**
+	 * Read a window of the oldest team leaders from the repository.
+	 */
+	private void loadLeaders() {
+		List<HospitalityMember> oldest =
+				repository.findOldestTeamLeaders( leaderWindow );
+		leadersRead = true;
+		leadersExhausted = oldest.size() < leaderWindow;
+
+		for ( HospitalityMember hm : oldest ) {
+			keep( hm );
+		}
+
+		if ( !oldest.isEmpty() ) {
+			HospitalityMember last = oldest.get( oldest.size() - 1 );
+			leaderHorizonDay = last.getLastScheduledDay();
+			leaderHorizonNumber = last.getMemberNumber();
+		}
+	}
+
+	/**
+	 * Compare (day, number) keys the way {@link DateSort} does, never
+	 * scheduled first, ties to the lower member number.
+	 */
+	private static int compareKeys( int day0, Integer number0, int day1,
+			Integer number1 ) {
+		if ( day0 != day1 ) {
+			return day0 < day1 ? -1 : 1;
+		}
+
+		return number0.compareTo( number1 );
+	}
+
+}
@@ -0,0 +1,222 @@
+package net.snortum.hospitality;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A lock on a data file and its journal, held across every program that has
+ * the file open, so only one of them changes the files at a time. The lock
+ * lives in a file next to the data file, <code>&lt;data file&gt;.lock</code>.
+ *
+ * <p>
+ * The lock file also holds a generation, a long that moves on each time the
+ * data file is rewritten and the journal cleared. A session that saw another
+ * generation knows its place in the journal is gone and must read the data
+ * file again. The generation is not inside the locked range, so it can be
+ * read without waiting, even where locks keep others from reading.
+ * </p>
+ *
+ * <p>
+ * The lock file is opened once and kept open: on some systems closing any
+ * handle to a file lets go of every lock the program holds on it.
+ * </p>
+ *
+ * <p>
+ * A file lock belongs to the whole program, so there is one of these for
+ * each data file, see {@link #forFile(File)}; threads take turns with a
+ * {@link ReentrantLock}, and the file itself is locked by the first hold
+ * only. The lock file is closed when the last user calls {@link #release()}.
+ * </p>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class DataFileLock {
+
+	// Constants
+	public final static String LOCK_SUFFIX = ".lock";
+	private final static long GENERATION_AT = 0;
+	private final static long LOCKED_AT = 8;
+
+	// Fields
+	private final static Map<String, DataFileLock> locks =
+			new HashMap<String, DataFileLock>();
+	private final File lockFile;
+	private final String key;
+	private int users = 0; // guarded by locks
+	private final ReentrantLock threads = new ReentrantLock();
+	private FileChannel channel; // guarded by this
+	private FileLock fileLock; // guarded by threads
+
+	private DataFileLock( File lockFile, String key ) {
+		this.lockFile = lockFile;
+		this.key = key;
+	}
+
+	/**
+	 * Every call must be matched by a call to {@link #release()} once the
+	 * data file is no longer used.
+	 *
+	 * @param dataFile
+	 *            - the data file
+	 * @return the lock for a data file, the same one for every caller
+	 */
+	static DataFileLock forFile( File dataFile ) {
+		File lockFile =
+				new File( dataFile.getAbsoluteFile().getPath() + LOCK_SUFFIX );
+		String key;
+
+		try {
+			key = lockFile.getCanonicalPath();
+		}
+		catch ( IOException e ) {
+			key = lockFile.getPath();
+		}
+
+		synchronized ( locks ) {
+			DataFileLock lock = locks.get( key );
+
+			if ( lock == null ) {
+				lock = new DataFileLock( lockFile, key );
+				locks.put( key, lock );
+			}
+
+			lock.users++;
+			return lock;
+		}
+	}
+
+	/**
+	 * Stop using the lock. When no one in the program uses it any more, the
+	 * lock file is closed; the next {@link #forFile(File)} opens it again.
+	 * The lock must not be held.
+	 */
+	void release() {
+		synchronized ( locks ) {
+			if ( --users > 0 ) {
+				return;
+			}
+
+			locks.remove( key );
+		}
+
+		synchronized ( this ) {
+			if ( channel != null ) {
+				try {
+					channel.close();
+				}
+				catch ( IOException e ) {
+					// nothing more can be done with it
+				}
+
+				channel = null;
+			}
+		}
+	}
+
+	/**
+	 * Wait for the lock. Every call that returns must be matched by a call
+	 * to {@link #unlock()}.
+	 *
+	 * @throws IOException
+	 *             if the lock file can't be opened or locked; the lock is not
+	 *             held
+	 */
+	void lock() throws IOException {
+		threads.lock();
+
+		if ( threads.getHoldCount() > 1 ) {
+			return;
+		}
+
+		try {
+			fileLock = channel().lock( LOCKED_AT, 1, false );
+		}
+		catch ( IOException e ) {
+			threads.unlock();
+			throw e;
+		}
+	}
+
+	/**
+	 * Let the next thread or program have the lock.
+	 */
+	void unlock() {
+		try {
+			if ( threads.getHoldCount() == 1 && fileLock != null ) {
+				fileLock.release();
+				fileLock = null;
+			}
+		}
+		catch ( IOException e ) {
+			// the lock goes with the channel anyway
+		}
+		finally {
+			threads.unlock();
+		}
+	}
+
+	/**
+	 * @return the generation of the data file, 0 if it was never rewritten
+	 * @throws IOException
+	 */
+	long getGeneration() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate( 8 );
+
+		while ( buf.hasRemaining() ) {
+			if ( channel().read( buf, GENERATION_AT + buf.position() ) < 0 ) {
+				return 0;
+			}
+		}
+
+		buf.flip();
+		return buf.getLong();
+	}
+
+	/**
+	 * Move the generation on, once the data file has been rewritten. The lock
+	 * must be held.
+	 *
+	 * @return the new generation
+	 * @throws IOException
+	 */
+	long nextGeneration() throws IOException {
+		if ( !threads.isHeldByCurrentThread() ) {
+			throw new IllegalStateException( "Data file lock not held" );
+		}
+
+		long generation = getGeneration() + 1;
+		ByteBuffer buf = ByteBuffer.allocate( 8 );
+		buf.putLong( generation );
+		buf.flip();
+
+		while ( buf.hasRemaining() ) {
+			channel().write( buf, GENERATION_AT + buf.position() );
+		}
+
+		channel().force( false );
+		return generation;
+	}
+
+	// Private methods
+
+	/**
+	 * @return the lock file, opened the first time
+	 */
+	private synchronized FileChannel channel() throws IOException {
+		if ( channel == null ) {
+			channel = new RandomAccessFile( lockFile, "rw" ).getChannel();
+		}
+
+		return channel;
+	}
+
+}
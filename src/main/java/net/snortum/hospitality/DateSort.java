@@ -1,45 +1,169 @@
 package net.snortum.hospitality;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.Date;
+import java.util.List;
 
 /**
  * Sorts "last scheduled dates" in members.
- * 
+ *
+ * <p>
+ * Dates are days and a roster's dates cover a small span of days, so a whole
+ * roster is sorted by counting its members into one bucket per day, with
+ * "Never" as the lowest bucket, and copying them out bucket by bucket. That is
+ * O(N + days) with no comparisons. Members with the same date stay in the
+ * order they were in. Small rosters, and dates spread over too many days for
+ * the buckets to pay, are sorted on packed (day, position) keys instead.
+ * </p>
+ *
  * @author Knute Snortum, (c) copyright 2011-2013
  * @version 1.0
  * 
  */
 public class DateSort implements Comparator<HospitalityMember> {
 
+	// Constants
+	private final static int MIN_BUCKET_SORT = 64;
+	private final static long MIN_BUCKETS = 1 << 16;
+	private final static int MAX_BUCKETS_PER_MEMBER = 4;
+
 	/**
-	 * Compare one scheduled date to another.
+	 * Compare one scheduled date to another. Dates are days, so this is an
+	 * int compare; never scheduled is {@link MemberRecord#NEVER}, the lowest.
 	 * 
 	 * @param arg0
 	 *            - Hospitality member object, one
 	 * @param arg1
 	 *            - Hospitality member object, two
-	 * @return -1 if date0 &lt; date1 or date0 == null, 1 if date0 &gt; date1 or
-	 *         date1 == null, 0 if arg0==arg1 or both null
+	 * @return a negative number if arg0 was scheduled first, or never while
+	 *         arg1 was; a positive number the other way round; 0 if both were
+	 *         scheduled the same day or both never
 	 */
 	@Override
 	public int compare( HospitalityMember arg0, HospitalityMember arg1 ) {
-		Date date0 = arg0.getLastScheduled();
-		Date date1 = arg1.getLastScheduled();
+		return Integer.compare( arg0.getLastScheduledDay(),
+				arg1.getLastScheduledDay() );
+	}
+
+	/**
+	 * Sort members by last scheduled date, in the same order as
+	 * <code>Arrays.sort( members, new DateSort() )</code>: never scheduled
+	 * first, members with the same date left in the order they were in.
+	 *
+	 * @param members
+	 *            - members to sort, in place
+	 */
+	public static void sort( HospitalityMember[] members ) {
+		int[] days = new int[members.length];
 
-		if ( date0 == null && date1 == null ) {
-			return 0;
+		for ( int i = 0; i < members.length; i++ ) {
+			days[i] = members[i].getLastScheduledDay();
 		}
 
-		if ( date0 == null ) {
-			return -1;
+		HospitalityMember[] unsorted = members.clone();
+		int[] order = order( days, days.length );
+
+		for ( int i = 0; i < order.length; i++ ) {
+			members[i] = unsorted[order[i]];
 		}
+	}
+
+	/**
+	 * Sort members by last scheduled date with
+	 * {@link #sort(HospitalityMember[])}. Pass members in member number order, such as the values of a member
+	 * tree, to get ties in member number order.
+	 *
+	 * @param members
+	 *            - members to sort
+	 * @return a new list of the members, oldest first
+	 */
+	public static List<HospitalityMember> sorted(
+			Collection<HospitalityMember> members ) {
+		HospitalityMember[] hma =
+				members.toArray( new HospitalityMember[members.size()] );
+		sort( hma );
+		return new ArrayList<HospitalityMember>( Arrays.asList( hma ) );
+	}
+
+	/**
+	 * Sort a column of days without moving it.
+	 *
+	 * @param days
+	 *            - last scheduled days, {@link MemberRecord#NEVER} for never
+	 * @param count
+	 *            - how many of the days to sort, from the start
+	 * @return the positions of the first <code>count</code> days, oldest
+	 *         first, equal days in position order
+	 */
+	static int[] order( int[] days, int count ) {
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+
+		for ( int i = 0; i < count; i++ ) {
+			if ( days[i] != MemberRecord.NEVER ) {
+				min = Math.min( min, days[i] );
+				max = Math.max( max, days[i] );
+			}
+		}
+
+		long span = min > max ? 0 : (long) max - min + 1;
+
+		if ( count < MIN_BUCKET_SORT
+				|| span > Math.max( MIN_BUCKETS, (long) count
+						* MAX_BUCKETS_PER_MEMBER ) ) {
+			return orderByKeys( days, count );
+		}
+
+		// bucket 0 is "Never", then one per day from min
+		int[] starts = new int[(int) span + 2];
+
+		for ( int i = 0; i < count; i++ ) {
+			starts[bucket( days[i], min ) + 1]++;
+		}
+
+		for ( int b = 1; b < starts.length; b++ ) {
+			starts[b] += starts[b - 1];
+		}
+
+		int[] order = new int[count];
+
+		for ( int i = 0; i < count; i++ ) {
+			order[starts[bucket( days[i], min )]++] = i;
+		}
+
+		return order;
+	}
+
+	// Private methods
+
+	/**
+	 * @return the bucket of a day, 0 for never
+	 */
+	private static int bucket( int day, int min ) {
+		return day == MemberRecord.NEVER ? 0 : day - min + 1;
+	}
+
+	/**
+	 * Sort on (day, position) packed into longs, helper for
+	 * {@link #order(int[], int)}. Positions are never negative.
+	 */
+	private static int[] orderByKeys( int[] days, int count ) {
+		long[] keys = new long[count];
+
+		for ( int i = 0; i < count; i++ ) {
+			keys[i] = ( (long) days[i] << 32 ) | i;
+		}
+
+		Arrays.sort( keys );
+		int[] order = new int[count];
 
-		if ( date1 == null ) {
-			return 1;
+		for ( int i = 0; i < count; i++ ) {
+			order[i] = (int) keys[i];
 		}
 
-		return date0.compareTo( date1 );
+		return order;
 	}
 
 }
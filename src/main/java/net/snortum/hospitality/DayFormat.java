@@ -0,0 +1,239 @@
+package net.snortum.hospitality;
+
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Days as plain ints, and the {@link HospitalityMember#DATE_FORMAT} text form
+ * of a day. A day is the number of days since 1/1/1970, the same as
+ * {@link LocalDate#toEpochDay()}, so days compare and subtract as ints and
+ * carry no time or time zone. {@link MemberRecord#NEVER} is the day of a
+ * member never scheduled.
+ *
+ * <p>
+ * The data file, journal and display go through {@link #format(int)} and
+ * {@link #parse(CharSequence)}, which work the calendar out by arithmetic and
+ * make no objects beyond the result. {@link #FORMATTER} is for anything that
+ * needs a {@link java.text.Format} or a {@link LocalDate}. Everything here is
+ * safe to use from any thread.
+ * </p>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public final class DayFormat {
+
+	// Constants
+	/** {@link HospitalityMember#DATE_FORMAT}, which can be shared by threads */
+	public final static DateTimeFormatter FORMATTER = DateTimeFormatter
+			.ofPattern( "MM/dd/uuuu" );
+	private final static int DAYS_PER_ERA = 146097;
+	private final static int DAYS_0000_TO_1970 = 719468;
+
+	// All members are static
+	private DayFormat() {
+	}
+
+	/**
+	 * Work out the day of a calendar date. Out of range months and days roll
+	 * over into the next month or year, as a lenient calendar does.
+	 *
+	 * @param year
+	 *            - the year
+	 * @param month
+	 *            - the month, 1 to 12
+	 * @param dayOfMonth
+	 *            - the day of the month, from 1
+	 * @return the day
+	 */
+	public static int of( int year, int month, int dayOfMonth ) {
+		year += Math.floorDiv( month - 1, 12 );
+		month = Math.floorMod( month - 1, 12 ) + 1;
+		return daysFromCivil( year, month, 1 ) + dayOfMonth - 1;
+	}
+
+	/**
+	 * @return the day of a local date
+	 */
+	public static int of( LocalDate date ) {
+		return (int) date.toEpochDay();
+	}
+
+	/**
+	 * @param day
+	 *            - a day, not {@link MemberRecord#NEVER}
+	 * @return the local date of the day
+	 */
+	public static LocalDate toLocalDate( int day ) {
+		return LocalDate.ofEpochDay( day );
+	}
+
+	/**
+	 * @return today, in the local time zone
+	 */
+	public static int today() {
+		return of( LocalDate.now() );
+	}
+
+	/**
+	 * Read a date as M/d/yyyy. One or two digits are accepted for the month
+	 * and day; the year must have four. Spaces around the date are ignored.
+	 *
+	 * @param text
+	 *            - the date as typed
+	 * @return the day
+	 * @throws ParseException
+	 *             if the text isn't a real date in that form
+	 */
+	public static int parse( CharSequence text ) throws ParseException {
+		int start = 0;
+		int end = text.length();
+
+		while ( start < end && text.charAt( start ) == ' ' ) {
+			start++;
+		}
+
+		while ( end > start && text.charAt( end - 1 ) == ' ' ) {
+			end--;
+		}
+
+		int[] pos = { start };
+		int month = digits( text, pos, end, 1, 2 );
+		skipSlash( text, pos, end, month );
+		int dayOfMonth = digits( text, pos, end, 1, 2 );
+		skipSlash( text, pos, end, dayOfMonth );
+		int year = digits( text, pos, end, 4, 4 );
+
+		if ( year < 0 || pos[0] != end || month < 1 || month > 12
+				|| dayOfMonth < 1
+				|| dayOfMonth > lengthOfMonth( year, month ) ) {
+			throw new ParseException( "Unparseable date: \"" + text + "\"",
+					pos[0] );
+		}
+
+		return daysFromCivil( year, month, dayOfMonth );
+	}
+
+	/**
+	 * Write a day as MM/dd/yyyy.
+	 *
+	 * @param day
+	 *            - a day, not {@link MemberRecord#NEVER}
+	 * @return the date as text
+	 */
+	public static String format( int day ) {
+		return append( new StringBuilder( 10 ), day ).toString();
+	}
+
+	/**
+	 * Write a day as MM/dd/yyyy on the end of a builder.
+	 *
+	 * @param sb
+	 *            - where to write
+	 * @param day
+	 *            - a day, not {@link MemberRecord#NEVER}
+	 * @return the builder
+	 */
+	public static StringBuilder append( StringBuilder sb, int day ) {
+		int[] civil = civilFromDays( day );
+
+		if ( civil[0] < 0 || civil[0] > 9999 ) {
+			return sb.append( FORMATTER.format( toLocalDate( day ) ) );
+		}
+
+		two( sb, civil[1] ).append( '/' );
+		two( sb, civil[2] ).append( '/' );
+		two( sb, civil[0] / 100 );
+		return two( sb, civil[0] % 100 );
+	}
+
+	// Private methods
+
+	/**
+	 * Days from 1/1/1970 to a date of the proleptic Gregorian calendar, by
+	 * counting whole 400 year eras from a year that starts in March.
+	 */
+	private static int daysFromCivil( int year, int month, int dayOfMonth ) {
+		year -= month <= 2 ? 1 : 0;
+		int era = Math.floorDiv( year, 400 );
+		int yearOfEra = year - era * 400;
+		int dayOfYear =
+				( 153 * ( month + ( month > 2 ? -3 : 9 ) ) + 2 ) / 5
+						+ dayOfMonth - 1;
+		int dayOfEra =
+				yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * DAYS_PER_ERA + dayOfEra - DAYS_0000_TO_1970;
+	}
+
+	/**
+	 * The other way from {@link #daysFromCivil(int, int, int)}.
+	 *
+	 * @return year, month, day of month
+	 */
+	private static int[] civilFromDays( int day ) {
+		long days = (long) day + DAYS_0000_TO_1970;
+		long era = Math.floorDiv( days, DAYS_PER_ERA );
+		int dayOfEra = (int) ( days - era * DAYS_PER_ERA );
+		int yearOfEra =
+				( dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra
+						/ ( DAYS_PER_ERA - 1 ) ) / 365;
+		int dayOfYear =
+				dayOfEra - ( 365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100 );
+		int shifted = ( 5 * dayOfYear + 2 ) / 153;
+		int dayOfMonth = dayOfYear - ( 153 * shifted + 2 ) / 5 + 1;
+		int month = shifted < 10 ? shifted + 3 : shifted - 9;
+		int year = (int) ( yearOfEra + era * 400 ) + ( month <= 2 ? 1 : 0 );
+		return new int[] { year, month, dayOfMonth };
+	}
+
+	private static int lengthOfMonth( int year, int month ) {
+		if ( month == 2 ) {
+			boolean leap =
+					year % 4 == 0 && ( year % 100 != 0 || year % 400 == 0 );
+			return leap ? 29 : 28;
+		}
+
+		return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+	}
+
+	/**
+	 * Read between <code>min</code> and <code>max</code> digits.
+	 *
+	 * @return the number or -1 if there are too few digits
+	 */
+	private static int digits( CharSequence text, int[] pos, int end, int min,
+			int max ) {
+		int value = 0;
+		int count = 0;
+
+		while ( pos[0] < end && count < max ) {
+			int d = text.charAt( pos[0] ) - '0';
+			if ( d < 0 || d > 9 ) {
+				break;
+			}
+			value = value * 10 + d;
+			count++;
+			pos[0]++;
+		}
+
+		return count >= min ? value : -1;
+	}
+
+	private static void skipSlash( CharSequence text, int[] pos, int end,
+			int before ) throws ParseException {
+		if ( before < 0 || pos[0] >= end || text.charAt( pos[0] ) != '/' ) {
+			throw new ParseException( "Unparseable date: \"" + text + "\"",
+					pos[0] );
+		}
+
+		pos[0]++;
+	}
+
+	private static StringBuilder two( StringBuilder sb, int value ) {
+		return sb.append( (char) ( '0' + value / 10 ) ).append(
+				(char) ( '0' + value % 10 ) );
+	}
+
+}
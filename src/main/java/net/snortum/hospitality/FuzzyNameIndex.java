@@ -0,0 +1,462 @@
+package net.snortum.hospitality;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Members by the sound and spelling of their names, for finding a member
+ * whose name was typed wrong. Each full name is folded (see
+ * {@link NameIndex#fold(String)}) and cut into trigrams, three letter pieces,
+ * and each word also gets a Soundex key. Each trigram and key has a posting
+ * list of the members who have it.
+ *
+ * <p>
+ * A lookup cuts the query up the same way and looks only at members on its
+ * posting lists. A member needs some of the query's trigrams to be close
+ * enough, so only the shortest lists need to be read to find every member who
+ * could be: the common trigrams are never walked. Candidates are scored by
+ * Dice similarity, twice the trigrams shared over the trigrams of both, plus
+ * a little for each word that sounds the same, and the best are kept in a
+ * heap. The work is bounded by {@link #MAX_CANDIDATES}, not by the roster.
+ * </p>
+ *
+ * <p>
+ * The index is a {@link MemberListener}, so it is built up as members are
+ * added and changed. Its methods are synchronized.
+ * </p>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class FuzzyNameIndex implements MemberListener {
+
+	// Constants
+	/** Least similarity for a member to be found */
+	final static double MIN_SIMILARITY = 0.3;
+	/** Most members scored for one lookup */
+	final static int MAX_CANDIDATES = 20000;
+	private final static double SOUNDS_ALIKE = 0.25;
+	private final static int GRAM_BITS = 6;
+	private final static char[] SOUNDEX_DIGITS =
+			"01230120022455012623010202".toCharArray();
+
+	// Fields
+	private final Posting[] grams = new Posting[1 << ( 3 * GRAM_BITS )];
+	private final Map<Integer, Posting> sounds = new HashMap<Integer, Posting>();
+	private final Map<Integer, int[]> gramsOf = new HashMap<Integer, int[]>();
+	private final Map<Integer, int[]> soundsOf = new HashMap<Integer, int[]>();
+
+	/**
+	 * Member numbers with one trigram or sound, in no order.
+	 */
+	private static class Posting {
+		private int[] numbers = new int[4];
+		private int size;
+
+		void add( int number ) {
+			if ( size == numbers.length ) {
+				numbers = Arrays.copyOf( numbers, size * 2 );
+			}
+
+			numbers[size++] = number;
+		}
+
+		void remove( int number ) {
+			for ( int i = 0; i < size; i++ ) {
+				if ( numbers[i] == number ) {
+					numbers[i] = numbers[--size];
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A member found, with its score.
+	 */
+	static class Match {
+		private final int number;
+		private final double similarity;
+
+		Match( int number, double similarity ) {
+			this.number = number;
+			this.similarity = similarity;
+		}
+
+		int getNumber() {
+			return number;
+		}
+
+		/**
+		 * @return 0 to a little over 1; 1 is the same trigrams
+		 */
+		double getSimilarity() {
+			return similarity;
+		}
+	}
+
+	/**
+	 * Best first, then the lower member number.
+	 */
+	private final static Comparator<Match> BEST_FIRST = new Comparator<Match>() {
+		@Override
+		public int compare( Match arg0, Match arg1 ) {
+			if ( arg0.similarity != arg1.similarity ) {
+				return arg0.similarity > arg1.similarity ? -1 : 1;
+			}
+
+			return arg0.number < arg1.number ? -1
+					: arg0.number == arg1.number ? 0 : 1;
+		}
+	};
+
+	/**
+	 * Index members, replacing whatever was indexed.
+	 *
+	 * @param members
+	 *            - all members, each number once
+	 */
+	synchronized void reset( Collection<HospitalityMember> members ) {
+		Arrays.fill( grams, null );
+		sounds.clear();
+		gramsOf.clear();
+		soundsOf.clear();
+		membersUpdated( members );
+	}
+
+	/**
+	 * Find the members whose names are most like the one given.
+	 *
+	 * @param name
+	 *            - a name as typed, any words in any order
+	 * @param limit
+	 *            - how many members to return at most
+	 * @return the best matches, best first
+	 */
+	synchronized List<Match> find( String name, int limit ) {
+		String[] words = words( name );
+		int[] query = grams( words );
+		List<Match> found = new ArrayList<Match>();
+
+		if ( query.length == 0 || limit <= 0 ) {
+			return found;
+		}
+
+		// a member sharing fewer than "needed" trigrams can't be close enough,
+		// so it must be on one of the shortest (length - needed + 1) lists
+		int needed =
+				Math.max( 1, (int) Math.ceil( MIN_SIMILARITY * query.length / 2 ) );
+		Posting[] lists = new Posting[query.length];
+
+		for ( int i = 0; i < query.length; i++ ) {
+			lists[i] = grams[query[i]];
+		}
+
+		Arrays.sort( lists, new Comparator<Posting>() {
+			@Override
+			public int compare( Posting arg0, Posting arg1 ) {
+				return size( arg0 ) - size( arg1 );
+			}
+		} );
+
+		Set<Integer> candidates = new HashSet<Integer>();
+
+		for ( int i = 0; i < query.length - needed + 1; i++ ) {
+			addAll( lists[i], candidates );
+		}
+
+		int[] querySounds = sounds( words );
+
+		for ( int sound : querySounds ) {
+			addAll( sounds.get( sound ), candidates );
+		}
+
+		PriorityQueue<Match> heap =
+				new PriorityQueue<Match>( limit,
+						Collections.reverseOrder( BEST_FIRST ) );
+
+		for ( Integer number : candidates ) {
+			int[] memberGrams = gramsOf.get( number );
+			double similarity =
+					2.0 * shared( query, memberGrams )
+							/ ( query.length + memberGrams.length )
+							+ SOUNDS_ALIKE
+							* shared( querySounds, soundsOf.get( number ) );
+
+			if ( similarity < MIN_SIMILARITY ) {
+				continue;
+			}
+
+			Match match = new Match( number, similarity );
+
+			if ( heap.size() < limit ) {
+				heap.add( match );
+			}
+			else if ( BEST_FIRST.compare( match, heap.peek() ) < 0 ) {
+				heap.poll();
+				heap.add( match );
+			}
+		}
+
+		found.addAll( heap );
+		Collections.sort( found, BEST_FIRST );
+		return found;
+	}
+
+	/**
+	 * @return how many members are indexed
+	 */
+	synchronized int size() {
+		return gramsOf.size();
+	}
+
+	// Listener methods
+
+	@Override
+	public synchronized void membersUpdated(
+			Collection<HospitalityMember> members ) {
+		for ( HospitalityMember hm : members ) {
+			memberRemoved( hm.getMemberNumber() );
+
+			int number = hm.getMemberNumber();
+			String[] words = words( hm.displayFullName() );
+			int[] memberGrams = grams( words );
+			int[] memberSounds = sounds( words );
+
+			for ( int gram : memberGrams ) {
+				if ( grams[gram] == null ) {
+					grams[gram] = new Posting();
+				}
+
+				grams[gram].add( number );
+			}
+
+			for ( int sound : memberSounds ) {
+				Posting posting = sounds.get( sound );
+
+				if ( posting == null ) {
+					posting = new Posting();
+					sounds.put( sound, posting );
+				}
+
+				posting.add( number );
+			}
+
+			gramsOf.put( number, memberGrams );
+			soundsOf.put( number, memberSounds );
+		}
+	}
+
+	@Override
+	public synchronized void memberRemoved( Integer number ) {
+		int[] memberGrams = gramsOf.remove( number );
+
+		if ( memberGrams == null ) {
+			return;
+		}
+
+		for ( int gram : memberGrams ) {
+			grams[gram].remove( number );
+		}
+
+		for ( int sound : soundsOf.remove( number ) ) {
+			sounds.get( sound ).remove( number );
+		}
+	}
+
+	@Override
+	public void membersScheduled( Collection<HospitalityMember> members,
+			Date date ) {
+		// names don't change
+	}
+
+	// Private methods
+
+	/**
+	 * @return the folded words of a name, letters and digits only
+	 */
+	private static String[] words( String name ) {
+		String folded = NameIndex.fold( name ).replaceAll( "[^a-z0-9]+", " " );
+		return folded.trim().isEmpty() ? new String[0] : folded.trim().split(
+				" " );
+	}
+
+	/**
+	 * Cut words into trigrams. Each word is padded with two spaces in front
+	 * and one behind, so the start of a word counts most.
+	 *
+	 * @return the trigram codes, sorted, each once
+	 */
+	private static int[] grams( String[] words ) {
+		int count = 0;
+
+		for ( String word : words ) {
+			count += word.length() + 1;
+		}
+
+		int[] codes = new int[count];
+		int i = 0;
+
+		for ( String word : words ) {
+			String padded = "  " + word + " ";
+
+			for ( int at = 0; at + 3 <= padded.length(); at++ ) {
+				codes[i++] =
+						( code( padded.charAt( at ) ) << ( 2 * GRAM_BITS ) )
+								| ( code( padded.charAt( at + 1 ) ) << GRAM_BITS )
+								| code( padded.charAt( at + 2 ) );
+			}
+		}
+
+		return distinct( codes );
+	}
+
+	/**
+	 * @return a letter, digit or space as 0 to 36
+	 */
+	private static int code( char c ) {
+		if ( c >= 'a' && c <= 'z' ) {
+			return c - 'a' + 1;
+		}
+
+		if ( c >= '0' && c <= '9' ) {
+			return c - '0' + 27;
+		}
+
+		return 0;
+	}
+
+	/**
+	 * @return the Soundex keys of the words with letters, sorted, each once
+	 */
+	private static int[] sounds( String[] words ) {
+		int[] keys = new int[words.length];
+		int count = 0;
+
+		for ( String word : words ) {
+			int key = soundex( word );
+
+			if ( key >= 0 ) {
+				keys[count++] = key;
+			}
+		}
+
+		return distinct( Arrays.copyOf( keys, count ) );
+	}
+
+	/**
+	 * American Soundex: the first letter, then up to three digits for the
+	 * consonant sounds that follow, with sounds that repeat, or repeat across
+	 * an "h" or "w", counted once.
+	 *
+	 * @param word
+	 *            - a folded word
+	 * @return the key as a number, or -1 if the word doesn't start with a
+	 *         letter
+	 */
+	private static int soundex( String word ) {
+		char first = word.charAt( 0 );
+
+		if ( first < 'a' || first > 'z' ) {
+			return -1;
+		}
+
+		int key = first - 'a';
+		int digits = 0;
+		char last = SOUNDEX_DIGITS[first - 'a'];
+
+		for ( int i = 1; i < word.length() && digits < 3; i++ ) {
+			char c = word.charAt( i );
+
+			if ( c < 'a' || c > 'z' ) {
+				break;
+			}
+
+			char digit = SOUNDEX_DIGITS[c - 'a'];
+
+			if ( digit != '0' && digit != last ) {
+				key = key * 10 + ( digit - '0' );
+				digits++;
+			}
+
+			if ( c != 'h' && c != 'w' ) {
+				last = digit;
+			}
+		}
+
+		for ( ; digits < 3; digits++ ) {
+			key *= 10;
+		}
+
+		return key;
+	}
+
+	private static int[] distinct( int[] values ) {
+		Arrays.sort( values );
+		int count = 0;
+
+		for ( int i = 0; i < values.length; i++ ) {
+			if ( i == 0 || values[i] != values[i - 1] ) {
+				values[count++] = values[i];
+			}
+		}
+
+		return Arrays.copyOf( values, count );
+	}
+
+	/**
+	 * @return how many values two sorted arrays have in common
+	 */
+	private static int shared( int[] values0, int[] values1 ) {
+		int i = 0;
+		int j = 0;
+		int count = 0;
+
+		while ( i < values0.length && j < values1.length ) {
+			if ( values0[i] < values1[j] ) {
+				i++;
+			}
+			else if ( values0[i] > values1[j] ) {
+				j++;
+			}
+			else {
+				count++;
+				i++;
+				j++;
+			}
+		}
+
+		return count;
+	}
+
+	private static int size( Posting posting ) {
+		return posting == null ? 0 : posting.size;
+	}
+
+	/**
+	 * Add the members of a posting list to the candidates, up to
+	 * {@link #MAX_CANDIDATES}.
+	 */
+	private static void addAll( Posting posting, Set<Integer> candidates ) {
+		if ( posting == null ) {
+			return;
+		}
+
+		for ( int i = 0; i < posting.size
+				&& candidates.size() < MAX_CANDIDATES; i++ ) {
+			candidates.add( posting.numbers[i] );
+		}
+	}
+
+}
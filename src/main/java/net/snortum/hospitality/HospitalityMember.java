@@ -1,7 +1,7 @@
 package net.snortum.hospitality;
 
-import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class defines a single member.
@@ -13,9 +13,7 @@ import java.util.Date;
 public class HospitalityMember {
 
 	public final static String DATE_FORMAT = "MM/dd/yyyy";
-	private final static SimpleDateFormat FORMATTER =
-			new SimpleDateFormat( DATE_FORMAT );
-	private static int lastMemberNumber = 1;
+	private final static AtomicInteger lastMemberNumber = new AtomicInteger( 1 );
 
 	// Fields
 	private Integer memberNumber;
@@ -23,9 +21,8 @@ public class HospitalityMember {
 	private String lastName;
 	private HospitalityMember scheduleWith = null;
 	private boolean teamLeader;
-	private Date lastScheduled = null;
-	private boolean lookedAt = false;
-	private String reason = "";
+	private int lastScheduled = MemberRecord.NEVER;
+	private int version = 0;
 
 	// Getters/setters
 
@@ -33,14 +30,41 @@ public class HospitalityMember {
 	 * @return lastMemberNumber *
 	 */
 	public static int getLastMemberNumber() {
-		return lastMemberNumber;
+		return lastMemberNumber.get();
 	}
 
 	/**
 	 * @param lastMemberNumber
 	 */
 	public static void setLastMemberNumber( int lastMemberNumber ) {
-		HospitalityMember.lastMemberNumber = lastMemberNumber;
+		HospitalityMember.lastMemberNumber.set( lastMemberNumber );
+	}
+
+	/**
+	 * Make sure new member numbers start at least here. Safe to call from
+	 * several sessions: the number is never lowered. There is one number for
+	 * the whole program, so only the roster being edited moves it on; the
+	 * repositories don't, since a program may hold several sites' rosters.
+	 * 
+	 * @param next
+	 *            - the lowest number to hand out next
+	 */
+	public static void raiseLastMemberNumber( int next ) {
+		int current = lastMemberNumber.get();
+
+		while ( current < next
+				&& !lastMemberNumber.compareAndSet( current, next ) ) {
+			current = lastMemberNumber.get();
+		}
+	}
+
+	/**
+	 * Hand out a member number no other session will get.
+	 * 
+	 * @return the new member number
+	 */
+	public static int allocateMemberNumber() {
+		return lastMemberNumber.getAndIncrement();
 	}
 
 	/**
@@ -62,7 +86,7 @@ public class HospitalityMember {
 	 * Set the next member number
 	 */
 	public void nextMemberNumber() {
-		this.memberNumber = new Integer( lastMemberNumber++ );
+		this.memberNumber = Integer.valueOf( allocateMemberNumber() );
 	}
 
 	/**
@@ -130,52 +154,57 @@ public class HospitalityMember {
 	 *            date last scheduled
 	 */
 	public void setLastScheduled( Date lastScheduled ) {
-		this.lastScheduled = lastScheduled;
+		this.lastScheduled = MemberRecord.toDay( lastScheduled );
 	}
 
 	/**
-	 * @return lastScheduled the last scheduled date to set
+	 * @return lastScheduled the last scheduled date to set, a new Date each
+	 *         time
 	 */
 	public Date getLastScheduled() {
-		return lastScheduled;
+		return MemberRecord.toDate( lastScheduled );
 	}
 
 	/**
-	 * @return has this member been looked at
+	 * @param lastScheduled
+	 *            the day last scheduled (see {@link DayFormat}), or
+	 *            {@link MemberRecord#NEVER}
 	 */
-	public boolean isLookedAt() {
-		return lookedAt;
+	public void setLastScheduledDay( int lastScheduled ) {
+		this.lastScheduled = lastScheduled;
 	}
 
 	/**
-	 * @param lookedAt
-	 *            has this member been looked at
+	 * @return the day last scheduled, or {@link MemberRecord#NEVER}
 	 */
-	public void setLookedAt( boolean lookedAt ) {
-		this.lookedAt = lookedAt;
+	public int getLastScheduledDay() {
+		return lastScheduled;
 	}
 
 	/**
-	 * @return reason
+	 * @return how many times the member has been written since it was added.
+	 *         A write made from an older version is a conflict.
 	 */
-	public String getReason() {
-		return reason;
+	public int getVersion() {
+		return version;
 	}
 
 	/**
-	 * @param reason
+	 * @param version
 	 */
-	public void setReason( String reason ) {
-		this.reason = reason;
+	public void setVersion( int version ) {
+		this.version = version;
 	}
 
 	/**
 	 * @return the last schedule date or "Never"
 	 */
 	public String displayLastScheduled() {
-		return lastScheduled != null
-				? FORMATTER.format( lastScheduled )
-				: "Never";
+		if ( lastScheduled == MemberRecord.NEVER ) {
+			return "Never";
+		}
+
+		return DayFormat.format( lastScheduled );
 	}
 
 	/**
@@ -203,7 +232,7 @@ public class HospitalityMember {
 	 */
 	public HospitalityMember( String firstName, String lastName,
 			HospitalityMember scheduleWith, boolean teamLeader ) {
-		this.memberNumber = Integer.valueOf( lastMemberNumber++ );
+		this.memberNumber = Integer.valueOf( allocateMemberNumber() );
 		this.firstName = firstName;
 		this.lastName = lastName;
 		this.scheduleWith = scheduleWith;
@@ -223,6 +252,25 @@ public class HospitalityMember {
 	public HospitalityMember( Integer number, String firstName,
 			String lastName, HospitalityMember scheduleWith,
 			boolean teamLeader, Date lastScheduled ) {
+		this( number, firstName, lastName, scheduleWith, teamLeader,
+				MemberRecord.toDay( lastScheduled ) );
+	}
+
+	/**
+	 * Create an existing member with its last scheduled day
+	 * 
+	 * @param number
+	 * @param firstName
+	 * @param lastName
+	 * @param scheduleWith
+	 * @param teamLeader
+	 * @param lastScheduled
+	 *            - the day (see {@link DayFormat}), or
+	 *            {@link MemberRecord#NEVER}
+	 */
+	public HospitalityMember( Integer number, String firstName,
+			String lastName, HospitalityMember scheduleWith,
+			boolean teamLeader, int lastScheduled ) {
 		this.memberNumber = number;
 		this.firstName = firstName;
 		this.lastName = lastName;
@@ -260,7 +308,7 @@ public class HospitalityMember {
 	 * @return string used to write to file
 	 */
 	public String toFile() {
-		StringBuffer sb = new StringBuffer();
+		StringBuilder sb = new StringBuilder();
 		sb.append( getMemberNumber() + "\t" );
 		sb.append( getFirstName() + "\t" );
 		sb.append( getLastName() + "\t" );
@@ -274,11 +322,11 @@ public class HospitalityMember {
 
 		sb.append( isTeamLeader() + "\t" );
 
-		if ( displayLastScheduled() == "Never" ) {
+		if ( lastScheduled == MemberRecord.NEVER ) {
 			sb.append( "\n" );
 		}
 		else {
-			sb.append( displayLastScheduled() + "\n" );
+			DayFormat.append( sb, lastScheduled ).append( "\n" );
 		}
 
 		return sb.toString();
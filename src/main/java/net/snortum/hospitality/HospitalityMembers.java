@@ -7,11 +7,19 @@ import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
@@ -26,10 +34,16 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTabbedPane;
+import javax.swing.JTable;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.KeyStroke;
 import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 /**
  * <b>Summary</b>
@@ -72,17 +86,21 @@ import javax.swing.ScrollPaneConstants;
  * <b>Members View Tab</b>
  * 
  * <p>
- * The Members View tab contains a listing of all members. This can be copied
- * and put into Word or other word processing program (use Ctrl-A and Ctrl-C).
+ * The Members View tab contains a table of all members. This can be copied
+ * and put into Excel or a word processing program (use Ctrl-A and Ctrl-C).
  * You can scroll through the list to get an idea of who has been entered.
+ * Double click a member to show it in the Member View.
  * </p>
  * 
  * <b>Find View Tab</b>
  * 
  * <p>
- * You can enter in a last name, a first name, or both. When the search button
- * is press you can see all matches. To edit a specific member, copy or remember
- * their number and press Ctrl-G to go to that member.
+ * You can enter in a last name, a first name, or both. Matches are shown as
+ * soon as you stop typing, or when the search button is pressed. The start of
+ * a name is enough, and case and accents don't matter. If no name starts with
+ * what you typed, the closest names are shown instead, so a misspelled name
+ * can still be found. To edit a specific member, copy or remember their number
+ * and press Ctrl-G to go to that member.
  * </p>
  * 
  * @author Knute Snortum, (c) copyright 2011-2013
@@ -91,6 +109,12 @@ import javax.swing.ScrollPaneConstants;
  */
 public class HospitalityMembers {
 
+	// Constants
+	private final static String TITLE = "Hospitality Members";
+	private final static int MAX_FOUND = 500;
+	private final static int MAX_CLOSEST = 10;
+	private final static int FIND_DELAY = 150; // ms
+
 	// Instance vars for GUI
 	private JFrame frame;
 	private JPanel contentPane;
@@ -101,10 +125,37 @@ public class HospitalityMembers {
 			textLastScheduled, textFindLastName, textFindFirstName;
 	private JCheckBox checkTeamLeader;
 
-	private JTextArea membersTextArea, findTextArea;
+	private JTextArea findTextArea;
+	private JTable membersTable;
+	private final MembersTableModel membersModel = new MembersTableModel();
+	private final NameIndex nameIndex = new NameIndex();
+	private final FuzzyNameIndex fuzzyIndex = new FuzzyNameIndex();
+
+	// Finding runs on its own thread, one search at a time
+	private final static ExecutorService finder = Executors
+			.newSingleThreadExecutor( new ThreadFactory() {
+				@Override
+				public Thread newThread( Runnable r ) {
+					Thread thread = new Thread( r, "member-finder" );
+					thread.setDaemon( true );
+					return thread;
+				}
+			} );
+	private final Timer findTimer = new Timer( FIND_DELAY,
+			new ActionListener() {
+				@Override
+				public void actionPerformed( ActionEvent e ) {
+					startFind();
+				}
+			} );
+	private Future<?> lastFind;
+	private int findGeneration = 0;
 
 	// Other vars
 	private TreeMap<Integer, HospitalityMember> tree;
+	private MemberRepository repository;
+	private MemberWriter writer;
+	private final SaveDone saveDone = new SaveDone();
 
 	/**
 	 * Main - Create Members GUI
@@ -113,15 +164,21 @@ public class HospitalityMembers {
 	 *            - not used
 	 */
 	public static void main( String[] args ) {
-		HospitalityMembers gui = new HospitalityMembers();
-		gui.start();
+		SwingUtilities.invokeLater( new Runnable() {
+			@Override
+			public void run() {
+				HospitalityMembers gui = new HospitalityMembers();
+				gui.start();
+			}
+		} );
 	}
 
 	/**
-	 * Setup frame, make menus and content pane, load records, display members.
+	 * Setup frame, make menus and content pane, show the frame, then load
+	 * records and display members.
 	 */
 	private void start() {
-		frame = new JFrame( "Hospitality Members" );
+		frame = new JFrame( TITLE );
 		frame.setDefaultCloseOperation( JFrame.EXIT_ON_CLOSE );
 		frame.setLocation( 100, 100 );
 		contentPane = (JPanel) frame.getContentPane();
@@ -129,18 +186,92 @@ public class HospitalityMembers {
 
 		makeMenus();
 		makeContent();
-		HospitalityMembersFile.openFile( frame );
-		tree = HospitalityMembersFile.loadRecords( frame );
-		displayMembers();
-
-		if ( tree.isEmpty() ) {
-			clearAll();
-		} else {
-			displayMember( tree.get( tree.firstKey() ) );
-		}
+		findTimer.setRepeats( false );
 
 		frame.pack();
 		frame.setVisible( true );
+		load();
+	}
+
+	/**
+	 * Read all members and index them on a background thread, opening the
+	 * repository the first time, while the window is shown but disabled. Once
+	 * read, the members are displayed; the first time, the first member is
+	 * shown and the writer is started.
+	 */
+	private void load() {
+		Utility.setEnabledAll( contentPane, false );
+		Utility.setEnabledAll( frame.getJMenuBar(), false );
+		frame.setTitle( TITLE + " - Loading..." );
+
+		new SwingWorker<TreeMap<Integer, HospitalityMember>, Void>() {
+			private final boolean first = repository == null;
+			private MemberRepository opened = repository;
+			private final MemberGroups groups = new MemberGroups();
+
+			@Override
+			protected TreeMap<Integer, HospitalityMember> doInBackground() {
+				if ( first ) {
+					opened = MemberRepositories.open( frame );
+					opened.addMemberListener( nameIndex );
+					opened.addMemberListener( fuzzyIndex );
+				}
+
+				TreeMap<Integer, HospitalityMember> loaded = opened.findAll();
+
+				if ( loaded != null ) {
+					nameIndex.reset( loaded.values() );
+					fuzzyIndex.reset( loaded.values() );
+					groups.addAll( loaded.values() );
+				}
+
+				return loaded;
+			}
+
+			@Override
+			protected void done() {
+				TreeMap<Integer, HospitalityMember> loaded;
+				frame.setTitle( TITLE );
+
+				try {
+					loaded = get();
+				}
+				catch ( InterruptedException e ) {
+					return;
+				}
+				catch ( ExecutionException e ) {
+					Utility.showMessage( frame, "Loading members: "
+							+ e.getCause(), "Load Error",
+							JOptionPane.ERROR_MESSAGE );
+					return;
+				}
+
+				// the repository has reported why, leave the window disabled
+				if ( loaded == null ) {
+					return;
+				}
+
+				tree = loaded;
+				displayMembers();
+
+				if ( first ) {
+					repository = opened;
+					repository.addMemberListener( MemberListeners
+							.onEventThread( new TreeUpdater() ) );
+					writer = new MemberWriter( frame, repository );
+					MemberGroups.reportProblems( frame, groups.takeProblems() );
+
+					if ( tree.isEmpty() ) {
+						clearAll();
+					} else {
+						displayMember( tree.get( tree.firstKey() ) );
+					}
+				}
+
+				Utility.setEnabledAll( contentPane, true );
+				Utility.setEnabledAll( frame.getJMenuBar(), true );
+			}
+		}.execute();
 	}
 
 	/**
@@ -354,10 +485,23 @@ public class HospitalityMembers {
 				.setLayout( new BoxLayout( membersPanel, BoxLayout.Y_AXIS ) );
 		membersPanel.setBorder( BorderFactory.createEmptyBorder( 6, 6, 6, 6 ) );
 
-		membersTextArea = new JTextArea( 10, 25 );
-		membersTextArea.setFont( new Font( "Courier", Font.PLAIN, 12 ) );
+		membersTable = new JTable( membersModel );
+		membersTable.setFont( new Font( "Courier", Font.PLAIN, 12 ) );
+		membersTable.setPreferredScrollableViewportSize( new Dimension( 400,
+				160 ) );
+		membersTable.addMouseListener( new MouseAdapter() {
+			@Override
+			public void mouseClicked( MouseEvent e ) {
+				int row = membersTable.rowAtPoint( e.getPoint() );
+
+				if ( e.getClickCount() == 2 && row >= 0 ) {
+					displayMember( membersModel.getMember( row ) );
+					tabPane.setSelectedIndex( 0 );
+				}
+			}
+		} );
 
-		JScrollPane membersScrollPane = new JScrollPane( membersTextArea );
+		JScrollPane membersScrollPane = new JScrollPane( membersTable );
 		membersScrollPane
 				.setVerticalScrollBarPolicy( ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED );
 		membersScrollPane
@@ -532,6 +676,8 @@ public class HospitalityMembers {
 		textFindLastName = new JTextField();
 		textFindLastName.setPreferredSize( new Dimension( 250, 20 ) );
 		textFindLastName.setBorder( BorderFactory.createEtchedBorder() );
+		textFindLastName.getDocument().addDocumentListener(
+				new FindAsYouType() );
 		panel.add( textFindLastName );
 
 		return panel;
@@ -550,6 +696,8 @@ public class HospitalityMembers {
 		textFindFirstName = new JTextField();
 		textFindFirstName.setPreferredSize( new Dimension( 250, 20 ) );
 		textFindFirstName.setBorder( BorderFactory.createEtchedBorder() );
+		textFindFirstName.getDocument().addDocumentListener(
+				new FindAsYouType() );
 		panel.add( textFindFirstName );
 
 		return panel;
@@ -579,8 +727,9 @@ public class HospitalityMembers {
 				Integer number = Integer.parseInt( textNumber.getText() );
 
 				if ( tree.containsKey( number ) ) {
-					tree.remove( number );
-					updateFile();
+					membersModel.removeMember( tree.remove( number ) );
+					writer.delete( number );
+					refresh();
 				}
 			}
 		} );
@@ -626,11 +775,9 @@ public class HospitalityMembers {
 			textSchedWithName.setText( "" );
 		}
 
-		if ( hm.getLastScheduled() != null ) {
-			SimpleDateFormat formatter =
-					new SimpleDateFormat( HospitalityMember.DATE_FORMAT );
-			textLastScheduled
-					.setText( formatter.format( hm.getLastScheduled() ) );
+		if ( hm.getLastScheduledDay() != MemberRecord.NEVER ) {
+			textLastScheduled.setText( DayFormat.format( hm
+					.getLastScheduledDay() ) );
 		}
 		else {
 			textLastScheduled.setText( "" );
@@ -640,24 +787,15 @@ public class HospitalityMembers {
 	}
 
 	/**
-	 * Display all members and set last member number.
+	 * Display all members and set last member number. The table formats only
+	 * the rows it shows.
 	 */
 	private void displayMembers() {
-		int lastMemberNumber = 1;
-		membersTextArea.setText( "" );
+		membersModel.setMembers( tree );
 
 		if ( !tree.isEmpty() ) {
-			for ( int i : tree.keySet() ) {
-				HospitalityMember hm = tree.get( i );
-				membersTextArea.setText( membersTextArea.getText()
-						+ hm.toString() );
-				if ( lastMemberNumber <= hm.getMemberNumber() ) {
-					lastMemberNumber = hm.getMemberNumber() + 1;
-				}
-			}
+			HospitalityMember.raiseLastMemberNumber( tree.lastKey() + 1 );
 		}
-
-		HospitalityMember.setLastMemberNumber( lastMemberNumber );
 	}
 
 	/**
@@ -682,6 +820,13 @@ public class HospitalityMembers {
 
 			// Pull data from form and update tree
 			Integer number = Integer.parseInt( textNumber.getText() );
+
+			// another session may have taken the suggested number
+			if ( !tree.containsKey( number )
+					&& number.intValue() == HospitalityMember
+							.getLastMemberNumber() ) {
+				number = HospitalityMember.allocateMemberNumber();
+			}
 			String first = textFirstName.getText();
 			String last = textLastName.getText();
 			String schedWithStr = textScheduleWith.getText();
@@ -695,11 +840,11 @@ public class HospitalityMembers {
 			}
 
 			String lastSchedStr = textLastScheduled.getText();
-			Date lastSched = null;
+			int lastSched = MemberRecord.NEVER;
 
 			if ( lastSchedStr != null && !lastSchedStr.isEmpty() ) {
 				lastSched = checkLastSched();
-				if ( lastSched == null ) {
+				if ( lastSched == MemberRecord.NEVER ) {
 					return;
 				}
 			}
@@ -708,19 +853,159 @@ public class HospitalityMembers {
 			HospitalityMember hm =
 					new HospitalityMember( number, first, last, schedWith,
 							leader, lastSched );
-			tree.put( number, hm );
 
-			// Write to file and update members view
-			updateFile();
+			// Update members view now and save in the background, grouped
+			// with other saves; changes are made from the version on screen
+			writer.upsert( hm, tree.put( number, hm ), saveDone );
+			membersModel.putMember( hm );
+			refresh();
+		}
+	}
+
+	/**
+	 * Read the members a save found changed in another session again, on a
+	 * background thread, and show them in place of the changes made to them.
+	 * The other members saved with them were written and stay as they are.
+	 */
+	private class SaveDone implements MemberWriter.Done {
+		@Override
+		public void written( final List<Integer> conflicts ) {
+			if ( conflicts.isEmpty() ) {
+				return;
+			}
+
+			new SwingWorker<List<HospitalityMember>, Void>() {
+				@Override
+				protected List<HospitalityMember> doInBackground() {
+					List<HospitalityMember> read =
+							new ArrayList<HospitalityMember>();
+
+					for ( Integer number : conflicts ) {
+						read.add( repository.findById( number ) );
+					}
+
+					return read;
+				}
+
+				@Override
+				protected void done() {
+					List<HospitalityMember> read;
+
+					try {
+						read = get();
+					}
+					catch ( InterruptedException e ) {
+						return;
+					}
+					catch ( ExecutionException e ) {
+						Utility.showMessage( frame, "Loading members: "
+								+ e.getCause(), "Load Error",
+								JOptionPane.ERROR_MESSAGE );
+						return;
+					}
+
+					for ( int i = 0; i < conflicts.size(); i++ ) {
+						if ( read.get( i ) == null ) {
+							hideMember( conflicts.get( i ) );
+						}
+						else {
+							showMember( read.get( i ), read.get( i )
+									.getLastScheduledDay() );
+						}
+					}
+
+					String message =
+							"Members " + conflicts + " were changed in another "
+									+ "session and have been read again.\n"
+									+ "Please make your change again";
+					JOptionPane.showMessageDialog( frame, message,
+							"Member Changed", JOptionPane.WARNING_MESSAGE );
+				}
+			}.execute();
+		}
+	}
+
+	/**
+	 * Show the writes made by other windows and programs, on the event
+	 * thread. A member is only replaced by a later version than the one
+	 * shown, so this window's own saves, shown already, are left alone.
+	 */
+	private class TreeUpdater implements MemberListener {
+		@Override
+		public void membersUpdated( Collection<HospitalityMember> members ) {
+			for ( HospitalityMember hm : members ) {
+				show( hm, hm.getLastScheduledDay() );
+			}
+		}
+
+		@Override
+		public void memberRemoved( Integer number ) {
+			hideMember( number );
 		}
+
+		@Override
+		public void membersScheduled( Collection<HospitalityMember> members,
+				Date date ) {
+			int day = MemberRecord.toDay( date );
+
+			for ( HospitalityMember hm : members ) {
+				show( hm, day );
+			}
+		}
+
+		/**
+		 * Show a copy of a member, linked to the members shown, if it is
+		 * later than the one shown.
+		 */
+		private void show( HospitalityMember hm, int day ) {
+			HospitalityMember shown = tree.get( hm.getMemberNumber() );
+
+			if ( shown == null || hm.getVersion() > shown.getVersion() ) {
+				showMember( hm, day );
+			}
+		}
+	}
+
+	/**
+	 * Show a copy of a member read from the repository, linked to the
+	 * members shown, in place of the one shown.
+	 *
+	 * @param day
+	 *            - the member's last scheduled day
+	 */
+	private void showMember( HospitalityMember hm, int day ) {
+		HospitalityMember schedWith =
+				hm.getScheduleWith() == null ? null : tree.get( hm
+						.getScheduleWith().getMemberNumber() );
+		HospitalityMember copy =
+				new HospitalityMember( hm.getMemberNumber(), hm.getFirstName(),
+						hm.getLastName(), schedWith, hm.isTeamLeader(), day );
+		copy.setVersion( hm.getVersion() );
+		tree.put( copy.getMemberNumber(), copy );
+		membersModel.putMember( copy );
+		HospitalityMember.raiseLastMemberNumber( copy.getMemberNumber() + 1 );
 	}
 
 	/**
-	 * Update to file
+	 * Stop showing a member removed from the repository.
 	 */
-	private void updateFile() {
-		HospitalityMembersFile.updateFile( frame, tree );
-		displayMembers();
+	private void hideMember( Integer number ) {
+		HospitalityMember removed = tree.remove( number );
+
+		if ( removed != null ) {
+			membersModel.removeMember( removed );
+		}
+	}
+
+	/**
+	 * Ready the Member View for the next member after a change, which has
+	 * been shown in the members view row by row
+	 */
+	private void refresh() {
+		if ( !tree.isEmpty() ) {
+			HospitalityMember.raiseLastMemberNumber( tree.lastKey() + 1 );
+		}
+
 		clearAll();
 	}
 
@@ -774,19 +1059,17 @@ public class HospitalityMembers {
 	/**
 	 * Validate the "last scheduled date"
 	 * 
-	 * @return last scheduled date
+	 * @return last scheduled day, or {@link MemberRecord#NEVER} if there
+	 *         isn't a valid one
 	 */
-	private Date checkLastSched() {
+	private int checkLastSched() {
 		String lastSchedStr = textLastScheduled.getText();
-		Date lastSchedDate = null;
+		int lastSchedDay = MemberRecord.NEVER;
 		if ( lastSchedStr == null || lastSchedStr.isEmpty() )
-			return null;
-
-		SimpleDateFormat formatter =
-				new SimpleDateFormat( HospitalityMember.DATE_FORMAT );
+			return MemberRecord.NEVER;
 
 		try {
-			lastSchedDate = formatter.parse( lastSchedStr );
+			lastSchedDay = DayFormat.parse( lastSchedStr );
 		}
 		catch ( ParseException e ) {
 			String message =
@@ -794,10 +1077,10 @@ public class HospitalityMembers {
 							+ " format";
 			JOptionPane.showMessageDialog( frame, message, "Bad Date Format",
 					JOptionPane.ERROR_MESSAGE );
-			return null;
+			return MemberRecord.NEVER;
 		}
 
-		return lastSchedDate;
+		return lastSchedDay;
 	}
 
 	/**
@@ -887,37 +1170,145 @@ public class HospitalityMembers {
 	private class SearchListener implements ActionListener {
 		@Override
 		public void actionPerformed( ActionEvent e ) {
-			Collection<HospitalityMember> members = tree.values();
-			findTextArea.setText( "" );
 			String findLast = textFindLastName.getText();
 			String findFirst = textFindFirstName.getText();
 
-			if ( findLast.isEmpty() && findFirst.isEmpty() ) {
+			if ( findLast.trim().isEmpty() && findFirst.trim().isEmpty() ) {
+				findTextArea.setText( "" );
 				String message =
 						"Please enter last and/or first name and press Search";
 				JOptionPane.showMessageDialog( frame, message,
 						"Nothing to Search", JOptionPane.INFORMATION_MESSAGE );
+				return;
 			}
 
-			for ( HospitalityMember i : members ) {
-				if ( !findLast.isEmpty() ) {
-					if ( findLast.equals( i.getLastName() ) ) {
-						if ( findFirst.isEmpty() ) {
-							findTextArea.append( i.toFind() );
-						}
-						else {
-							if ( findFirst.equals( i.getFirstName() ) )
-								findTextArea.append( i.toFind() );
-						}
-					}
+			findTimer.stop();
+			startFind();
+		}
+	}
+
+	/**
+	 * Search again when a find field changes. Each change restarts
+	 * {@link #findTimer}, so the search starts once typing pauses rather than
+	 * on every key.
+	 */
+	private class FindAsYouType implements DocumentListener {
+		@Override
+		public void insertUpdate( DocumentEvent e ) {
+			findTimer.restart();
+		}
+
+		@Override
+		public void removeUpdate( DocumentEvent e ) {
+			findTimer.restart();
+		}
+
+		@Override
+		public void changedUpdate( DocumentEvent e ) {
+		}
+	}
+
+	/**
+	 * Search for the names in the find fields on the {@link #finder} thread.
+	 * A search still waiting or running is cancelled, and the results of any
+	 * search but the last are never shown, so the text area only ever shows
+	 * what was last typed. Called on the event thread.
+	 */
+	private void startFind() {
+		if ( lastFind != null ) {
+			lastFind.cancel( true );
+		}
+
+		lastFind =
+				finder.submit( new Find( textFindLastName.getText(),
+						textFindFirstName.getText(), ++findGeneration ) );
+	}
+
+	/**
+	 * Find members by name, through the name index. If no names start with
+	 * the ones given, the name may have been typed wrong, so find the members
+	 * whose names are closest to it instead. Only the indexes are read here;
+	 * the members are shown on the event thread.
+	 */
+	private class Find implements Runnable {
+		private final String findLast;
+		private final String findFirst;
+		private final int generation;
+
+		Find( String findLast, String findFirst, int generation ) {
+			this.findLast = findLast;
+			this.findFirst = findFirst;
+			this.generation = generation;
+		}
+
+		@Override
+		public void run() {
+			final List<Integer> found =
+					nameIndex.find( findLast, findFirst, MAX_FOUND + 1 );
+			final List<Integer> closest = new ArrayList<Integer>();
+
+			if ( found.isEmpty() && !Thread.currentThread().isInterrupted() ) {
+				for ( FuzzyNameIndex.Match match : fuzzyIndex.find( findLast
+						+ " " + findFirst, MAX_CLOSEST ) ) {
+					closest.add( match.getNumber() );
 				}
-				else {
-					if ( findFirst.equals( i.getFirstName() ) ) {
-						findTextArea.append( i.toFind() );
+			}
+
+			if ( Thread.currentThread().isInterrupted() ) {
+				return;
+			}
+
+			SwingUtilities.invokeLater( new Runnable() {
+				@Override
+				public void run() {
+					if ( generation == findGeneration ) {
+						showFound( found, closest );
 					}
 				}
+			} );
+		}
+	}
+
+	/**
+	 * Show the members found by a {@link Find}.
+	 * 
+	 * @param found
+	 *            - numbers of the members whose names start with the ones
+	 *            given, one more than {@link #MAX_FOUND} at most
+	 * @param closest
+	 *            - numbers of the members whose names are closest, if none
+	 *            were found
+	 */
+	private void showFound( List<Integer> found, List<Integer> closest ) {
+		StringBuilder sb = new StringBuilder();
+
+		for ( int i = 0; i < found.size() && i < MAX_FOUND; i++ ) {
+			HospitalityMember hm = tree.get( found.get( i ) );
+
+			if ( hm != null ) {
+				sb.append( hm.toFind() );
+			}
+		}
+
+		if ( found.size() > MAX_FOUND ) {
+			sb.append( "More than " + MAX_FOUND
+					+ " found, please type more of the name\n" );
+		}
+
+		if ( !closest.isEmpty() ) {
+			sb.append( "No names start with that. Closest names:\n" );
+		}
+
+		for ( Integer number : closest ) {
+			HospitalityMember hm = tree.get( number );
+
+			if ( hm != null ) {
+				sb.append( hm.toFind() );
 			}
 		}
+
+		findTextArea.setText( sb.toString() );
+		findTextArea.setCaretPosition( 0 );
 	}
 
 }
@@ -1,24 +1,32 @@
 package net.snortum.hospitality;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.jnlp.FileContents;
 import javax.jnlp.FileOpenService;
@@ -28,7 +36,17 @@ import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 
 /**
- * Deals with finding, opening, loading, and updating the data file.
+ * Deals with finding, opening, loading, and updating the data file. There is
+ * one of these for each data file, so several files, one for each site, can be
+ * loaded at once.
+ *
+ * <p>
+ * Programs sharing a local data file take its {@link DataFileLock} to load it
+ * or to change it, so one never reads the file and journal half way through
+ * another's change, and a compaction folds in every program's changes.
+ * Compactions run in the background, on a thread that takes the lock
+ * itself, so saving a member only ever appends to the journal.
+ * </p>
  * 
  * @author Knute Snortum, (c) copyright 2011-2013
  * @version 1.1
@@ -39,25 +57,52 @@ public class HospitalityMembersFile {
 	// Constants
 	private final static String DEFAULT_FILE_NAME = "HospitalityMembers.txt";
 	private final static boolean RUNNING_IN_JNLP = false;
-	//@formatter:off
-	private final static String RECORD_FORMAT =
-			"^(\\d+)\t"                  // number
-			+ "([^\t]+)\t"               // first name
-			+ "([^\t]+)\t"               // last name
-			+ "(\\d+)?\t"                // schedule with
-			+ "(true|false)\t"           // team leader
-			+ "(\\d{2}/\\d{2}/\\d{4})?"; // last scheduled
-	//@formatter:on
-	private final static SimpleDateFormat FORMATTER =
-			new SimpleDateFormat( HospitalityMember.DATE_FORMAT );
+	private final static int READ_BUFFER_SIZE = 64 * 1024;
+	private final static long PARALLEL_LOAD_SIZE = 4 * 1024 * 1024;
+	private final static int COMPACT_ENTRIES = 500;
+
+	// Compactions run on their own thread, one at a time, for every file
+	private final static ExecutorService compactor = Executors
+			.newSingleThreadExecutor( new ThreadFactory() {
+				@Override
+				public Thread newThread( Runnable r ) {
+					Thread thread = new Thread( r, "journal-compactor" );
+					thread.setDaemon( true );
+					return thread;
+				}
+			} );
 
 	// Fields
-	private static File file;
-	private static FileReader fileReader;
-	private static String fileName;
+	private File file;
+	private FileInputStream fileInput;
+	private String fileName;
+
+	private FileOpenService fos;
+	private FileContents fc;
+
+	private MemberJournal journal;
+	private SnapshotWriter snapshotWriter;
+	private DataFileLock lock;
+	private volatile long snapshotGeneration; // written with lock held
+	private Future<?> compaction; // guarded by this
+	private boolean binary = false;
 
-	private static FileOpenService fos;
-	private static FileContents fc;
+	/**
+	 * Use the default data file, HospitalityMembers.txt
+	 */
+	public HospitalityMembersFile() {
+		this( DEFAULT_FILE_NAME );
+	}
+
+	/**
+	 * Use a data file of your choosing, such as one for each site.
+	 * 
+	 * @param fileName
+	 *            - the data file
+	 */
+	public HospitalityMembersFile( String fileName ) {
+		this.fileName = fileName;
+	}
 
 	// Getters and setters
 
@@ -77,24 +122,24 @@ public class HospitalityMembersFile {
 	}
 
 	/**
-	 * @return the fileReader
+	 * @return the fileInput
 	 */
-	public FileReader getFileReader() {
-		return fileReader;
+	public FileInputStream getFileInput() {
+		return fileInput;
 	}
 
 	/**
-	 * @param myFileReader
-	 *            the fileReader to set
+	 * @param myFileInput
+	 *            the fileInput to set
 	 */
-	public void setFileReader( FileReader myFileReader ) {
-		fileReader = myFileReader;
+	public void setFileInput( FileInputStream myFileInput ) {
+		fileInput = myFileInput;
 	}
 
 	/**
 	 * @return the fileName
 	 */
-	public static String getFileName() {
+	public String getFileName() {
 		return fileName;
 	}
 
@@ -107,34 +152,49 @@ public class HospitalityMembersFile {
 	}
 
 	/**
-	 * Open file on local file system or while running JNLP
+	 * Open file on local file system or while running JNLP. The program
+	 * aborts if the file can't be opened.
 	 * 
 	 * @param frame
 	 *            - the container to display the error in
 	 */
-	public static void openFile( JFrame frame ) {
-		if ( RUNNING_IN_JNLP ) {
-			openFileJnlp( frame );
+	public void openFile( JFrame frame ) {
+		String error = open();
+
+		if ( error != null ) {
+			String message = error + "\nProgram will abort";
+			Utility.showMessage( frame, message, "Cannot Create File",
+					JOptionPane.ERROR_MESSAGE );
+			System.exit( 1 );
 		}
-		else {
-			openFileLocalFS( frame );
+	}
+
+	/**
+	 * Open file on local file system or while running JNLP, without aborting,
+	 * helper method for {@link MultiSiteScheduler}
+	 * 
+	 * @return an error message or null if the file is open
+	 */
+	String open() {
+		if ( RUNNING_IN_JNLP ) {
+			return openFileJnlp();
 		}
+
+		return openFileLocalFS();
 	}
 
 	/**
 	 * Open file contents in a JNLP environment
+	 * 
+	 * @return an error message or null if the file is open
 	 */
-	private static void openFileJnlp( JFrame frame ) {
+	private String openFileJnlp() {
 		try {
 			fos = (FileOpenService) ServiceManager
 					.lookup( "javax.jnlp.FileOpenService" );
 		}
 		catch ( UnavailableServiceException e ) {
-			String message = "FileOpenService not available: " + e.getMessage()
-					+ "\nProgram will abort";
-			JOptionPane.showMessageDialog( frame, message,
-					"Cannot Create File", JOptionPane.ERROR_MESSAGE );
-			System.exit( 1 );
+			return "FileOpenService not available: " + e.getMessage();
 		}
 
 		try {
@@ -142,70 +202,138 @@ public class HospitalityMembersFile {
 			fc = fos.openFileDialog( null, new String[] { "txt" } );
 		}
 		catch ( IOException e1 ) {
-			String message =
-					"Cannot get file content: " + e1.getMessage()
-							+ "\nProgram will abort";
-			JOptionPane.showMessageDialog( frame, message,
-					"Cannot Create File", JOptionPane.ERROR_MESSAGE );
-			System.exit( 1 );
+			return "Cannot get file content: " + e1.getMessage();
 		}
+
+		return null;
 	}
 
 	/**
-	 * Open data file, helper method for {@link Schedule#start()} and
-	 * {@link HospitalityMembers#start()}
+	 * Open data file, helper method for {@link #open()}
 	 * 
-	 * @param frame
-	 *            - JFrame in which to display the errors
+	 * @return an error message or null if the file is open
 	 */
-	private static void openFileLocalFS( JFrame frame ) {
-		fileName = DEFAULT_FILE_NAME;
+	private String openFileLocalFS() {
 		file = new File( fileName );
+		journal = new MemberJournal( file, Charset.defaultCharset() );
+		lock = DataFileLock.forFile( file );
+		snapshotWriter = new SnapshotWriter( file, Charset.defaultCharset() );
 
 		if ( !file.exists() ) {
 			try {
 				file.createNewFile();
 			}
 			catch ( IOException e ) {
-				String message =
-						"Cannot create file " + fileName
-								+ "\nProgram will abort";
-				JOptionPane.showMessageDialog( frame, message,
-						"Cannot Create File", JOptionPane.ERROR_MESSAGE );
-				System.exit( 1 );
+				return "Cannot create file " + fileName;
 			}
 		}
 
 		try {
-			fileReader = new FileReader( fileName );
+			fileInput = new FileInputStream( file );
 		}
 		catch ( FileNotFoundException e1 ) {
-			String message =
-					"Cannot open file " + fileName
-							+ " for reading\nProgram will abort";
-			JOptionPane.showMessageDialog( frame, message,
-					"Cannot Create File", JOptionPane.ERROR_MESSAGE );
-			System.exit( 1 );
+			return "Cannot open file " + fileName + " for reading";
 		}
+
+		return null;
 	}
 
 	/**
 	 * Load records from file, helper method for {@link Schedule#start()} and
-	 * {@link HospitalityMembers#start()}
+	 * {@link HospitalityMembers#start()}. A local file is read with its lock
+	 * held, and the journal is replayed over it.
 	 * 
 	 * @param frame
 	 *            - JFrame for errors
-	 * @return tree - treeMap of memberId => member object
+	 * @return tree - treeMap of memberId => member object, or null on error
 	 */
-	public static TreeMap<Integer, HospitalityMember>
+	public TreeMap<Integer, HospitalityMember>
 			loadRecords( JFrame frame ) {
+		if ( journal == null ) {
+			return readSnapshot( frame, true );
+		}
+
+		try {
+			lock.lock();
+		}
+		catch ( IOException e ) {
+			String message =
+					"Cannot lock " + file.getName() + ": " + e.getMessage();
+			Utility.showMessage( frame, message, "Bad Read",
+					JOptionPane.ERROR_MESSAGE );
+			return null;
+		}
+
+		try {
+			TreeMap<Integer, HospitalityMember> tree =
+					readSnapshot( frame, true );
+
+			if ( tree != null ) {
+				replayJournal( frame, tree );
+			}
+
+			return tree;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Read the data file without the journal, helper method for
+	 * {@link #loadRecords(JFrame)} and compaction
+	 * 
+	 * @param frame
+	 *            - JFrame for errors
+	 * @param report
+	 *            - true to warn about bad records
+	 * @return tree - treeMap of memberId => member object, or null on error
+	 */
+	private TreeMap<Integer, HospitalityMember> readSnapshot( JFrame frame,
+			boolean report ) {
+
+		if ( !RUNNING_IN_JNLP ) {
+			// the file is closed once read, so it's opened again to read again
+			if ( fileInput == null ) {
+				try {
+					fileInput = new FileInputStream( file );
+				}
+				catch ( FileNotFoundException e ) {
+					String message =
+							"Cannot open file " + fileName + " for reading";
+					Utility.showMessage( frame, message, "Bad Read",
+							JOptionPane.ERROR_MESSAGE );
+					return null;
+				}
+			}
+
+			// binary files are picked out by their magic header
+			try {
+				binary = BinaryRosterFormat.hasMagic( fileInput.getChannel() );
+			}
+			catch ( IOException e ) {
+				String message = "IO Exception reading " + file.getName();
+				Utility.showMessage( frame, message, "Bad Read",
+						JOptionPane.ERROR_MESSAGE );
+				return null;
+			}
+
+			if ( binary ) {
+				return loadRecordsBinary( frame );
+			}
+
+			// big local files are mapped and parsed on all processors
+			if ( file.length() >= PARALLEL_LOAD_SIZE ) {
+				return loadRecordsMapped( frame, report );
+			}
+		}
 
 		TreeMap<Integer, HospitalityMember> tree =
 				new TreeMap<Integer, HospitalityMember>();
 		Map<Integer, Integer> schedWithHash = new HashMap<Integer, Integer>();
-		Pattern p = Pattern.compile( RECORD_FORMAT, Pattern.CASE_INSENSITIVE );
+		List<String> badLines = new ArrayList<String>();
 
-		BufferedReader br;
+		ReadableByteChannel channel;
 		InputStream is;
 
 		if ( RUNNING_IN_JNLP ) {
@@ -217,86 +345,204 @@ public class HospitalityMembersFile {
 				String message =
 						"Getting InputStream from FileContent: "
 								+ e.getMessage();
-				JOptionPane.showMessageDialog( frame, message,
+				Utility.showMessage( frame, message,
 						"InputStream Error", JOptionPane.ERROR_MESSAGE );
 				return null;
 			}
-			br = new BufferedReader( new InputStreamReader( is ) );
+			channel = Channels.newChannel( is );
 		}
 		else {
-			br = new BufferedReader( fileReader );
+			is = fileInput;
+			channel = fileInput.getChannel();
 		}
 
-		// Read lines from the text file
-		while ( true ) {
-			String line;
-
+		try {
+			readText( channel, Charset.defaultCharset(), tree, schedWithHash,
+					badLines );
+		}
+		catch ( IOException e1 ) {
+			String message = "IO Exception reading " + file.getName();
+			Utility.showMessage( frame, message, "Bad Read",
+					JOptionPane.ERROR_MESSAGE );
+			return null;
+		}
+		finally {
 			try {
-				line = br.readLine();
+				channel.close();
+				is.close();
 			}
-			catch ( IOException e1 ) {
-				String message = "IO Exception reading " + file.getName();
-				JOptionPane.showMessageDialog( frame, message, "Bad Read",
-						JOptionPane.ERROR_MESSAGE );
-				return null;
+			catch ( IOException e5 ) {
 			}
 
-			if ( line == null ) {
-				break;
+			fileInput = null;
+		}
+
+		if ( report ) {
+			for ( String line : badLines ) {
+				reportBadRecord( frame, line );
 			}
+		}
 
-			// parse the line into a hospitality object
-			Matcher m = p.matcher( line );
+		linkScheduleWith( tree, schedWithHash );
 
-			if ( !m.find() ) {
-				String message =
-						"Bad record format\n\"" + line + "\"\nRecord skipped";
-				JOptionPane.showMessageDialog( frame, message, "Bad Record",
-						JOptionPane.WARNING_MESSAGE );
-				continue;
-			}
+		return tree;
+	}
 
-			int memberNo = Integer.parseInt( m.group( 1 ) );
-			String first = m.group( 2 );
-			String last = m.group( 3 );
+	/**
+	 * Read text records from a channel, a buffer at a time. Helper method for
+	 * {@link #loadRecords(JFrame)} and {@link RosterConverter}.
+	 * 
+	 * @param channel
+	 *            - channel to read to the end
+	 * @param charset
+	 *            - the character set of the data
+	 * @param tree
+	 *            - treeMap of memberId => member object to fill
+	 * @param schedWithHash
+	 *            - member number => schedule with number, to fill
+	 * @param badLines
+	 *            - lines not in record format, to fill
+	 * @throws IOException
+	 */
+	static void readText( ReadableByteChannel channel, Charset charset,
+			TreeMap<Integer, HospitalityMember> tree,
+			Map<Integer, Integer> schedWithHash, List<String> badLines )
+			throws IOException {
+		MemberRecordParser parser = new MemberRecordParser( charset );
+		ByteBuffer buf = ByteBuffer.allocate( READ_BUFFER_SIZE );
+		boolean eof = false;
 
-			if ( m.group( 4 ) != null ) {
-				// can't do "scheduleWith" yet, save values
-				schedWithHash.put( memberNo, Integer.parseInt( m.group( 4 ) ) );
-			}
+		// Read lines from the text file, a buffer at a time
+		while ( !eof ) {
+			eof = channel.read( buf ) < 0;
 
-			boolean leader = Boolean.parseBoolean( m.group( 5 ) );
-			String dateStr = m.group( 6 );
-			Date lastSched = null;
+			int limit = buf.position();
+			int lineStart = 0;
 
-			if ( dateStr != null ) {
-				try {
-					lastSched = FORMATTER.parse( dateStr );
-				}
-				catch ( ParseException e4 ) {
-					lastSched = null;
+			for ( int i = 0; i < limit; i++ ) {
+				if ( buf.get( i ) == '\n' ) {
+					parseLine( parser, buf, lineStart, i, charset, tree,
+							schedWithHash, badLines );
+					lineStart = i + 1;
 				}
 			}
 
-			tree.put( memberNo, new HospitalityMember( memberNo, first, last,
-					null, leader, lastSched ) );
+			// last line may not end in a new line
+			if ( eof && lineStart < limit ) {
+				parseLine( parser, buf, lineStart, limit, charset, tree,
+						schedWithHash, badLines );
+				lineStart = limit;
+			}
+
+			// keep the partial line, growing the buffer if it is full
+			buf.limit( limit );
+			buf.position( lineStart );
+			buf.compact();
 
+			if ( !buf.hasRemaining() ) {
+				ByteBuffer bigger = ByteBuffer.allocate( buf.capacity() * 2 );
+				buf.flip();
+				bigger.put( buf );
+				buf = bigger;
+			}
 		} // end Read Lines
+	}
+
+	/**
+	 * Load records from a binary file, helper method for
+	 * {@link #readSnapshot(JFrame, boolean)}
+	 * 
+	 * @param frame
+	 *            - JFrame for errors
+	 * @return tree - treeMap of memberId => member object
+	 */
+	private TreeMap<Integer, HospitalityMember> loadRecordsBinary(
+			JFrame frame ) {
+		TreeMap<Integer, HospitalityMember> tree;
 
 		try {
-			br.close();
+			tree = BinaryRosterFormat.read( fileInput.getChannel() );
+		}
+		catch ( IOException e ) {
+			String message =
+					"IO Exception reading " + file.getName() + ": "
+							+ e.getMessage();
+			Utility.showMessage( frame, message, "Bad Read",
+					JOptionPane.ERROR_MESSAGE );
+			return null;
+		}
+		finally {
+			try {
+				fileInput.close();
+			}
+			catch ( IOException e5 ) {
+			}
 
-			if ( RUNNING_IN_JNLP ) {
-				is.close();
+			fileInput = null;
+		}
+
+		return tree;
+	}
+
+	/**
+	 * Load records by memory mapping the file and parsing it in parallel,
+	 * helper method for {@link #readSnapshot(JFrame, boolean)}
+	 * 
+	 * @param frame
+	 *            - JFrame for errors
+	 * @param report
+	 *            - true to warn about bad records
+	 * @return tree - treeMap of memberId => member object
+	 */
+	private TreeMap<Integer, HospitalityMember> loadRecordsMapped(
+			JFrame frame, boolean report ) {
+		MappedRecordLoader loader = new MappedRecordLoader();
+
+		try {
+			loader.load( fileInput.getChannel(), Charset.defaultCharset() );
+		}
+		catch ( IOException e ) {
+			String message =
+					"IO Exception reading " + file.getName() + ": "
+							+ e.getMessage();
+			Utility.showMessage( frame, message, "Bad Read",
+					JOptionPane.ERROR_MESSAGE );
+			return null;
+		}
+		finally {
+			try {
+				fileInput.close();
 			}
-			else {
-				fileReader.close();
+			catch ( IOException e5 ) {
 			}
+
+			fileInput = null;
 		}
-		catch ( IOException e5 ) {
+
+		if ( report ) {
+			for ( String line : loader.getBadLines() ) {
+				reportBadRecord( frame, line );
+			}
 		}
 
-		// put "scheduleWith" into tree now
+		TreeMap<Integer, HospitalityMember> tree = loader.getTree();
+		linkScheduleWith( tree, loader.getSchedWithHash() );
+
+		return tree;
+	}
+
+	/**
+	 * Put "scheduleWith" into tree once all records are read, helper method
+	 * for {@link #loadRecords(JFrame)} and {@link RosterConverter}
+	 * 
+	 * @param tree
+	 *            - treeMap of memberId => member object
+	 * @param schedWithHash
+	 *            - member number => schedule with number
+	 */
+	static void linkScheduleWith(
+			TreeMap<Integer, HospitalityMember> tree,
+			Map<Integer, Integer> schedWithHash ) {
 		if ( !schedWithHash.isEmpty() ) {
 			for ( int i : schedWithHash.keySet() ) {
 				HospitalityMember hm = tree.get( i );
@@ -306,8 +552,86 @@ public class HospitalityMembersFile {
 				tree.put( i, hm );
 			}
 		}
+	}
 
-		return tree;
+	/**
+	 * Replay the journal over records loaded from the snapshot, with the lock
+	 * held, helper method for {@link #loadRecords(JFrame)}. A rotated journal
+	 * left by an older version is folded into the data file now.
+	 * 
+	 * @param frame
+	 *            - JFrame for errors
+	 * @param tree
+	 *            - treeMap of memberId => member object
+	 */
+	private void replayJournal( JFrame frame,
+			TreeMap<Integer, HospitalityMember> tree ) {
+		try {
+			snapshotGeneration = lock.getGeneration();
+			journal.replay( tree );
+		}
+		catch ( IOException e ) {
+			String message =
+					"Cannot replay journal for " + fileName + ": "
+							+ e.getMessage();
+			Utility.showMessage( frame, message, "Bad Read",
+					JOptionPane.ERROR_MESSAGE );
+			return;
+		}
+
+		if ( journal.isRotated() ) {
+			try {
+				snapshotGeneration = compact( tree );
+			}
+			catch ( IOException e ) {
+				reportJournalError( frame, e );
+			}
+		}
+	}
+
+	/**
+	 * Warn that a line was skipped
+	 * 
+	 * @param frame
+	 *            - JFrame for errors
+	 * @param line
+	 *            - the bad line
+	 */
+	private static void reportBadRecord( JFrame frame, String line ) {
+		String message = "Bad record format\n\"" + line + "\"\nRecord skipped";
+		Utility.showMessage( frame, message, "Bad Record",
+				JOptionPane.WARNING_MESSAGE );
+	}
+
+	/**
+	 * Parse one line into the tree, helper method for
+	 * {@link #readText(ReadableByteChannel, Charset, TreeMap, Map, List)}
+	 * 
+	 * @param end
+	 *            - index of the new line or end of data
+	 */
+	private static void parseLine( MemberRecordParser parser, ByteBuffer buf,
+			int start, int end, Charset charset,
+			TreeMap<Integer, HospitalityMember> tree,
+			Map<Integer, Integer> schedWithHash, List<String> badLines ) {
+
+		// drop the carriage return from DOS files
+		if ( end > start && buf.get( end - 1 ) == '\r' ) {
+			end--;
+		}
+
+		HospitalityMember hm = parser.parse( buf, start, end, schedWithHash );
+
+		if ( hm == null ) {
+			byte[] bytes = new byte[end - start];
+			for ( int i = 0; i < bytes.length; i++ ) {
+				bytes[i] = buf.get( start + i );
+			}
+			badLines.add( new String( bytes, charset ) );
+			return;
+		}
+
+		tree.put( hm.getMemberNumber(), hm );
 	}
 
 	/**
@@ -319,71 +643,487 @@ public class HospitalityMembersFile {
 	 * @param tree
 	 *            - treeMap of memberId => member object
 	 */
-	public static void updateFile( JFrame frame,
+	public void updateFile( JFrame frame,
 			Map<Integer, HospitalityMember> tree ) {
 
 		if ( tree == null ) {
 			String message = "Nothing to write to file";
-			JOptionPane.showMessageDialog( frame, message, "Nothing to write",
+			Utility.showMessage( frame, message, "Nothing to write",
 					JOptionPane.WARNING_MESSAGE );
 			return;
 		}
 
+		if ( !RUNNING_IN_JNLP ) {
+			try {
+				if ( binary ) {
+					snapshotWriter.writeBuffer( BinaryRosterFormat.encode( tree
+							.values() ) );
+				}
+				else {
+					snapshotWriter.writeMembers( tree.values() );
+				}
+			}
+			catch ( IOException e1 ) {
+				String message =
+						"Cannot write file \"" + fileName + "\": "
+								+ e1.getMessage()
+								+ "\nThe file has not been changed";
+				Utility.showMessage( frame, message,
+						"File Write Error", JOptionPane.ERROR_MESSAGE );
+			}
+			return;
+		}
+
 		BufferedWriter bw;
 		OutputStream os;
 
-		if ( RUNNING_IN_JNLP ) {
+		try {
+			os = fc.getOutputStream( true );
+		}
+		catch ( IOException e ) {
+			String message =
+					"Getting OutputStream from FileContent: "
+							+ e.getMessage();
+			Utility.showMessage( frame, message,
+					"OutputStream Error", JOptionPane.ERROR_MESSAGE );
+			return;
+		}
+
+		bw = new BufferedWriter( new OutputStreamWriter( os ) );
+
+		for ( HospitalityMember myHM : tree.values() ) {
+			try {
+				bw.write( myHM.toFile() );
+			}
+			catch ( IOException e2 ) {
+				String message = "Writing to file: " + e2.getMessage();
+				Utility.showMessage( frame, message,
+						"File Write Error", JOptionPane.ERROR_MESSAGE );
+				break;
+			}
+		}
+
+		try {
+			os.close();
+		}
+		catch ( IOException e3 ) {
+		}
+
+		try {
+			bw.close();
+		}
+		catch ( IOException e4 ) {
+		}
+	}
+
+	/**
+	 * Lock the data file against other programs, helper method for
+	 * {@link TextMemberRepository}. Nothing is locked when running JNLP. Every
+	 * call that returns true must be matched by a call to {@link #unlock()}.
+	 * 
+	 * @param frame
+	 *            - JFrame to display error in
+	 * @return false if the file can't be locked, which has been reported
+	 */
+	boolean lock( JFrame frame ) {
+		if ( journal == null ) {
+			return true;
+		}
+
+		try {
+			lock.lock();
+			return true;
+		}
+		catch ( IOException e ) {
+			String message =
+					"Cannot lock " + fileName + ": " + e.getMessage()
+							+ "\nNothing has been changed";
+			Utility.showMessage( frame, message, "File Write Error",
+					JOptionPane.ERROR_MESSAGE );
+			return false;
+		}
+	}
+
+	/**
+	 * Let other programs have the data file again.
+	 */
+	void unlock() {
+		if ( journal != null ) {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Let go of the data file once it is no longer used, helper method for
+	 * {@link TextMemberRepository#close()}. A compaction already started is
+	 * finished first. The file can't be used after this.
+	 */
+	void close() {
+		Future<?> pending;
+
+		synchronized ( this ) {
+			pending = compaction;
+			compaction = null;
+		}
+
+		if ( pending != null ) {
 			try {
-				os = fc.getOutputStream( true );
+				pending.get();
+			}
+			catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			}
+			catch ( ExecutionException e ) {
+				// the compaction has reported it
+			}
+		}
+
+		if ( fileInput != null ) {
+			try {
+				fileInput.close();
 			}
 			catch ( IOException e ) {
-				String message =
-						"Getting OutputStream from FileContent: "
-								+ e.getMessage();
-				JOptionPane.showMessageDialog( frame, message,
-						"OutputStream Error", JOptionPane.ERROR_MESSAGE );
-				return;
+				// it was only read from
 			}
 
-			bw = new BufferedWriter( new OutputStreamWriter( os ) );
+			fileInput = null;
 		}
-		else {
+
+		if ( lock != null ) {
+			lock.release();
+			lock = null;
+		}
+	}
+
+	/**
+	 * Check, without locking, whether another program has changed the file
+	 * since this one last read or wrote it, helper method for
+	 * {@link TextMemberRepository}. Never true when running JNLP.
+	 * 
+	 * @return true if {@link #catchUp(JFrame, MemberStore)} has something to
+	 *         read
+	 */
+	boolean changedElsewhere() {
+		if ( journal == null ) {
+			return false;
+		}
+
+		try {
+			return lock.getGeneration() != snapshotGeneration
+					|| journal.hasNew();
+		}
+		catch ( IOException e ) {
+			// the next write will report it
+			return false;
+		}
+	}
+
+	/**
+	 * Bring members up to date with the changes other programs have made to
+	 * the file since it was loaded, with the file locked, helper method for
+	 * {@link TextMemberRepository}. Their entries are read from the journal;
+	 * if another program has rewritten the data file, it is read again.
+	 * 
+	 * @param frame
+	 *            - JFrame to display error in
+	 * @param store
+	 *            - the members as loaded from this file, to bring up to date
+	 * @return the numbers of the members added, changed or removed, or null if
+	 *         the file couldn't be read, which has been reported
+	 */
+	Set<Integer> catchUp( JFrame frame, final MemberStore store ) {
+		final Set<Integer> changed = new HashSet<Integer>();
+
+		if ( journal == null ) {
+			return changed;
+		}
+
+		try {
+			if ( lock.getGeneration() == snapshotGeneration
+					&& !journal.isRotated()
+					&& journal.replayNew( new MemberJournal.Target() {
+						@Override
+						public void upsert( MemberRecord record ) {
+							store.applyUpsert( record );
+							changed.add( record.getNumber() );
+						}
+
+						@Override
+						public void delete( Integer number ) {
+							store.applyDelete( number );
+							changed.add( number );
+						}
+
+						@Override
+						public void scheduled( Integer number, int day ) {
+							store.applyScheduled( number, day );
+							changed.add( number );
+						}
+					} ) ) {
+				return changed;
+			}
+		}
+		catch ( IOException e ) {
+			String message =
+					"Cannot replay journal for " + fileName + ": "
+							+ e.getMessage();
+			Utility.showMessage( frame, message, "Bad Read",
+					JOptionPane.ERROR_MESSAGE );
+			return null;
+		}
+
+		TreeMap<Integer, HospitalityMember> tree = readSnapshot( frame, false );
+
+		if ( tree == null ) {
+			return null;
+		}
+
+		replayJournal( frame, tree );
+		changed.addAll( store.reload( tree ) );
+		return changed;
+	}
+
+	/**
+	 * Record new or changed members, helper method for
+	 * {@link TextMemberRepository}. Only the members are appended to the
+	 * journal; the whole file is written when running JNLP.
+	 * 
+	 * @param frame
+	 *            - JFrame to display error in
+	 * @param store
+	 *            - the members, already updated
+	 * @param members
+	 *            - the members that changed
+	 */
+	public void journalUpsert( JFrame frame,
+			MemberStore store, Collection<HospitalityMember> members ) {
+		if ( journal == null ) {
+			updateFile( frame, store.snapshot() );
+			return;
+		}
+
+		try {
+			lock.lock();
 			try {
-				bw = new BufferedWriter( new FileWriter( fileName ) );
+				journal.appendUpsert( members );
+				compactLater( frame, store );
 			}
-			catch ( IOException e1 ) {
-				String message =
-						"Cannot open file \"" + fileName + "\" for writing";
-				JOptionPane.showMessageDialog( frame, message,
-						"File Open Error", JOptionPane.ERROR_MESSAGE );
-				return;
+			finally {
+				lock.unlock();
 			}
 		}
+		catch ( IOException e ) {
+			reportJournalError( frame, e );
+		}
+	}
 
-		for ( HospitalityMember myHM : tree.values() ) {
+	/**
+	 * Record a removed member, helper method for {@link TextMemberRepository}
+	 * 
+	 * @param frame
+	 *            - JFrame to display error in
+	 * @param store
+	 *            - the members, already updated
+	 * @param number
+	 *            - the member number removed
+	 */
+	public void journalDelete( JFrame frame,
+			MemberStore store, Integer number ) {
+		if ( journal == null ) {
+			updateFile( frame, store.snapshot() );
+			return;
+		}
+
+		try {
+			lock.lock();
 			try {
-				bw.write( myHM.toFile() );
+				journal.appendDelete( number );
+				compactLater( frame, store );
 			}
-			catch ( IOException e2 ) {
-				String message = "Writing to file: " + e2.getMessage();
-				JOptionPane.showMessageDialog( frame, message,
-						"File Write Error", JOptionPane.ERROR_MESSAGE );
+			finally {
+				lock.unlock();
 			}
 		}
+		catch ( IOException e ) {
+			reportJournalError( frame, e );
+		}
+	}
 
-		if ( RUNNING_IN_JNLP ) {
+	/**
+	 * Record the last scheduled date of members, helper method for
+	 * {@link TextMemberRepository}
+	 * 
+	 * @param frame
+	 *            - JFrame to display error in
+	 * @param store
+	 *            - the members, already updated
+	 * @param members
+	 *            - members that were scheduled
+	 * @param date
+	 *            - date they were scheduled
+	 */
+	public void journalScheduled( JFrame frame,
+			MemberStore store, Collection<HospitalityMember> members, Date date ) {
+		if ( journal == null ) {
+			updateFile( frame, store.snapshot() );
+			return;
+		}
+
+		try {
+			lock.lock();
 			try {
-				os.close();
+				journal.appendScheduled( members, date );
+				compactLater( frame, store );
 			}
-			catch ( IOException e3 ) {
+			finally {
+				lock.unlock();
 			}
 		}
+		catch ( IOException e ) {
+			reportJournalError( frame, e );
+		}
+	}
+
+	/**
+	 * Record a whole schedule, many dates, in one append, helper method for
+	 * {@link TextMemberRepository}
+	 * 
+	 * @param frame
+	 *            - JFrame to display error in
+	 * @param store
+	 *            - the members, already updated
+	 * @param plan
+	 *            - date => members scheduled on that date
+	 */
+	public void journalSchedule( JFrame frame,
+			MemberStore store, SortedMap<Date, List<HospitalityMember>> plan ) {
+		if ( journal == null ) {
+			updateFile( frame, store.snapshot() );
+			return;
+		}
 
 		try {
-			bw.close();
+			lock.lock();
+			try {
+				journal.appendSchedule( plan );
+				compactLater( frame, store );
+			}
+			finally {
+				lock.unlock();
+			}
 		}
-		catch ( IOException e4 ) {
+		catch ( IOException e ) {
+			reportJournalError( frame, e );
+		}
+	}
+
+	/**
+	 * Start a compaction on the compactor thread once the journal is long
+	 * enough, unless one is waiting or running already. The lock must be
+	 * held; the compaction takes it again when it runs, so an append never
+	 * waits for the data file to be written.
+	 */
+	private void compactLater( final JFrame frame, final MemberStore store ) {
+		if ( journal.getEntries() < COMPACT_ENTRIES ) {
+			return;
+		}
+
+		synchronized ( this ) {
+			if ( compaction != null && !compaction.isDone() ) {
+				return;
+			}
+
+			compaction = compactor.submit( new Runnable() {
+				@Override
+				public void run() {
+					try {
+						lock.lock();
+						try {
+							compactIfNeeded( frame, store );
+						}
+						finally {
+							lock.unlock();
+						}
+					}
+					catch ( IOException e ) {
+						reportJournalError( frame, e );
+					}
+				}
+			} );
+		}
+	}
+
+	/**
+	 * Compact if the journal is still long enough, helper method for
+	 * {@link #compactLater(JFrame, MemberStore)}. The lock must be held.
+	 *
+	 * <p>
+	 * If no other program has changed the files since the members here were
+	 * last caught up, they are what is folded in. Otherwise the data file is
+	 * read and the whole journal replayed over it, and the members here are
+	 * left behind the new data file, so the next catch up reads it.
+	 * </p>
+	 */
+	private void compactIfNeeded( JFrame frame, MemberStore store )
+			throws IOException {
+		if ( journal.getEntries() < COMPACT_ENTRIES ) {
+			return;
 		}
+
+		boolean current =
+				lock.getGeneration() == snapshotGeneration && !journal.hasNew();
+		TreeMap<Integer, HospitalityMember> tree =
+				current ? store.snapshot() : readSnapshot( frame, false );
+
+		if ( tree == null ) {
+			return; // already reported
+		}
+
+		if ( !current ) {
+			journal.replay( tree );
+		}
+
+		long generation = compact( tree );
+
+		if ( current ) {
+			snapshotGeneration = generation;
+		}
+	}
+
+	/**
+	 * Fold the journal into a fresh data file, with the lock held. The
+	 * generation moves on before the journal is cleared, so a crash in
+	 * between only leaves entries to be replayed again, which changes
+	 * nothing.
+	 * 
+	 * @param tree
+	 *            - treeMap of memberId => member object, with every entry of
+	 *            the journal in it
+	 * @return the data file's new generation
+	 */
+	private long compact( Map<Integer, HospitalityMember> tree )
+			throws IOException {
+		if ( binary ) {
+			snapshotWriter.writeBuffer( BinaryRosterFormat.encode( tree
+					.values() ) );
+		}
+		else {
+			snapshotWriter.writeMembers( tree.values() );
+		}
+
+		long generation = lock.nextGeneration();
+		journal.clear();
+		return generation;
+	}
+
+	/**
+	 * Show a journal error
+	 */
+	private void reportJournalError( JFrame frame, IOException e ) {
+		String message = "Writing journal for " + fileName + ": "
+				+ e.getMessage();
+		Utility.showMessage( frame, message, "File Write Error",
+				JOptionPane.ERROR_MESSAGE );
 	}
 
 }
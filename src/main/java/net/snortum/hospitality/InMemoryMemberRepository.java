@@ -0,0 +1,119 @@
+package net.snortum.hospitality;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Members kept only in memory. Nothing is saved; this is for trying the
+ * program out and for tests. Safe to share between sessions; see
+ * {@link MemberStore}.
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public class InMemoryMemberRepository implements MemberRepository {
+
+	// Fields
+	private final MemberStore store = new MemberStore();
+	private final MemberListeners listeners = new MemberListeners();
+
+	/**
+	 * Create an empty repository.
+	 */
+	public InMemoryMemberRepository() {
+	}
+
+	/**
+	 * Create a repository holding some members.
+	 *
+	 * @param members
+	 *            - the starting members
+	 */
+	public InMemoryMemberRepository( Collection<HospitalityMember> members ) {
+		upsertAll( members );
+	}
+
+	@Override
+	public TreeMap<Integer, HospitalityMember> findAll() {
+		return store.snapshot();
+	}
+
+	@Override
+	public HospitalityMember findById( Integer number ) {
+		return store.get( number );
+	}
+
+	@Override
+	public List<HospitalityMember> findOldest( int limit ) {
+		return store.oldest( limit, false );
+	}
+
+	@Override
+	public List<HospitalityMember> findOldestTeamLeaders( int limit ) {
+		return store.oldest( limit, true );
+	}
+
+	@Override
+	public List<HospitalityMember> findScheduledWith( Integer number ) {
+		return store.scheduledWith( number );
+	}
+
+	@Override
+	public List<Integer> upsertAll( Collection<HospitalityMember> members ) {
+		List<Integer> conflicts = store.upsertAll( members );
+
+		if ( conflicts.isEmpty() ) {
+			listeners.fireUpdated( members );
+		}
+
+		return conflicts;
+	}
+
+	@Override
+	public void delete( Integer number ) {
+		if ( store.delete( number ) ) {
+			listeners.fireRemoved( number );
+		}
+	}
+
+	@Override
+	public List<Integer> recordScheduled(
+			Collection<HospitalityMember> members, Date date ) {
+		List<Integer> conflicts = store.recordScheduled( members, date );
+
+		if ( conflicts.isEmpty() ) {
+			listeners.fireScheduled( members, date );
+		}
+
+		return conflicts;
+	}
+
+	@Override
+	public List<Integer> recordSchedule(
+			SortedMap<Date, List<HospitalityMember>> plan ) {
+		List<Integer> conflicts = store.recordSchedule( plan );
+
+		if ( conflicts.isEmpty() ) {
+			for ( Date date : plan.keySet() ) {
+				listeners.fireScheduled( plan.get( date ), date );
+			}
+		}
+
+		return conflicts;
+	}
+
+	@Override
+	public void addMemberListener( MemberListener listener ) {
+		listeners.add( listener );
+	}
+
+	@Override
+	public void removeMemberListener( MemberListener listener ) {
+		listeners.remove( listener );
+	}
+
+}
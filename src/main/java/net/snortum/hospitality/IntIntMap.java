@@ -0,0 +1,129 @@
+package net.snortum.hospitality;
+
+import java.util.Arrays;
+
+/**
+ * A map from int to int with no boxing, helper class for {@link MemberTable}
+ * and {@link MappedMemberStore}. Keys and values sit in two arrays, found by
+ * open addressing with linear probing, so a lookup is a multiply, a shift and
+ * usually one or two array reads. The table is kept at most half full.
+ * Entries can't be removed, but a key can be put back to {@link #MISSING}.
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class IntIntMap {
+
+	// Constants
+	/** Returned by {@link #get(int)} for a key not in the map */
+	final static int MISSING = -1;
+	private final static int FREE = Integer.MIN_VALUE;
+
+	// Fields
+	private int[] keys;
+	private int[] values;
+	private int size;
+	private int shift;
+
+	/**
+	 * @param expected
+	 *            - how many entries to make room for
+	 */
+	IntIntMap( int expected ) {
+		int capacity = 16;
+
+		while ( capacity < expected * 2 ) {
+			capacity <<= 1;
+		}
+
+		allocate( capacity );
+	}
+
+	/**
+	 * @param key
+	 *            - any int but Integer.MIN_VALUE
+	 * @return the value or {@link #MISSING}
+	 */
+	int get( int key ) {
+		int mask = keys.length - 1;
+
+		for ( int i = slot( key ); ; i = ( i + 1 ) & mask ) {
+			if ( keys[i] == key ) {
+				return values[i];
+			}
+
+			if ( keys[i] == FREE ) {
+				return MISSING;
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 *            - any int but Integer.MIN_VALUE
+	 * @param value
+	 *            - the value
+	 */
+	void put( int key, int value ) {
+		if ( key == FREE ) {
+			throw new IllegalArgumentException( "Key " + key + " can't be used" );
+		}
+
+		if ( ( size + 1 ) * 2 > keys.length ) {
+			grow();
+		}
+
+		int mask = keys.length - 1;
+		int i = slot( key );
+
+		while ( keys[i] != FREE && keys[i] != key ) {
+			i = ( i + 1 ) & mask;
+		}
+
+		if ( keys[i] == FREE ) {
+			keys[i] = key;
+			size++;
+		}
+
+		values[i] = value;
+	}
+
+	int size() {
+		return size;
+	}
+
+	// Private methods
+
+	/**
+	 * @return where to start looking for a key: Fibonacci hashing, so keys
+	 *         that go up by one spread across the table
+	 */
+	private int slot( int key ) {
+		return ( key * 0x9E3779B9 ) >>> shift;
+	}
+
+	private void allocate( int capacity ) {
+		keys = new int[capacity];
+		values = new int[capacity];
+		Arrays.fill( keys, FREE );
+		shift = 32 - Integer.numberOfTrailingZeros( capacity );
+	}
+
+	/**
+	 * Double the table and put every entry back.
+	 */
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate( keys.length * 2 );
+		size = 0;
+
+		for ( int i = 0; i < oldKeys.length; i++ ) {
+			if ( oldKeys[i] != FREE ) {
+				put( oldKeys[i], oldValues[i] );
+			}
+		}
+	}
+
+}
@@ -0,0 +1,754 @@
+package net.snortum.hospitality;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+
+/**
+ * Members kept in an embedded, file local database such as H2 or SQLite,
+ * through JDBC. The driver must be on the class path; no server is needed.
+ * Each write is one batch of prepared statements in one transaction. The last
+ * scheduled date is indexed, alone and with team leader, so selection reads
+ * only the oldest rows instead of the whole roster; "schedule with" is indexed
+ * too, for finding a member's group. Updates name the version
+ * they were read at in their WHERE clause, so a row changed by another
+ * session isn't updated and the transaction is rolled back.
+ *
+ * <p>
+ * There is one connection, shared by the window, the writer thread and the
+ * threads that load, so its methods are synchronized: a read never runs
+ * inside another thread's transaction, and one write's commit or rollback
+ * never ends another's.
+ * </p>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public class JdbcMemberRepository implements MemberRepository {
+
+	// Constants
+	//@formatter:off
+	private final static String CREATE_TABLE =
+			"CREATE TABLE IF NOT EXISTS member ("
+			+ " member_number INTEGER NOT NULL PRIMARY KEY,"
+			+ " first_name VARCHAR(100) NOT NULL,"
+			+ " last_name VARCHAR(100) NOT NULL,"
+			+ " schedule_with INTEGER,"
+			+ " team_leader BOOLEAN NOT NULL,"
+			+ " last_scheduled DATE,"
+			+ " version INTEGER DEFAULT 0 NOT NULL )";
+	private final static String ADD_VERSION =
+			"ALTER TABLE member ADD COLUMN version INTEGER DEFAULT 0 NOT NULL";
+	private final static String[] CREATE_INDEXES = {
+			"CREATE INDEX IF NOT EXISTS member_last_scheduled"
+			+ " ON member (last_scheduled, member_number)",
+			"CREATE INDEX IF NOT EXISTS member_leader_scheduled"
+			+ " ON member (team_leader, last_scheduled)",
+			"CREATE INDEX IF NOT EXISTS member_schedule_with"
+			+ " ON member (schedule_with)" };
+	//@formatter:on
+	private final static String COLUMNS =
+			"member_number, first_name, last_name, schedule_with, "
+					+ "team_leader, last_scheduled, version";
+	private final static String SELECT_ALL = "SELECT " + COLUMNS
+			+ " FROM member";
+	private final static String SELECT_ONE = SELECT_ALL
+			+ " WHERE member_number = ?";
+	private final static String SELECT_OLDEST = SELECT_ALL
+			+ " ORDER BY last_scheduled, member_number LIMIT ?";
+	private final static String SELECT_OLDEST_LEADERS = SELECT_ALL
+			+ " WHERE team_leader = ?"
+			+ " ORDER BY last_scheduled, member_number LIMIT ?";
+	private final static String SELECT_SCHEDULED_WITH = SELECT_ALL
+			+ " WHERE schedule_with = ? ORDER BY member_number";
+	private final static int MAX_IN_LIST = 100;
+	private final static String DELETE =
+			"DELETE FROM member WHERE member_number = ?";
+	private final static String INSERT = "INSERT INTO member (" + COLUMNS
+			+ ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+	private final static String SELECT_VERSION =
+			"SELECT version FROM member WHERE member_number = ?";
+	private final static String UPDATE_MEMBER = "UPDATE member SET"
+			+ " first_name = ?, last_name = ?, schedule_with = ?,"
+			+ " team_leader = ?, last_scheduled = ?, version = version + 1"
+			+ " WHERE member_number = ? AND version = ?";
+	private final static String UPDATE_SCHEDULED = "UPDATE member SET"
+			+ " last_scheduled = ?, version = version + 1"
+			+ " WHERE member_number = ? AND version = ?";
+
+	// Fields
+	private final JFrame frame;
+	private final Connection connection;
+	private final MemberListeners listeners = new MemberListeners();
+
+	/**
+	 * Connect to the database and create the member table if needed.
+	 *
+	 * @param frame
+	 *            - JFrame in which to display the errors
+	 * @param url
+	 *            - JDBC URL, such as <code>jdbc:h2:./HospitalityMembers</code>
+	 * @throws SQLException
+	 *             if the database can't be opened
+	 */
+	public JdbcMemberRepository( JFrame frame, String url )
+			throws SQLException {
+		this.frame = frame;
+		this.connection = DriverManager.getConnection( url );
+		createSchema();
+	}
+
+	@Override
+	public synchronized TreeMap<Integer, HospitalityMember> findAll() {
+		TreeMap<Integer, HospitalityMember> tree =
+				new TreeMap<Integer, HospitalityMember>();
+		Map<Integer, Integer> schedWithHash = new HashMap<Integer, Integer>();
+
+		try {
+			Statement stmt = connection.createStatement();
+			try {
+				ResultSet rs = stmt.executeQuery( SELECT_ALL );
+				while ( rs.next() ) {
+					HospitalityMember hm = toMember( rs, schedWithHash );
+					tree.put( hm.getMemberNumber(), hm );
+				}
+			}
+			finally {
+				stmt.close();
+			}
+		}
+		catch ( SQLException e ) {
+			reportError( "Reading members", e );
+			return null;
+		}
+
+		HospitalityMembersFile.linkScheduleWith( tree, schedWithHash );
+		return tree;
+	}
+
+	/**
+	 * Load one member. The "schedule with" member is loaded too, but its own
+	 * "schedule with" is not linked.
+	 */
+	@Override
+	public synchronized HospitalityMember findById( Integer number ) {
+		try {
+			Map<Integer, Integer> schedWithHash =
+					new HashMap<Integer, Integer>();
+			HospitalityMember hm = selectOne( number, schedWithHash );
+
+			if ( hm != null && schedWithHash.containsKey( number ) ) {
+				hm.setScheduleWith( selectOne( schedWithHash.get( number ),
+						new HashMap<Integer, Integer>() ) );
+			}
+
+			return hm;
+		}
+		catch ( SQLException e ) {
+			reportError( "Reading member " + number, e );
+			return null;
+		}
+	}
+
+	/**
+	 * Stream the oldest members off the last scheduled index. Only
+	 * <code>limit</code> rows are read, however big the roster is.
+	 */
+	@Override
+	public synchronized List<HospitalityMember> findOldest( int limit ) {
+		try {
+			PreparedStatement select =
+					connection.prepareStatement( SELECT_OLDEST );
+			try {
+				select.setInt( 1, limit );
+				return selectLinked( select, limit );
+			}
+			finally {
+				select.close();
+			}
+		}
+		catch ( SQLException e ) {
+			reportError( "Reading members", e );
+			return new ArrayList<HospitalityMember>();
+		}
+	}
+
+	/**
+	 * Stream the oldest team leaders off the team leader index.
+	 */
+	@Override
+	public synchronized List<HospitalityMember> findOldestTeamLeaders(
+			int limit ) {
+		try {
+			PreparedStatement select =
+					connection.prepareStatement( SELECT_OLDEST_LEADERS );
+			try {
+				select.setBoolean( 1, true );
+				select.setInt( 2, limit );
+				return selectLinked( select, limit );
+			}
+			finally {
+				select.close();
+			}
+		}
+		catch ( SQLException e ) {
+			reportError( "Reading team leaders", e );
+			return new ArrayList<HospitalityMember>();
+		}
+	}
+
+	/**
+	 * Read off the "schedule with" index.
+	 */
+	@Override
+	public synchronized List<HospitalityMember> findScheduledWith(
+			Integer number ) {
+		try {
+			PreparedStatement select =
+					connection.prepareStatement( SELECT_SCHEDULED_WITH );
+			try {
+				select.setInt( 1, number );
+				return selectLinked( select, MemberGroups.MAX_GROUP_SIZE );
+			}
+			finally {
+				select.close();
+			}
+		}
+		catch ( SQLException e ) {
+			reportError( "Reading members who schedule with " + number, e );
+			return new ArrayList<HospitalityMember>();
+		}
+	}
+
+	/**
+	 * Changed members are updated only at the version they were read at;
+	 * members not in the table are inserted.
+	 */
+	@Override
+	public synchronized List<Integer> upsertAll(
+			Collection<HospitalityMember> members ) {
+		List<Integer> conflicts = new ArrayList<Integer>();
+		List<HospitalityMember> updated = new ArrayList<HospitalityMember>();
+
+		if ( members.isEmpty() ) {
+			return conflicts;
+		}
+
+		try {
+			connection.setAutoCommit( false );
+			PreparedStatement update =
+					connection.prepareStatement( UPDATE_MEMBER );
+			PreparedStatement insert = connection.prepareStatement( INSERT );
+			PreparedStatement select =
+					connection.prepareStatement( SELECT_VERSION );
+
+			try {
+				List<HospitalityMember> list =
+						new ArrayList<HospitalityMember>( members );
+
+				for ( HospitalityMember hm : list ) {
+					bindUpdate( update, hm );
+					update.addBatch();
+				}
+
+				int[] counts = update.executeBatch();
+				boolean inserting = false;
+
+				for ( int i = 0; i < counts.length; i++ ) {
+					HospitalityMember hm = list.get( i );
+
+					if ( counts[i] != 0 ) {
+						updated.add( hm );
+						continue;
+					}
+
+					// not updated: changed by someone else, or new
+					select.setInt( 1, hm.getMemberNumber() );
+					ResultSet rs = select.executeQuery();
+
+					if ( rs.next() ) {
+						conflicts.add( hm.getMemberNumber() );
+					}
+					else {
+						bindMember( insert, hm );
+						insert.addBatch();
+						inserting = true;
+					}
+				}
+
+				if ( !conflicts.isEmpty() ) {
+					rollback();
+					return conflicts;
+				}
+
+				if ( inserting ) {
+					insert.executeBatch();
+				}
+
+				connection.commit();
+			}
+			finally {
+				update.close();
+				insert.close();
+				select.close();
+			}
+		}
+		catch ( SQLException e ) {
+			rollback();
+			reportError( "Saving members", e );
+			return conflicts;
+		}
+
+		for ( HospitalityMember hm : updated ) {
+			hm.setVersion( hm.getVersion() + 1 );
+		}
+
+		listeners.fireUpdated( members );
+		return conflicts;
+	}
+
+	/**
+	 * Listeners are told only if there was such a member.
+	 */
+	@Override
+	public synchronized void delete( Integer number ) {
+		int deleted;
+
+		try {
+			connection.setAutoCommit( false );
+			PreparedStatement delete = connection.prepareStatement( DELETE );
+			try {
+				delete.setInt( 1, number );
+				deleted = delete.executeUpdate();
+				connection.commit();
+			}
+			finally {
+				delete.close();
+			}
+		}
+		catch ( SQLException e ) {
+			rollback();
+			reportError( "Removing member " + number, e );
+			return;
+		}
+
+		if ( deleted != 0 ) {
+			listeners.fireRemoved( number );
+		}
+	}
+
+	/**
+	 * A member no longer in the table is a conflict, like one changed by
+	 * someone else.
+	 */
+	@Override
+	public synchronized List<Integer> recordScheduled(
+			Collection<HospitalityMember> members, Date date ) {
+		List<Integer> conflicts = new ArrayList<Integer>();
+
+		if ( members.isEmpty() ) {
+			return conflicts;
+		}
+
+		try {
+			connection.setAutoCommit( false );
+			PreparedStatement update =
+					connection.prepareStatement( UPDATE_SCHEDULED );
+
+			try {
+				java.sql.Date sqlDate = sqlDate( MemberRecord.toDay( date ) );
+				List<Integer> numbers = new ArrayList<Integer>();
+
+				for ( HospitalityMember hm : members ) {
+					update.setDate( 1, sqlDate );
+					update.setInt( 2, hm.getMemberNumber() );
+					update.setInt( 3, hm.getVersion() );
+					update.addBatch();
+					numbers.add( hm.getMemberNumber() );
+				}
+
+				conflicts = missed( update.executeBatch(), numbers );
+
+				if ( !conflicts.isEmpty() ) {
+					rollback();
+					return conflicts;
+				}
+
+				connection.commit();
+			}
+			finally {
+				update.close();
+			}
+		}
+		catch ( SQLException e ) {
+			rollback();
+			reportError( "Scheduling members", e );
+			return conflicts;
+		}
+
+		for ( HospitalityMember hm : members ) {
+			hm.setLastScheduled( date );
+			hm.setVersion( hm.getVersion() + 1 );
+		}
+
+		listeners.fireScheduled( members, date );
+		return conflicts;
+	}
+
+	/**
+	 * Every date of the schedule is one batch in one transaction. The dates
+	 * are updated in order, so the latest date wins. A member on more than one
+	 * date is expected one version further on each time. A member no longer
+	 * in the table is a conflict.
+	 */
+	@Override
+	public synchronized List<Integer> recordSchedule(
+			SortedMap<Date, List<HospitalityMember>> plan ) {
+		List<Integer> conflicts = new ArrayList<Integer>();
+		Map<Integer, Integer> versions = new HashMap<Integer, Integer>();
+
+		try {
+			connection.setAutoCommit( false );
+			PreparedStatement update =
+					connection.prepareStatement( UPDATE_SCHEDULED );
+
+			try {
+				List<Integer> numbers = new ArrayList<Integer>();
+
+				for ( Map.Entry<Date, List<HospitalityMember>> entry : plan
+						.entrySet() ) {
+					java.sql.Date sqlDate =
+							sqlDate( MemberRecord.toDay( entry.getKey() ) );
+
+					for ( HospitalityMember hm : entry.getValue() ) {
+						Integer version = versions.get( hm.getMemberNumber() );
+
+						if ( version == null ) {
+							version = hm.getVersion();
+						}
+
+						update.setDate( 1, sqlDate );
+						update.setInt( 2, hm.getMemberNumber() );
+						update.setInt( 3, version );
+						update.addBatch();
+						numbers.add( hm.getMemberNumber() );
+						versions.put( hm.getMemberNumber(), version + 1 );
+					}
+				}
+
+				conflicts = missed( update.executeBatch(), numbers );
+
+				if ( !conflicts.isEmpty() ) {
+					rollback();
+					return conflicts;
+				}
+
+				connection.commit();
+			}
+			finally {
+				update.close();
+			}
+		}
+		catch ( SQLException e ) {
+			rollback();
+			reportError( "Scheduling members", e );
+			return conflicts;
+		}
+
+		for ( Map.Entry<Date, List<HospitalityMember>> entry : plan.entrySet() ) {
+			for ( HospitalityMember hm : entry.getValue() ) {
+				hm.setLastScheduled( entry.getKey() );
+				hm.setVersion( versions.get( hm.getMemberNumber() ) );
+			}
+
+			listeners.fireScheduled( entry.getValue(), entry.getKey() );
+		}
+
+		return conflicts;
+	}
+
+	@Override
+	public void addMemberListener( MemberListener listener ) {
+		listeners.add( listener );
+	}
+
+	@Override
+	public void removeMemberListener( MemberListener listener ) {
+		listeners.remove( listener );
+	}
+
+	/**
+	 * Close the database connection.
+	 */
+	public synchronized void close() {
+		try {
+			connection.close();
+		}
+		catch ( SQLException e ) {
+		}
+	}
+
+	// Private methods
+
+	/**
+	 * Create the member table and its indexes if they aren't there.
+	 */
+	private void createSchema() throws SQLException {
+		Statement stmt = connection.createStatement();
+		try {
+			stmt.executeUpdate( CREATE_TABLE );
+
+			// tables made before there were versions
+			try {
+				stmt.executeUpdate( ADD_VERSION );
+			}
+			catch ( SQLException e ) {
+				// already there
+			}
+
+			for ( String index : CREATE_INDEXES ) {
+				stmt.executeUpdate( index );
+			}
+		}
+		finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * @return one member, "schedule with" not linked, or null if not found
+	 */
+	private HospitalityMember selectOne( Integer number,
+			Map<Integer, Integer> schedWithHash ) throws SQLException {
+		PreparedStatement select = connection.prepareStatement( SELECT_ONE );
+		try {
+			select.setInt( 1, number );
+			ResultSet rs = select.executeQuery();
+			return rs.next() ? toMember( rs, schedWithHash ) : null;
+		}
+		finally {
+			select.close();
+		}
+	}
+
+	/**
+	 * Run a query for members and load any "schedule with" members that
+	 * weren't in the results, so every member returned is linked.
+	 *
+	 * @return the members in query order
+	 */
+	private List<HospitalityMember> selectLinked( PreparedStatement select,
+			int fetchSize ) throws SQLException {
+		List<HospitalityMember> members = new ArrayList<HospitalityMember>();
+		Map<Integer, HospitalityMember> loaded =
+				new HashMap<Integer, HospitalityMember>();
+		Map<Integer, Integer> schedWithHash = new HashMap<Integer, Integer>();
+
+		select.setFetchSize( Math.max( 1, Math.min( fetchSize, 1000 ) ) );
+		ResultSet rs = select.executeQuery();
+
+		while ( rs.next() ) {
+			HospitalityMember hm = toMember( rs, schedWithHash );
+			members.add( hm );
+			loaded.put( hm.getMemberNumber(), hm );
+		}
+
+		// load partners that weren't in the results, a few at a time
+		List<Integer> missing = new ArrayList<Integer>();
+		for ( Integer number : schedWithHash.values() ) {
+			if ( !loaded.containsKey( number ) && !missing.contains( number ) ) {
+				missing.add( number );
+			}
+		}
+
+		for ( int from = 0; from < missing.size(); from += MAX_IN_LIST ) {
+			List<Integer> some =
+					missing.subList( from, Math.min( missing.size(), from
+							+ MAX_IN_LIST ) );
+			selectIn( some, loaded, new HashMap<Integer, Integer>() );
+		}
+
+		for ( HospitalityMember hm : members ) {
+			Integer schedNum = schedWithHash.get( hm.getMemberNumber() );
+			if ( schedNum != null ) {
+				hm.setScheduleWith( loaded.get( schedNum ) ); // OK if null
+			}
+		}
+
+		return members;
+	}
+
+	/**
+	 * Load members by number into <code>loaded</code>.
+	 */
+	private void selectIn( List<Integer> numbers,
+			Map<Integer, HospitalityMember> loaded,
+			Map<Integer, Integer> schedWithHash ) throws SQLException {
+		StringBuilder sql = new StringBuilder( SELECT_ALL );
+		sql.append( " WHERE member_number IN (" );
+		for ( int i = 0; i < numbers.size(); i++ ) {
+			sql.append( i == 0 ? "?" : ", ?" );
+		}
+		sql.append( ")" );
+
+		PreparedStatement select = connection.prepareStatement( sql.toString() );
+		try {
+			for ( int i = 0; i < numbers.size(); i++ ) {
+				select.setInt( i + 1, numbers.get( i ) );
+			}
+
+			ResultSet rs = select.executeQuery();
+			while ( rs.next() ) {
+				HospitalityMember hm = toMember( rs, schedWithHash );
+				loaded.put( hm.getMemberNumber(), hm );
+			}
+		}
+		finally {
+			select.close();
+		}
+	}
+
+	/**
+	 * Make a member from the current row. The "schedule with" number is saved
+	 * in <code>schedWithHash</code> to be linked later.
+	 */
+	private HospitalityMember toMember( ResultSet rs,
+			Map<Integer, Integer> schedWithHash ) throws SQLException {
+		int number = rs.getInt( 1 );
+		int schedWith = rs.getInt( 4 );
+
+		if ( !rs.wasNull() ) {
+			schedWithHash.put( number, schedWith );
+		}
+
+		java.sql.Date sqlDate = rs.getDate( 6 );
+		int lastSched =
+				sqlDate == null ? MemberRecord.NEVER : DayFormat.of( sqlDate
+						.toLocalDate() );
+
+		HospitalityMember hm =
+				new HospitalityMember( number, rs.getString( 2 ),
+						rs.getString( 3 ), null, rs.getBoolean( 5 ), lastSched );
+		hm.setVersion( rs.getInt( 7 ) );
+		return hm;
+	}
+
+	/**
+	 * Set the insert parameters for a member.
+	 */
+	private void bindMember( PreparedStatement insert, HospitalityMember hm )
+			throws SQLException {
+		insert.setInt( 1, hm.getMemberNumber() );
+		insert.setString( 2, hm.getFirstName() );
+		insert.setString( 3, hm.getLastName() );
+
+		if ( hm.getScheduleWith() != null ) {
+			insert.setInt( 4, hm.getScheduleWith().getMemberNumber() );
+		}
+		else {
+			insert.setNull( 4, Types.INTEGER );
+		}
+
+		insert.setBoolean( 5, hm.isTeamLeader() );
+
+		if ( hm.getLastScheduledDay() != MemberRecord.NEVER ) {
+			insert.setDate( 6, sqlDate( hm.getLastScheduledDay() ) );
+		}
+		else {
+			insert.setNull( 6, Types.DATE );
+		}
+
+		insert.setInt( 7, hm.getVersion() );
+	}
+
+	/**
+	 * Set the update parameters for a member: its fields, then its number
+	 * and the version it was read at.
+	 */
+	private void bindUpdate( PreparedStatement update, HospitalityMember hm )
+			throws SQLException {
+		update.setString( 1, hm.getFirstName() );
+		update.setString( 2, hm.getLastName() );
+
+		if ( hm.getScheduleWith() != null ) {
+			update.setInt( 3, hm.getScheduleWith().getMemberNumber() );
+		}
+		else {
+			update.setNull( 3, Types.INTEGER );
+		}
+
+		update.setBoolean( 4, hm.isTeamLeader() );
+
+		if ( hm.getLastScheduledDay() != MemberRecord.NEVER ) {
+			update.setDate( 5, sqlDate( hm.getLastScheduledDay() ) );
+		}
+		else {
+			update.setNull( 5, Types.DATE );
+		}
+
+		update.setInt( 6, hm.getMemberNumber() );
+		update.setInt( 7, hm.getVersion() );
+	}
+
+	/**
+	 * @return the member numbers of the updates in a batch that changed no
+	 *         row, because the version had moved on or the member is gone
+	 */
+	private static List<Integer> missed( int[] counts, List<Integer> numbers ) {
+		List<Integer> missed = new ArrayList<Integer>();
+
+		for ( int i = 0; i < counts.length; i++ ) {
+			if ( counts[i] == 0 && !missed.contains( numbers.get( i ) ) ) {
+				missed.add( numbers.get( i ) );
+			}
+		}
+
+		return missed;
+	}
+
+	/**
+	 * Undo a failed transaction.
+	 */
+	private void rollback() {
+		try {
+			connection.rollback();
+		}
+		catch ( SQLException e ) {
+		}
+	}
+
+	/**
+	 * @param day
+	 *            - a day, not {@link MemberRecord#NEVER}
+	 * @return the SQL date of a day, which has no time or time zone
+	 */
+	private static java.sql.Date sqlDate( int day ) {
+		return java.sql.Date.valueOf( DayFormat.toLocalDate( day ) );
+	}
+
+	/**
+	 * Show a database error.
+	 */
+	private void reportError( String action, SQLException e ) {
+		String message = action + ": " + e.getMessage();
+		Utility.showMessage( frame, message, "Database Error",
+				JOptionPane.ERROR_MESSAGE );
+	}
+
+}
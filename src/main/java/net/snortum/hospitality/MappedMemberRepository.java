@@ -0,0 +1,154 @@
+package net.snortum.hospitality;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+
+/**
+ * Members kept off the heap in a memory mapped file, through
+ * {@link MappedMemberStore}. Opening is nearly instant however large the
+ * roster is, and scheduling writes each member's last scheduled date in place.
+ * Safe to share between the sessions of one program; the file is locked
+ * against other programs while it is open.
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public class MappedMemberRepository implements MemberRepository {
+
+	// Fields
+	private final JFrame frame;
+	private final MappedMemberStore store;
+	private final MemberListeners listeners = new MemberListeners();
+
+	/**
+	 * Open the mapped file, creating it if there is none.
+	 *
+	 * @param frame
+	 *            - JFrame in which to display the errors
+	 * @param mapFile
+	 *            - the mapped member file
+	 * @throws IOException
+	 *             if the file can't be opened
+	 */
+	public MappedMemberRepository( JFrame frame, File mapFile )
+			throws IOException {
+		this.frame = frame;
+		this.store = new MappedMemberStore( mapFile );
+	}
+
+	/**
+	 * @return how many members there are
+	 */
+	public int size() {
+		return store.size();
+	}
+
+	@Override
+	public TreeMap<Integer, HospitalityMember> findAll() {
+		return store.snapshot();
+	}
+
+	@Override
+	public HospitalityMember findById( Integer number ) {
+		return store.get( number );
+	}
+
+	@Override
+	public List<HospitalityMember> findOldest( int limit ) {
+		return store.oldest( limit, false );
+	}
+
+	@Override
+	public List<HospitalityMember> findOldestTeamLeaders( int limit ) {
+		return store.oldest( limit, true );
+	}
+
+	@Override
+	public List<HospitalityMember> findScheduledWith( Integer number ) {
+		return store.scheduledWith( number );
+	}
+
+	@Override
+	public List<Integer> upsertAll( Collection<HospitalityMember> members ) {
+		List<Integer> conflicts;
+
+		try {
+			conflicts = store.upsertAll( members );
+		}
+		catch ( IOException e ) {
+			reportError( "Saving members: " + e.getMessage() );
+			return new ArrayList<Integer>();
+		}
+		catch ( IllegalArgumentException e ) {
+			reportError( "Saving members: " + e.getMessage() );
+			return new ArrayList<Integer>();
+		}
+
+		if ( conflicts.isEmpty() ) {
+			listeners.fireUpdated( members );
+		}
+
+		return conflicts;
+	}
+
+	@Override
+	public void delete( Integer number ) {
+		if ( store.delete( number ) ) {
+			listeners.fireRemoved( number );
+		}
+	}
+
+	@Override
+	public List<Integer> recordScheduled(
+			Collection<HospitalityMember> members, Date date ) {
+		List<Integer> conflicts = store.recordScheduled( members, date );
+
+		if ( conflicts.isEmpty() ) {
+			listeners.fireScheduled( members, date );
+		}
+
+		return conflicts;
+	}
+
+	@Override
+	public List<Integer> recordSchedule(
+			SortedMap<Date, List<HospitalityMember>> plan ) {
+		List<Integer> conflicts = store.recordSchedule( plan );
+
+		if ( conflicts.isEmpty() ) {
+			for ( Map.Entry<Date, List<HospitalityMember>> entry : plan
+					.entrySet() ) {
+				listeners.fireScheduled( entry.getValue(), entry.getKey() );
+			}
+		}
+
+		return conflicts;
+	}
+
+	@Override
+	public void addMemberListener( MemberListener listener ) {
+		listeners.add( listener );
+	}
+
+	@Override
+	public void removeMemberListener( MemberListener listener ) {
+		listeners.remove( listener );
+	}
+
+	private void reportError( String message ) {
+		Utility.showMessage( frame, message, "Member File Error",
+				JOptionPane.ERROR_MESSAGE );
+	}
+
+}
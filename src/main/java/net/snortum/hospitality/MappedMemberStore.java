@@ -0,0 +1,762 @@
+package net.snortum.hospitality;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Members kept off the heap, in a file of fixed size records that is memory
+ * mapped. Opening the file reads no text and makes no objects: the operating
+ * system pages records in as they are used, and the only thing on the heap is
+ * an {@link IntIntMap} from member number to record. Member objects are made
+ * only for what is asked for, and belong to the caller.
+ *
+ * <p>
+ * Writes change the records in place. Scheduling a member writes just its
+ * last scheduled day and version; a delete moves the last record into the
+ * hole. Each write is forced to disk before it returns. Versions work as in
+ * {@link MemberStore}: if any member passed in is out of date nothing is
+ * written and their numbers are returned. Reads can run together; a write
+ * waits for them and runs alone.
+ * </p>
+ *
+ * <p>
+ * The count and the member number map are only read when the file is
+ * opened, so the file is locked while it is open: one program at a time has
+ * it, and its sessions share the store.
+ * </p>
+ *
+ * <p>
+ * All numbers are big endian. The layout is:
+ * </p>
+ *
+ * <pre>
+ * magic "HOSPMAP\0", int version, int record size, int count, 12 bytes unused
+ * then for each record, 128 bytes:
+ *   int member number
+ *   int schedule with member number, 0 for none
+ *   int last scheduled as days since 1/1/1970, Integer.MIN_VALUE for never
+ *   int version
+ *   byte flags (1 = team leader), byte first name length, byte last name
+ *   length, 1 byte unused
+ *   byte[54] first name, UTF-8
+ *   byte[54] last name, UTF-8
+ * </pre>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public class MappedMemberStore {
+
+	// Constants
+	public final static byte[] MAGIC = { 'H', 'O', 'S', 'P', 'M', 'A', 'P', 0 };
+	public final static int VERSION = 1;
+	/** Longest first or last name, in bytes of UTF-8 */
+	public final static int NAME_BYTES = 54;
+	private final static int HEADER_SIZE = 32;
+	private final static int RECORD_SIZE = 128;
+	private final static int MIN_CAPACITY = 1024;
+	private final static int CHUNK_RECORDS = 1024;
+	private final static Charset UTF_8 = Charset.forName( "UTF-8" );
+
+	// Header offsets
+	private final static int VERSION_AT = 8;
+	private final static int RECORD_SIZE_AT = 12;
+	private final static int COUNT_AT = 16;
+
+	// Record offsets
+	private final static int NUMBER_AT = 0;
+	private final static int SCHEDULE_WITH_AT = 4;
+	private final static int LAST_SCHEDULED_AT = 8;
+	private final static int RECORD_VERSION_AT = 12;
+	private final static int FLAGS_AT = 16;
+	private final static int FIRST_LENGTH_AT = 17;
+	private final static int LAST_LENGTH_AT = 18;
+	private final static int FIRST_NAME_AT = 20;
+	private final static int LAST_NAME_AT = FIRST_NAME_AT + NAME_BYTES;
+	private final static byte LEADER = 1;
+	private final static long LOCKED_AT = Long.MAX_VALUE - 1; // past any record
+
+	// Fields
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private int count;
+	private final IntIntMap slots;
+
+	/**
+	 * Open a mapped member file, creating an empty one if there is none, and
+	 * lock it until it is closed.
+	 *
+	 * @param mapFile
+	 *            - the file
+	 * @throws IOException
+	 *             if the file can't be opened, is open in another program or
+	 *             isn't a mapped member file
+	 */
+	public MappedMemberStore( File mapFile ) throws IOException {
+		boolean created = !mapFile.exists() || mapFile.length() == 0;
+		file = new RandomAccessFile( mapFile, "rw" );
+		channel = file.getChannel();
+
+		try {
+			FileLock locked;
+
+			try {
+				locked = channel.tryLock( LOCKED_AT, 1, false );
+			}
+			catch ( OverlappingFileLockException e ) {
+				locked = null; // open already in this program
+			}
+
+			if ( locked == null ) {
+				throw new IOException( mapFile + " is open in another program" );
+			}
+
+			if ( created ) {
+				map( MIN_CAPACITY );
+				buffer.put( MAGIC );
+				buffer.putInt( VERSION_AT, VERSION );
+				buffer.putInt( RECORD_SIZE_AT, RECORD_SIZE );
+				buffer.putInt( COUNT_AT, 0 );
+				buffer.force();
+			}
+			else {
+				checkHeader( mapFile );
+				map( (int) ( ( channel.size() - HEADER_SIZE ) / RECORD_SIZE ) );
+			}
+
+			count = buffer.getInt( COUNT_AT );
+
+			if ( count < 0 || count > capacity ) {
+				throw new IOException( mapFile + " is damaged" );
+			}
+		}
+		catch ( IOException e ) {
+			file.close();
+			throw e;
+		}
+
+		slots = new IntIntMap( count );
+
+		for ( int slot = 0; slot < count; slot++ ) {
+			slots.put( buffer.getInt( at( slot ) + NUMBER_AT ), slot );
+		}
+	}
+
+	/**
+	 * Write a new mapped member file holding some members. It is written
+	 * through a channel, not mapped, so it can be renamed as soon as this
+	 * returns, even where a mapped file can't be.
+	 *
+	 * @param mapFile
+	 *            - the file, replaced if there is one
+	 * @param members
+	 *            - the members, each number once
+	 * @throws IOException
+	 *             if the file can't be written
+	 * @throws IllegalArgumentException
+	 *             if a name is longer than {@link #NAME_BYTES}
+	 */
+	public static void create( File mapFile,
+			Collection<HospitalityMember> members ) throws IOException {
+		RandomAccessFile out = new RandomAccessFile( mapFile, "rw" );
+
+		try {
+			FileChannel channel = out.getChannel();
+			ByteBuffer chunk = ByteBuffer.allocate( CHUNK_RECORDS * RECORD_SIZE );
+			channel.truncate( 0 );
+			chunk.put( MAGIC );
+			chunk.putInt( VERSION_AT, VERSION );
+			chunk.putInt( RECORD_SIZE_AT, RECORD_SIZE );
+			chunk.putInt( COUNT_AT, members.size() );
+			chunk.limit( HEADER_SIZE ).position( 0 );
+			writeFully( channel, chunk );
+			int records = 0;
+
+			for ( HospitalityMember hm : members ) {
+				if ( records == CHUNK_RECORDS ) {
+					chunk.limit( records * RECORD_SIZE ).position( 0 );
+					writeFully( channel, chunk );
+					records = 0;
+				}
+
+				if ( records == 0 ) {
+					Arrays.fill( chunk.array(), (byte) 0 );
+					chunk.clear();
+				}
+
+				put( chunk, records * RECORD_SIZE, MemberRecord.of( hm ),
+						name( hm, hm.getFirstName() ),
+						name( hm, hm.getLastName() ) );
+				records++;
+			}
+
+			if ( records > 0 ) {
+				chunk.limit( records * RECORD_SIZE ).position( 0 );
+				writeFully( channel, chunk );
+			}
+
+			out.setLength( HEADER_SIZE + (long) RECORD_SIZE
+					* Math.max( members.size(), MIN_CAPACITY ) );
+			channel.force( true );
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return how many members there are
+	 */
+	public int size() {
+		lock.readLock().lock();
+
+		try {
+			return count;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return treeMap of memberId => member object, with "schedule with"
+	 *         linked. The map and members belong to the caller.
+	 */
+	public TreeMap<Integer, HospitalityMember> snapshot() {
+		lock.readLock().lock();
+
+		try {
+			TreeMap<Integer, HospitalityMember> tree =
+					new TreeMap<Integer, HospitalityMember>();
+
+			for ( int slot = 0; slot < count; slot++ ) {
+				member( buffer.getInt( at( slot ) + NUMBER_AT ), tree );
+			}
+
+			return tree;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param number
+	 *            - the member number
+	 * @return the member, with its "schedule with" member linked, or null
+	 */
+	public HospitalityMember get( Integer number ) {
+		lock.readLock().lock();
+
+		try {
+			return member( number, new HashMap<Integer, HospitalityMember>() );
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find the members scheduled longest ago, in the order of
+	 * {@link MemberRecord#OLDEST_FIRST}. Only two ints of each record are
+	 * read, into a heap of longs, so nothing is made for the rest.
+	 *
+	 * @param limit
+	 *            - how many to return at most
+	 * @param leadersOnly
+	 *            - true for team leaders only
+	 * @return the oldest members, oldest first, with "schedule with" linked
+	 */
+	public List<HospitalityMember> oldest( int limit, boolean leadersOnly ) {
+		lock.readLock().lock();
+
+		try {
+			long[] heap = new long[Math.max( 0, Math.min( limit, count ) )];
+			int found = 0;
+
+			for ( int slot = 0; slot < count; slot++ ) {
+				int at = at( slot );
+
+				if ( leadersOnly && ( buffer.get( at + FLAGS_AT ) & LEADER ) == 0 ) {
+					continue;
+				}
+
+				long key =
+						( (long) buffer.getInt( at + LAST_SCHEDULED_AT ) << 32 )
+								| ( buffer.getInt( at + NUMBER_AT ) & 0xFFFFFFFFL );
+
+				if ( found < heap.length ) {
+					heap[found] = key;
+					MemberTable.siftUp( heap, found++ );
+				}
+				else if ( found > 0 && key < heap[0] ) {
+					heap[0] = key;
+					MemberTable.siftDown( heap, found );
+				}
+			}
+
+			long[] keys = Arrays.copyOf( heap, found );
+			Arrays.sort( keys );
+			Map<Integer, HospitalityMember> made =
+					new HashMap<Integer, HospitalityMember>();
+			List<HospitalityMember> members =
+					new ArrayList<HospitalityMember>( found );
+
+			for ( long key : keys ) {
+				members.add( member( (int) key, made ) );
+			}
+
+			return members;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find the members whose "schedule with" member is this one. Only one int
+	 * of each record is read, as in {@link #oldest(int, boolean)}.
+	 *
+	 * @param number
+	 *            - a member number
+	 * @return the members, in file order, with "schedule with" linked
+	 */
+	public List<HospitalityMember> scheduledWith( Integer number ) {
+		lock.readLock().lock();
+
+		try {
+			Map<Integer, HospitalityMember> made =
+					new HashMap<Integer, HospitalityMember>();
+			List<HospitalityMember> members = new ArrayList<HospitalityMember>();
+
+			for ( int slot = 0; slot < count; slot++ ) {
+				int at = at( slot );
+
+				if ( buffer.getInt( at + SCHEDULE_WITH_AT ) == number ) {
+					members.add( member( buffer.getInt( at + NUMBER_AT ), made ) );
+				}
+			}
+
+			return members;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Add or replace members.
+	 *
+	 * @param changed
+	 *            - new or changed members
+	 * @return the numbers of members changed since they were read, empty if
+	 *         the write was made
+	 * @throws IOException
+	 *             if the file can't be grown or written
+	 * @throws IllegalArgumentException
+	 *             if a name is longer than {@link #NAME_BYTES}; nothing is
+	 *             written
+	 */
+	public List<Integer> upsertAll( Collection<HospitalityMember> changed )
+			throws IOException {
+		lock.writeLock().lock();
+
+		try {
+			List<Integer> conflicts = new ArrayList<Integer>();
+			Set<Integer> written = new HashSet<Integer>();
+			List<byte[]> names = new ArrayList<byte[]>();
+
+			for ( HospitalityMember hm : changed ) {
+				names.add( name( hm, hm.getFirstName() ) );
+				names.add( name( hm, hm.getLastName() ) );
+				check( hm, written, conflicts );
+			}
+
+			if ( !conflicts.isEmpty() ) {
+				return conflicts;
+			}
+
+			written.clear();
+			int i = 0;
+
+			for ( HospitalityMember hm : changed ) {
+				int slot = slots.get( hm.getMemberNumber() );
+				int version = hm.getVersion();
+
+				if ( slot == IntIntMap.MISSING ) {
+					slot = append( hm.getMemberNumber() );
+				}
+				else {
+					version = buffer.getInt( at( slot ) + RECORD_VERSION_AT );
+
+					if ( written.add( hm.getMemberNumber() ) ) {
+						version++;
+					}
+				}
+
+				write( slot, MemberRecord.of( hm ).withVersion( version ),
+						names.get( i ), names.get( i + 1 ) );
+				i += 2;
+			}
+
+			buffer.putInt( COUNT_AT, count );
+			buffer.force();
+			moveOn( changed );
+			return conflicts;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove a member. The last record is moved into its place.
+	 *
+	 * @param number
+	 *            - the member number
+	 * @return true if there was such a member
+	 */
+	public boolean delete( Integer number ) {
+		lock.writeLock().lock();
+
+		try {
+			int slot = slots.get( number );
+
+			if ( slot == IntIntMap.MISSING ) {
+				return false;
+			}
+
+			int last = count - 1;
+
+			if ( slot != last ) {
+				byte[] record = new byte[RECORD_SIZE];
+				buffer.position( at( last ) );
+				buffer.get( record );
+				buffer.position( at( slot ) );
+				buffer.put( record );
+				slots.put( buffer.getInt( at( slot ) + NUMBER_AT ), slot );
+			}
+
+			slots.put( number, IntIntMap.MISSING );
+			count = last;
+			buffer.putInt( COUNT_AT, count );
+			buffer.force();
+			return true;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Set the last scheduled date of members, in place.
+	 *
+	 * @param scheduled
+	 *            - the members scheduled
+	 * @param date
+	 *            - the date they were scheduled
+	 * @return the numbers of members changed since they were read, empty if
+	 *         the write was made
+	 */
+	public List<Integer> recordScheduled(
+			Collection<HospitalityMember> scheduled, Date date ) {
+		SortedMap<Date, List<HospitalityMember>> plan =
+				new TreeMap<Date, List<HospitalityMember>>();
+		plan.put( date, new ArrayList<HospitalityMember>( scheduled ) );
+		return recordSchedule( plan );
+	}
+
+	/**
+	 * Set the last scheduled dates of a whole schedule, in place, with one
+	 * force to disk. A member on more than one date ends up with the latest.
+	 * A member no longer stored is a conflict.
+	 *
+	 * @param plan
+	 *            - date => members scheduled on that date
+	 * @return the numbers of members changed since they were read, empty if
+	 *         the write was made
+	 */
+	public List<Integer> recordSchedule(
+			SortedMap<Date, List<HospitalityMember>> plan ) {
+		lock.writeLock().lock();
+
+		try {
+			List<Integer> conflicts = new ArrayList<Integer>();
+			Set<Integer> written = new HashSet<Integer>();
+
+			for ( List<HospitalityMember> team : plan.values() ) {
+				for ( HospitalityMember hm : team ) {
+					if ( slots.get( hm.getMemberNumber() ) == IntIntMap.MISSING ) {
+						if ( !conflicts.contains( hm.getMemberNumber() ) ) {
+							conflicts.add( hm.getMemberNumber() );
+						}
+					}
+					else {
+						check( hm, written, conflicts );
+					}
+				}
+			}
+
+			if ( !conflicts.isEmpty() ) {
+				return conflicts;
+			}
+
+			written.clear();
+
+			for ( Map.Entry<Date, List<HospitalityMember>> entry : plan
+					.entrySet() ) {
+				int day = MemberRecord.toDay( entry.getKey() );
+
+				for ( HospitalityMember hm : entry.getValue() ) {
+					int at = at( slots.get( hm.getMemberNumber() ) );
+					buffer.putInt( at + LAST_SCHEDULED_AT, day );
+
+					if ( written.add( hm.getMemberNumber() ) ) {
+						buffer.putInt( at + RECORD_VERSION_AT,
+								buffer.getInt( at + RECORD_VERSION_AT ) + 1 );
+					}
+				}
+			}
+
+			buffer.force();
+
+			for ( List<HospitalityMember> team : plan.values() ) {
+				moveOn( team );
+			}
+
+			return conflicts;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Close the file. The store can't be used after this.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		lock.writeLock().lock();
+
+		try {
+			buffer.force();
+			file.close();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Private methods
+
+	/**
+	 * @return the position of a record in the buffer
+	 */
+	private static int at( int slot ) {
+		return HEADER_SIZE + slot * RECORD_SIZE;
+	}
+
+	/**
+	 * Map the file, growing it to hold <code>records</code> records.
+	 */
+	private void map( int records ) throws IOException {
+		long size = HEADER_SIZE + (long) records * RECORD_SIZE;
+
+		if ( size > Integer.MAX_VALUE ) {
+			throw new IOException( "Too many members to map: " + records );
+		}
+
+		buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+		capacity = records;
+	}
+
+	private void checkHeader( File mapFile ) throws IOException {
+		MappedByteBuffer head =
+				channel.map( FileChannel.MapMode.READ_ONLY, 0,
+						Math.min( channel.size(), HEADER_SIZE ) );
+
+		for ( int i = 0; i < MAGIC.length; i++ ) {
+			if ( head.limit() < HEADER_SIZE || head.get( i ) != MAGIC[i] ) {
+				throw new IOException( mapFile + " is not a mapped member file" );
+			}
+		}
+
+		if ( head.getInt( VERSION_AT ) != VERSION
+				|| head.getInt( RECORD_SIZE_AT ) != RECORD_SIZE ) {
+			throw new IOException( "Unknown mapped member file version "
+					+ head.getInt( VERSION_AT ) );
+		}
+	}
+
+	private static void writeFully( FileChannel channel, ByteBuffer buf )
+			throws IOException {
+		while ( buf.hasRemaining() ) {
+			channel.write( buf );
+		}
+	}
+
+	/**
+	 * Take the next record, doubling the file if it is full.
+	 *
+	 * @return the new slot
+	 */
+	private int append( int number ) throws IOException {
+		if ( count == capacity ) {
+			map( capacity * 2 );
+		}
+
+		slots.put( number, count );
+		return count++;
+	}
+
+	/**
+	 * Note a conflict if the member is stored at another version. Each member
+	 * is checked once.
+	 */
+	private void check( HospitalityMember hm, Set<Integer> written,
+			List<Integer> conflicts ) {
+		int slot = slots.get( hm.getMemberNumber() );
+
+		if ( slot != IntIntMap.MISSING && written.add( hm.getMemberNumber() )
+				&& buffer.getInt( at( slot ) + RECORD_VERSION_AT ) != hm
+						.getVersion() ) {
+			conflicts.add( hm.getMemberNumber() );
+		}
+	}
+
+	/**
+	 * @return the name as UTF-8, no longer than {@link #NAME_BYTES}
+	 */
+	private static byte[] name( HospitalityMember hm, String name ) {
+		byte[] bytes = name == null ? new byte[0] : name.getBytes( UTF_8 );
+
+		if ( bytes.length > NAME_BYTES ) {
+			throw new IllegalArgumentException( "Name of member "
+					+ hm.getMemberNumber() + " is longer than " + NAME_BYTES
+					+ " bytes: " + name );
+		}
+
+		return bytes;
+	}
+
+	private void write( int slot, MemberRecord record, byte[] firstName,
+			byte[] lastName ) {
+		put( buffer, at( slot ), record, firstName, lastName );
+	}
+
+	/**
+	 * Put a record in a buffer at a position.
+	 */
+	private static void put( ByteBuffer buffer, int at, MemberRecord record,
+			byte[] firstName, byte[] lastName ) {
+		buffer.putInt( at + NUMBER_AT, record.getNumber() );
+		buffer.putInt( at + SCHEDULE_WITH_AT, record.getScheduleWith() );
+		buffer.putInt( at + LAST_SCHEDULED_AT, record.getLastScheduled() );
+		buffer.putInt( at + RECORD_VERSION_AT, record.getVersion() );
+		buffer.put( at + FLAGS_AT, record.isTeamLeader() ? LEADER : 0 );
+		buffer.put( at + FIRST_LENGTH_AT, (byte) firstName.length );
+		buffer.put( at + LAST_LENGTH_AT, (byte) lastName.length );
+		buffer.position( at + FIRST_NAME_AT );
+		buffer.put( firstName );
+		buffer.position( at + LAST_NAME_AT );
+		buffer.put( lastName );
+	}
+
+	private MemberRecord read( int slot ) {
+		int at = at( slot );
+		return new MemberRecord( buffer.getInt( at + NUMBER_AT ), readName( at
+				+ FIRST_NAME_AT, buffer.get( at + FIRST_LENGTH_AT ) ),
+				readName( at + LAST_NAME_AT, buffer.get( at + LAST_LENGTH_AT ) ),
+				buffer.getInt( at + SCHEDULE_WITH_AT ),
+				( buffer.get( at + FLAGS_AT ) & LEADER ) != 0,
+				buffer.getInt( at + LAST_SCHEDULED_AT ),
+				buffer.getInt( at + RECORD_VERSION_AT ) );
+	}
+
+	/**
+	 * Read a name with absolute gets, so readers don't share a position.
+	 */
+	private String readName( int at, int length ) {
+		byte[] bytes = new byte[length];
+
+		for ( int i = 0; i < length; i++ ) {
+			bytes[i] = buffer.get( at + i );
+		}
+
+		return new String( bytes, UTF_8 );
+	}
+
+	/**
+	 * After a write, move the versions of the caller's members on to the ones
+	 * stored.
+	 */
+	private void moveOn( Collection<HospitalityMember> changed ) {
+		for ( HospitalityMember hm : changed ) {
+			int slot = slots.get( hm.getMemberNumber() );
+
+			if ( slot != IntIntMap.MISSING ) {
+				hm.setVersion( buffer.getInt( at( slot ) + RECORD_VERSION_AT ) );
+			}
+		}
+	}
+
+	/**
+	 * Make the member object for a number, and its "schedule with" member,
+	 * once each.
+	 *
+	 * @param made
+	 *            - member objects made so far, added to
+	 * @return the member or null if there's no such record
+	 */
+	private HospitalityMember member( Integer number,
+			Map<Integer, HospitalityMember> made ) {
+		HospitalityMember hm = made.get( number );
+
+		if ( hm != null ) {
+			return hm;
+		}
+
+		int slot = slots.get( number );
+
+		if ( slot == IntIntMap.MISSING ) {
+			return null;
+		}
+
+		MemberRecord record = read( slot );
+		hm = record.toMember();
+		made.put( number, hm );
+
+		if ( record.getScheduleWith() != MemberRecord.NO_MEMBER ) {
+			hm.setScheduleWith( member(
+					Integer.valueOf( record.getScheduleWith() ), made ) );
+		}
+
+		return hm;
+	}
+
+}
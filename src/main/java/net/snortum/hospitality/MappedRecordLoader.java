@@ -0,0 +1,236 @@
+package net.snortum.hospitality;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Loads a large data file by memory mapping it and parsing it in parallel.
+ * On Windows the file is read into a buffer instead, see
+ * {@link Utility#readFile(FileChannel)}.
+ * The file is split into chunks at new line boundaries, each chunk is parsed
+ * on a fork/join pool with its own {@link MemberRecordParser}, and the chunks
+ * are merged in file order so a repeated member number keeps the last record,
+ * just like the sequential loader.
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class MappedRecordLoader {
+
+	// Constants
+	private final static int MIN_CHUNK_SIZE = 256 * 1024;
+
+	// Fields
+	private final TreeMap<Integer, HospitalityMember> tree =
+			new TreeMap<Integer, HospitalityMember>();
+	private final Map<Integer, Integer> schedWithHash =
+			new HashMap<Integer, Integer>();
+	private final List<String> badLines = new ArrayList<String>();
+
+	// Getters
+
+	/**
+	 * @return treeMap of memberId => member object, "schedule with" not yet
+	 *         linked
+	 */
+	public TreeMap<Integer, HospitalityMember> getTree() {
+		return tree;
+	}
+
+	/**
+	 * @return member number => schedule with number
+	 */
+	public Map<Integer, Integer> getSchedWithHash() {
+		return schedWithHash;
+	}
+
+	/**
+	 * @return lines that were not in record format, in file order
+	 */
+	public List<String> getBadLines() {
+		return badLines;
+	}
+
+	// Public methods
+
+	/**
+	 * Map and parse the whole file.
+	 *
+	 * @param channel
+	 *            - open channel to the data file, smaller than 2GB
+	 * @param charset
+	 *            - the character set of the data file
+	 * @throws IOException
+	 *             if the file can't be mapped or read
+	 */
+	public void load( FileChannel channel, Charset charset )
+			throws IOException {
+		ByteBuffer buf = Utility.readFile( channel );
+		int[] bounds = findChunks( buf, buf.limit() );
+		Chunk[] chunks = new Chunk[bounds.length - 1];
+
+		for ( int i = 0; i < chunks.length; i++ ) {
+			chunks[i] = new Chunk( buf, bounds[i], bounds[i + 1], charset );
+		}
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke( new ParseTask( chunks, 0, chunks.length ) );
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		// merge in file order
+		for ( Chunk chunk : chunks ) {
+			for ( HospitalityMember hm : chunk.members ) {
+				tree.put( hm.getMemberNumber(), hm );
+			}
+			schedWithHash.putAll( chunk.schedWithHash );
+			badLines.addAll( chunk.badLines );
+		}
+	}
+
+	// Private methods
+
+	/**
+	 * Split the buffer into about one chunk per processor, each ending just
+	 * after a new line.
+	 *
+	 * @return chunk boundaries, starting with 0 and ending with size
+	 */
+	private int[] findChunks( ByteBuffer buf, int size ) {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int count = Math.max( 1, Math.min( processors * 4, size
+				/ MIN_CHUNK_SIZE ) );
+		List<Integer> bounds = new ArrayList<Integer>();
+		bounds.add( 0 );
+
+		for ( int i = 1; i < count; i++ ) {
+			int pos = (int) ( (long) size * i / count );
+
+			if ( pos <= bounds.get( bounds.size() - 1 ) ) {
+				continue;
+			}
+
+			while ( pos < size && buf.get( pos - 1 ) != '\n' ) {
+				pos++;
+			}
+
+			if ( pos < size ) {
+				bounds.add( pos );
+			}
+		}
+
+		bounds.add( size );
+
+		int[] result = new int[bounds.size()];
+		for ( int i = 0; i < result.length; i++ ) {
+			result[i] = bounds.get( i );
+		}
+
+		return result;
+	}
+
+	/**
+	 * One range of lines and the records parsed from it.
+	 */
+	private static class Chunk {
+		private final ByteBuffer buf;
+		private final int start;
+		private final int end;
+		private final Charset charset;
+		private final List<HospitalityMember> members =
+				new ArrayList<HospitalityMember>();
+		private final Map<Integer, Integer> schedWithHash =
+				new HashMap<Integer, Integer>();
+		private final List<String> badLines = new ArrayList<String>();
+
+		private Chunk( ByteBuffer buf, int start, int end,
+				Charset charset ) {
+			this.buf = buf;
+			this.start = start;
+			this.end = end;
+			this.charset = charset;
+		}
+
+		/**
+		 * Parse every line in the chunk. The buffer is only read with
+		 * absolute gets, so chunks can share it.
+		 */
+		private void parse() {
+			MemberRecordParser parser = new MemberRecordParser( charset );
+			int lineStart = start;
+
+			while ( lineStart < end ) {
+				int lineEnd = lineStart;
+				while ( lineEnd < end && buf.get( lineEnd ) != '\n' ) {
+					lineEnd++;
+				}
+
+				int next = lineEnd + 1;
+
+				// drop the carriage return from DOS files
+				if ( lineEnd > lineStart && buf.get( lineEnd - 1 ) == '\r' ) {
+					lineEnd--;
+				}
+
+				HospitalityMember hm =
+						parser.parse( buf, lineStart, lineEnd, schedWithHash );
+
+				if ( hm != null ) {
+					members.add( hm );
+				}
+				else {
+					byte[] bytes = new byte[lineEnd - lineStart];
+					for ( int i = 0; i < bytes.length; i++ ) {
+						bytes[i] = buf.get( lineStart + i );
+					}
+					badLines.add( new String( bytes, charset ) );
+				}
+
+				lineStart = next;
+			}
+		}
+	}
+
+	/**
+	 * Parse a range of chunks, splitting in half until one chunk is left.
+	 */
+	private static class ParseTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Chunk[] chunks;
+		private final int from;
+		private final int to;
+
+		private ParseTask( Chunk[] chunks, int from, int to ) {
+			this.chunks = chunks;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if ( to - from == 1 ) {
+				chunks[from].parse();
+				return;
+			}
+
+			int middle = ( from + to ) >>> 1;
+			invokeAll( new ParseTask( chunks, from, middle ), new ParseTask(
+					chunks, middle, to ) );
+		}
+	}
+
+}
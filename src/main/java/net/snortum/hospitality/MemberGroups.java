@@ -0,0 +1,289 @@
+package net.snortum.hospitality;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+
+/**
+ * Members who must be scheduled together, found by following "schedule with"
+ * in both directions. Groups are kept with union-find over member numbers, so
+ * adding a member and finding its group are nearly O(1). Each group knows its
+ * members, its size and its oldest last scheduled date.
+ *
+ * <p>
+ * Problems are noted as members are added: a member set to schedule with
+ * itself, "schedule with" going round a cycle of more than two members, and
+ * groups too big to fit on a team with its team leader.
+ * </p>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class MemberGroups {
+
+	// Constants
+	final static int MAX_GROUP_SIZE = 4;
+
+	// Fields
+	private final Map<Integer, Integer> parent = new HashMap<Integer, Integer>();
+	private final Map<Integer, Group> groups = new HashMap<Integer, Group>();
+	private final List<String> problems = new ArrayList<String>();
+
+	/**
+	 * Members scheduled together.
+	 */
+	static class Group {
+		private final List<HospitalityMember> members =
+				new ArrayList<HospitalityMember>();
+		private int oldest;
+
+		/**
+		 * @return the members, in the order they were added
+		 */
+		List<HospitalityMember> getMembers() {
+			return members;
+		}
+
+		int size() {
+			return members.size();
+		}
+
+		/**
+		 * @return the oldest last scheduled day, {@link MemberRecord#NEVER} if
+		 *         someone was never scheduled
+		 */
+		int getOldest() {
+			return oldest;
+		}
+
+		/**
+		 * Find the oldest day again after members were scheduled.
+		 *
+		 * @param days
+		 *            - member number => last scheduled day
+		 */
+		void updateOldest( Map<Integer, Integer> days ) {
+			oldest = days.get( members.get( 0 ).getMemberNumber() );
+
+			for ( HospitalityMember hm : members ) {
+				oldest = Math.min( oldest, days.get( hm.getMemberNumber() ) );
+			}
+		}
+	}
+
+	/**
+	 * Add members and their "schedule with" members.
+	 *
+	 * @param members
+	 *            - members with "schedule with" linked
+	 */
+	void addAll( Collection<HospitalityMember> members ) {
+		for ( HospitalityMember hm : members ) {
+			add( hm );
+		}
+	}
+
+	/**
+	 * Add a member and join its group to its "schedule with" member's group.
+	 *
+	 * @param hm
+	 *            - a member with "schedule with" linked
+	 */
+	void add( HospitalityMember hm ) {
+		node( hm );
+		HospitalityMember schedWith = hm.getScheduleWith();
+
+		if ( schedWith == null ) {
+			return;
+		}
+
+		if ( schedWith.getMemberNumber().equals( hm.getMemberNumber() ) ) {
+			problems.add( "Member " + hm.getMemberNumber()
+					+ " is set to schedule with itself" );
+			return;
+		}
+
+		node( schedWith );
+		Integer root0 = find( hm.getMemberNumber() );
+		Integer root1 = find( schedWith.getMemberNumber() );
+
+		if ( root0.equals( root1 ) ) {
+
+			// two members scheduled with each other is fine, more is a cycle
+			if ( schedWith.getScheduleWith() != hm ) {
+				problems.add( "Schedule with goes round in a cycle through "
+						+ "members " + numbers( groups.get( root0 ) ) );
+			}
+
+			return;
+		}
+
+		union( root0, root1 );
+	}
+
+	/**
+	 * @param hm
+	 *            - a member
+	 * @return the member's group or null if it wasn't added
+	 */
+	Group groupOf( HospitalityMember hm ) {
+		Integer number = hm.getMemberNumber();
+
+		if ( !parent.containsKey( number ) ) {
+			return null;
+		}
+
+		return groups.get( find( number ) );
+	}
+
+	/**
+	 * Take out a member who is in a group of its own.
+	 *
+	 * @param number
+	 *            - the member number
+	 * @return false if the member is in a group with others, which union-find
+	 *         can't split, so the groups must be found again
+	 */
+	boolean removeAlone( Integer number ) {
+		if ( !parent.containsKey( number ) ) {
+			return true;
+		}
+
+		if ( groups.get( find( number ) ).size() > 1 ) {
+			return false;
+		}
+
+		parent.remove( number );
+		groups.remove( number );
+		return true;
+	}
+
+	/**
+	 * @return the problems found since the last call
+	 */
+	List<String> takeProblems() {
+		List<String> taken = new ArrayList<String>( problems );
+		problems.clear();
+		return taken;
+	}
+
+	/**
+	 * Show problems with "schedule with" to the user.
+	 *
+	 * @param frame
+	 *            - JFrame in which to display the problems
+	 * @param problems
+	 *            - from {@link #takeProblems()}, nothing is shown if empty
+	 */
+	static void reportProblems( JFrame frame, List<String> problems ) {
+		if ( problems.isEmpty() ) {
+			return;
+		}
+
+		StringBuilder message = new StringBuilder();
+
+		for ( String problem : problems ) {
+			message.append( problem ).append( "\n" );
+		}
+
+		//@formatter:off
+		Utility.showMessage(
+				frame,
+				message.toString(),
+				"Schedule With Problems",
+				JOptionPane.WARNING_MESSAGE );
+		//@formatter:on
+	}
+
+	// Private methods
+
+	/**
+	 * Make a group of one for a member not seen before.
+	 */
+	private void node( HospitalityMember hm ) {
+		Integer number = hm.getMemberNumber();
+
+		if ( parent.containsKey( number ) ) {
+			return;
+		}
+
+		parent.put( number, number );
+		Group group = new Group();
+		group.members.add( hm );
+		group.oldest = hm.getLastScheduledDay();
+		groups.put( number, group );
+	}
+
+	/**
+	 * @return the root member number of a group, with path compression
+	 */
+	private Integer find( Integer number ) {
+		Integer root = number;
+
+		while ( !parent.get( root ).equals( root ) ) {
+			root = parent.get( root );
+		}
+
+		while ( !number.equals( root ) ) {
+			Integer next = parent.get( number );
+			parent.put( number, root );
+			number = next;
+		}
+
+		return root;
+	}
+
+	/**
+	 * Join two groups, the smaller into the larger.
+	 */
+	private void union( Integer root0, Integer root1 ) {
+		Group group0 = groups.get( root0 );
+		Group group1 = groups.get( root1 );
+		boolean fitted =
+				group0.size() <= MAX_GROUP_SIZE
+						&& group1.size() <= MAX_GROUP_SIZE;
+
+		if ( group0.size() < group1.size() ) {
+			Integer root = root0;
+			root0 = root1;
+			root1 = root;
+			Group group = group0;
+			group0 = group1;
+			group1 = group;
+		}
+
+		parent.put( root1, root0 );
+		groups.remove( root1 );
+		group0.members.addAll( group1.members );
+		group0.oldest = Math.min( group0.oldest, group1.oldest );
+
+		if ( fitted && group0.size() > MAX_GROUP_SIZE ) {
+			problems.add( "Members " + numbers( group0 )
+					+ " schedule with each other, too many for one team" );
+		}
+	}
+
+	/**
+	 * @return the member numbers of a group, for messages
+	 */
+	private static String numbers( Group group ) {
+		StringBuilder numbers = new StringBuilder();
+
+		for ( HospitalityMember hm : group.members ) {
+			if ( numbers.length() > 0 ) {
+				numbers.append( ", " );
+			}
+
+			numbers.append( hm.getMemberNumber() );
+		}
+
+		return numbers.toString();
+	}
+
+}
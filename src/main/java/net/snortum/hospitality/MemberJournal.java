@@ -0,0 +1,503 @@
+package net.snortum.hospitality;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An append only journal of changes to the data file. Each upsert, delete or
+ * last scheduled change is one short line appended to the journal instead of a
+ * rewrite of the whole file. When the journal gets long the members are
+ * written to a fresh data file and the journal is cleared. When the data file
+ * is loaded the journal is replayed over it.
+ *
+ * <p>
+ * Several programs may share the journal, so it is only changed with the
+ * {@link DataFileLock} held, and it is opened for each append and closed
+ * again: a program never holds on to a journal someone else has cleared.
+ * </p>
+ *
+ * <p>
+ * Journal lines are tab separated:
+ * </p>
+ *
+ * <pre>
+ * U TAB member record, same format as the data file
+ * D TAB number
+ * S TAB number TAB MM/dd/yyyy
+ * </pre>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class MemberJournal {
+
+	// Constants
+	public final static String JOURNAL_SUFFIX = ".journal";
+	public final static String ROTATED_SUFFIX = ".journal.old";
+	private final static char UPSERT = 'U';
+	private final static char DELETE = 'D';
+	private final static char SCHEDULED = 'S';
+	private final static int TAIL_CHUNK = 4096;
+
+	// Fields
+	private final File journalFile;
+	private final File rotatedFile;
+	private final Charset charset;
+	private int entries = 0;
+	private long offset = 0; // journal read or written up to here
+
+	/**
+	 * Where replayed entries go.
+	 */
+	interface Target {
+
+		/**
+		 * A member was added or changed.
+		 *
+		 * @param record
+		 *            - the member, at version 0
+		 */
+		void upsert( MemberRecord record );
+
+		/**
+		 * A member was removed.
+		 *
+		 * @param number
+		 *            - the member number
+		 */
+		void delete( Integer number );
+
+		/**
+		 * A member was scheduled.
+		 *
+		 * @param number
+		 *            - the member number
+		 * @param day
+		 *            - the last scheduled day
+		 */
+		void scheduled( Integer number, int day );
+	}
+
+	/**
+	 * Create the journal for a data file. Nothing is opened until needed.
+	 *
+	 * @param dataFile
+	 *            - the data file being journaled
+	 * @param charset
+	 *            - the character set of the data file
+	 */
+	public MemberJournal( File dataFile, Charset charset ) {
+		this.journalFile = new File( dataFile.getPath() + JOURNAL_SUFFIX );
+		this.rotatedFile = new File( dataFile.getPath() + ROTATED_SUFFIX );
+		this.charset = charset;
+	}
+
+	// Getters
+
+	/**
+	 * @return number of entries in the journal, as far as this program has
+	 *         read or written it
+	 */
+	public synchronized int getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return true if the journal isn't as this program last read or wrote
+	 *         it: another program has appended to it or cleared it
+	 */
+	public synchronized boolean hasNew() {
+		return journalFile.length() != offset;
+	}
+
+	/**
+	 * @return true if a rotated journal, left by an older version of the
+	 *         program, is waiting to be compacted
+	 */
+	public boolean isRotated() {
+		return rotatedFile.exists();
+	}
+
+	// Public methods
+
+	/**
+	 * Append new or changed members, in one write.
+	 *
+	 * @param members
+	 *            - the members
+	 * @throws IOException
+	 */
+	public synchronized void appendUpsert(
+			Collection<HospitalityMember> members ) throws IOException {
+		if ( members.isEmpty() ) {
+			return;
+		}
+
+		StringBuilder sb = new StringBuilder();
+
+		for ( HospitalityMember hm : members ) {
+			sb.append( UPSERT ).append( '\t' ).append( hm.toFile() );
+		}
+
+		append( sb.toString() );
+		entries += members.size() - 1;
+	}
+
+	/**
+	 * Append a removed member.
+	 *
+	 * @param number
+	 *            - the member number
+	 * @throws IOException
+	 */
+	public synchronized void appendDelete( Integer number )
+			throws IOException {
+		append( DELETE + "\t" + number + "\n" );
+	}
+
+	/**
+	 * Append a new last scheduled date for several members, in one write.
+	 *
+	 * @param members
+	 *            - members scheduled
+	 * @param date
+	 *            - the date they were scheduled
+	 * @throws IOException
+	 */
+	public synchronized void appendScheduled(
+			Collection<HospitalityMember> members, Date date )
+			throws IOException {
+		if ( members.isEmpty() ) {
+			return;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		scheduledLines( sb, members, date );
+		append( sb.toString() );
+		entries += members.size() - 1;
+	}
+
+	/**
+	 * Append a whole schedule, many dates, in one write.
+	 *
+	 * @param plan
+	 *            - date => members scheduled on that date
+	 * @throws IOException
+	 */
+	public synchronized void appendSchedule(
+			SortedMap<Date, List<HospitalityMember>> plan ) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int lines = 0;
+
+		for ( Map.Entry<Date, List<HospitalityMember>> entry : plan.entrySet() ) {
+			scheduledLines( sb, entry.getValue(), entry.getKey() );
+			lines += entry.getValue().size();
+		}
+
+		if ( lines == 0 ) {
+			return;
+		}
+
+		append( sb.toString() );
+		entries += lines - 1;
+	}
+
+	/**
+	 * Empty the journal, and delete any rotated one, once the data file has
+	 * been rewritten with every change in them.
+	 *
+	 * @throws IOException
+	 *             if the journal can't be deleted
+	 */
+	public synchronized void clear() throws IOException {
+		if ( rotatedFile.exists() && !rotatedFile.delete() ) {
+			throw new IOException( "Cannot delete " + rotatedFile.getName() );
+		}
+
+		if ( journalFile.exists() && !journalFile.delete() ) {
+			throw new IOException( "Cannot delete " + journalFile.getName() );
+		}
+
+		entries = 0;
+		offset = 0;
+	}
+
+	/**
+	 * Replay the rotated journal, if there is one, and then the current
+	 * journal over members loaded from the snapshot. Replaying entries that
+	 * are already in the snapshot changes nothing.
+	 *
+	 * @param tree
+	 *            - treeMap of memberId => member object
+	 * @throws IOException
+	 */
+	public synchronized void replay( TreeMap<Integer, HospitalityMember> tree )
+			throws IOException {
+		MemberRecordParser parser = new MemberRecordParser( charset );
+		TreeTarget target = new TreeTarget( tree );
+
+		entries = 0;
+		replay( rotatedFile, 0, parser, target );
+		offset = replay( journalFile, 0, parser, target );
+		target.link();
+	}
+
+	/**
+	 * Replay the entries other programs appended since this one last read or
+	 * wrote the journal. The {@link DataFileLock} must be held.
+	 *
+	 * @param target
+	 *            - where the entries go
+	 * @return false if the journal was cleared since, so the data file must
+	 *         be read again
+	 * @throws IOException
+	 */
+	public synchronized boolean replayNew( Target target ) throws IOException {
+		if ( journalFile.length() < offset ) {
+			return false;
+		}
+
+		offset = replay( journalFile, offset, new MemberRecordParser( charset ),
+				target );
+		return true;
+	}
+
+	// Private methods
+
+	/**
+	 * Add the last scheduled lines for some members.
+	 */
+	private void scheduledLines( StringBuilder sb,
+			Collection<HospitalityMember> members, Date date ) {
+		String dateStr = DayFormat.format( MemberRecord.toDay( date ) );
+
+		for ( HospitalityMember hm : members ) {
+			sb.append( SCHEDULED ).append( '\t' );
+			sb.append( hm.getMemberNumber() ).append( '\t' );
+			sb.append( dateStr ).append( '\n' );
+		}
+	}
+
+	/**
+	 * Append text to the journal, opening and closing it. The caller holds
+	 * the {@link DataFileLock} and has replayed everything before, so the
+	 * journal has now been read up to its end.
+	 */
+	private void append( String text ) throws IOException {
+		cutTornLine();
+		OutputStream out = new FileOutputStream( journalFile, true );
+
+		try {
+			out.write( text.getBytes( charset ) );
+		}
+		finally {
+			out.close();
+		}
+
+		offset = journalFile.length();
+		entries++;
+	}
+
+	/**
+	 * Cut a last line torn by a crash off the journal, back to just after its
+	 * last new line, so the next entry starts a line of its own and the torn
+	 * one is never replayed. The journal is read back from its end a chunk
+	 * at a time.
+	 */
+	private void cutTornLine() throws IOException {
+		long length = journalFile.length();
+
+		if ( length == 0 ) {
+			return;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile( journalFile, "rw" );
+		try {
+			byte[] chunk = new byte[TAIL_CHUNK];
+			long end = length;
+
+			while ( end > 0 ) {
+				int count = (int) Math.min( chunk.length, end );
+				raf.seek( end - count );
+				raf.readFully( chunk, 0, count );
+
+				for ( int i = count - 1; i >= 0; i-- ) {
+					if ( chunk[i] == '\n' ) {
+						long lineEnd = end - count + i + 1;
+
+						if ( lineEnd < length ) {
+							raf.setLength( lineEnd );
+						}
+
+						return;
+					}
+				}
+
+				end -= count;
+			}
+
+			// nothing but a torn line
+			raf.setLength( 0 );
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Replay the complete lines of one journal file from a position.
+	 *
+	 * @return the position after the last complete line
+	 */
+	private long replay( File journal, long from, MemberRecordParser parser,
+			Target target ) throws IOException {
+		if ( !journal.exists() ) {
+			return 0;
+		}
+
+		ByteBuffer buf;
+		FileChannel channel = new FileInputStream( journal ).getChannel();
+		try {
+			buf = ByteBuffer.allocate( (int) Math.max( 0, channel.size()
+					- from ) );
+
+			while ( buf.hasRemaining() ) {
+				if ( channel.read( buf, from + buf.position() ) < 0 ) {
+					break;
+				}
+			}
+		}
+		finally {
+			channel.close();
+		}
+
+		int limit = buf.position();
+		int lineStart = 0;
+
+		for ( int i = 0; i < limit; i++ ) {
+			if ( buf.get( i ) == '\n' ) {
+				applyEntry( buf, lineStart, i, parser, target );
+				lineStart = i + 1;
+				entries++;
+			}
+		}
+
+		// a last line with no new line was torn by a crash, or is still being
+		// written, leave it
+		return from + lineStart;
+	}
+
+	/**
+	 * Apply one journal line. Lines that can't be read are skipped.
+	 */
+	private void applyEntry( ByteBuffer buf, int start, int end,
+			MemberRecordParser parser, Target target ) {
+		if ( end - start < 3 || buf.get( start + 1 ) != '\t' ) {
+			return;
+		}
+
+		char type = (char) buf.get( start );
+
+		if ( type == UPSERT ) {
+			Map<Integer, Integer> schedWith = new HashMap<Integer, Integer>();
+			HospitalityMember hm =
+					parser.parse( buf, start + 2, end, schedWith );
+			if ( hm != null ) {
+				Integer schedNum = schedWith.get( hm.getMemberNumber() );
+				target.upsert( new MemberRecord( hm.getMemberNumber(), hm
+						.getFirstName(), hm.getLastName(),
+						schedNum == null ? MemberRecord.NO_MEMBER : schedNum, hm
+								.isTeamLeader(), hm.getLastScheduledDay(), 0 ) );
+			}
+			return;
+		}
+
+		byte[] bytes = new byte[end - start - 2];
+		for ( int i = 0; i < bytes.length; i++ ) {
+			bytes[i] = buf.get( start + 2 + i );
+		}
+		String[] fields = new String( bytes, charset ).split( "\t" );
+
+		try {
+			Integer number = Integer.valueOf( fields[0] );
+
+			if ( type == DELETE ) {
+				target.delete( number );
+			}
+			else if ( type == SCHEDULED && fields.length > 1 ) {
+				target.scheduled( number, DayFormat.parse( fields[1] ) );
+			}
+		}
+		catch ( NumberFormatException e ) {
+		}
+		catch ( ParseException e ) {
+		}
+	}
+
+	/**
+	 * Replays entries into a tree of members.
+	 */
+	private static class TreeTarget implements Target {
+		private final TreeMap<Integer, HospitalityMember> tree;
+		private final Map<Integer, Integer> schedWithHash =
+				new HashMap<Integer, Integer>();
+
+		TreeTarget( TreeMap<Integer, HospitalityMember> tree ) {
+			this.tree = tree;
+		}
+
+		@Override
+		public void upsert( MemberRecord record ) {
+			schedWithHash.remove( record.getNumber() );
+
+			if ( record.getScheduleWith() != MemberRecord.NO_MEMBER ) {
+				schedWithHash.put( record.getNumber(), record.getScheduleWith() );
+			}
+
+			tree.put( record.getNumber(), record.toMember() );
+		}
+
+		@Override
+		public void delete( Integer number ) {
+			tree.remove( number );
+			schedWithHash.remove( number );
+		}
+
+		@Override
+		public void scheduled( Integer number, int day ) {
+			HospitalityMember hm = tree.get( number );
+			if ( hm != null ) {
+				hm.setLastScheduledDay( day );
+			}
+		}
+
+		/**
+		 * Link "scheduleWith" for replayed members.
+		 */
+		void link() {
+			for ( Integer number : schedWithHash.keySet() ) {
+				HospitalityMember hm = tree.get( number );
+				if ( hm != null ) {
+					hm.setScheduleWith( tree.get( schedWithHash.get( number ) ) );
+				}
+			}
+		}
+	}
+
+}
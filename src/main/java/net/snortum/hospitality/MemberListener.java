@@ -0,0 +1,43 @@
+package net.snortum.hospitality;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.EventListener;
+
+/**
+ * Told about changes written to a {@link MemberRepository}, so that indexes
+ * built from the members can be kept up to date without reading them again.
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public interface MemberListener extends EventListener {
+
+	/**
+	 * Members were added or changed.
+	 *
+	 * @param members
+	 *            - the new or changed members
+	 */
+	void membersUpdated( Collection<HospitalityMember> members );
+
+	/**
+	 * A member was removed.
+	 *
+	 * @param number
+	 *            - the member number
+	 */
+	void memberRemoved( Integer number );
+
+	/**
+	 * Members were scheduled.
+	 *
+	 * @param members
+	 *            - the members scheduled
+	 * @param date
+	 *            - the date they were scheduled
+	 */
+	void membersScheduled( Collection<HospitalityMember> members, Date date );
+
+}
@@ -0,0 +1,96 @@
+package net.snortum.hospitality;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * The listeners of one repository, helper class for the
+ * {@link MemberRepository} implementations. Listeners can be added and
+ * removed while another thread is firing.
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class MemberListeners {
+
+	// Fields
+	private final List<MemberListener> listeners =
+			new CopyOnWriteArrayList<MemberListener>();
+
+	void add( MemberListener listener ) {
+		listeners.add( listener );
+	}
+
+	void remove( MemberListener listener ) {
+		listeners.remove( listener );
+	}
+
+	void fireUpdated( Collection<HospitalityMember> members ) {
+		for ( MemberListener listener : listeners ) {
+			listener.membersUpdated( members );
+		}
+	}
+
+	void fireRemoved( Integer number ) {
+		for ( MemberListener listener : listeners ) {
+			listener.memberRemoved( number );
+		}
+	}
+
+	void fireScheduled( Collection<HospitalityMember> members, Date date ) {
+		for ( MemberListener listener : listeners ) {
+			listener.membersScheduled( members, date );
+		}
+	}
+
+	/**
+	 * Wrap a listener that may only be used on the event thread, for a
+	 * repository written on another thread. Each event is passed on later on
+	 * the event thread, in the order fired.
+	 *
+	 * @param listener
+	 *            - the listener to call on the event thread
+	 * @return a listener that can be called on any thread
+	 */
+	static MemberListener onEventThread( final MemberListener listener ) {
+		return new MemberListener() {
+			@Override
+			public void membersUpdated(
+					final Collection<HospitalityMember> members ) {
+				SwingUtilities.invokeLater( new Runnable() {
+					@Override
+					public void run() {
+						listener.membersUpdated( members );
+					}
+				} );
+			}
+
+			@Override
+			public void memberRemoved( final Integer number ) {
+				SwingUtilities.invokeLater( new Runnable() {
+					@Override
+					public void run() {
+						listener.memberRemoved( number );
+					}
+				} );
+			}
+
+			@Override
+			public void membersScheduled(
+					final Collection<HospitalityMember> members, final Date date ) {
+				SwingUtilities.invokeLater( new Runnable() {
+					@Override
+					public void run() {
+						listener.membersScheduled( members, date );
+					}
+				} );
+			}
+		};
+	}
+
+}
@@ -0,0 +1,220 @@
+package net.snortum.hospitality;
+
+import java.time.ZoneId;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * The saved fields of one member, as a value that never changes. Numbers are
+ * plain ints, "schedule with" is the other member's number rather than a
+ * reference, and the last scheduled date is a day number, so a record is one
+ * small object plus its names. Names are interned, so the many members who
+ * share a first or last name share one string.
+ *
+ * <p>
+ * Records can be shared by any number of threads. To change a member, make a
+ * new record with one of the <code>with</code> methods. Selection state, such
+ * as why a member was chosen, is not kept here; see {@link MemberSelector}.
+ * </p>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public final class MemberRecord {
+
+	// Constants
+	/** "Schedule with" for a member who schedules alone */
+	public final static int NO_MEMBER = 0;
+	/** Last scheduled day for a member never scheduled */
+	public final static int NEVER = Integer.MIN_VALUE;
+	private final static long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	/**
+	 * Oldest last scheduled day first, never scheduled before that, ties to
+	 * the lower member number, the same order as
+	 * {@link MemberRepository#findOldest(int)}.
+	 */
+	public final static Comparator<MemberRecord> OLDEST_FIRST =
+			new Comparator<MemberRecord>() {
+				@Override
+				public int compare( MemberRecord arg0, MemberRecord arg1 ) {
+					if ( arg0.lastScheduled != arg1.lastScheduled ) {
+						return arg0.lastScheduled < arg1.lastScheduled ? -1 : 1;
+					}
+
+					return arg0.number < arg1.number ? -1
+							: arg0.number == arg1.number ? 0 : 1;
+				}
+			};
+
+	// Fields
+	private final int number;
+	private final String firstName;
+	private final String lastName;
+	private final int scheduleWith;
+	private final boolean teamLeader;
+	private final int lastScheduled;
+	private final int version;
+
+	/**
+	 * @param number
+	 *            - the member number
+	 * @param firstName
+	 *            - first name
+	 * @param lastName
+	 *            - last name
+	 * @param scheduleWith
+	 *            - number of the member to schedule with, or
+	 *            {@link #NO_MEMBER}
+	 * @param teamLeader
+	 *            - true if a team leader
+	 * @param lastScheduled
+	 *            - last scheduled day (see {@link #toDay(Date)}), or
+	 *            {@link #NEVER}
+	 * @param version
+	 *            - writes since the member was added
+	 */
+	public MemberRecord( int number, String firstName, String lastName,
+			int scheduleWith, boolean teamLeader, int lastScheduled,
+			int version ) {
+		this.number = number;
+		this.firstName = firstName == null ? null : firstName.intern();
+		this.lastName = lastName == null ? null : lastName.intern();
+		this.scheduleWith = scheduleWith;
+		this.teamLeader = teamLeader;
+		this.lastScheduled = lastScheduled;
+		this.version = version;
+	}
+
+	/**
+	 * @param hm
+	 *            - a member
+	 * @return the member's saved fields
+	 */
+	public static MemberRecord of( HospitalityMember hm ) {
+		return new MemberRecord( hm.getMemberNumber(), hm.getFirstName(),
+				hm.getLastName(), hm.getScheduleWith() == null ? NO_MEMBER
+						: hm.getScheduleWith().getMemberNumber(),
+				hm.isTeamLeader(), hm.getLastScheduledDay(), hm.getVersion() );
+	}
+
+	/**
+	 * Make a member object from the record. "Schedule with" is left null for
+	 * the caller to link.
+	 *
+	 * @return a new member object
+	 */
+	public HospitalityMember toMember() {
+		HospitalityMember hm =
+				new HospitalityMember( Integer.valueOf( number ), firstName,
+						lastName, null, teamLeader, lastScheduled );
+		hm.setVersion( version );
+		return hm;
+	}
+
+	// Getters
+
+	public int getNumber() {
+		return number;
+	}
+
+	public String getFirstName() {
+		return firstName;
+	}
+
+	public String getLastName() {
+		return lastName;
+	}
+
+	/**
+	 * @return the number of the member to schedule with, or
+	 *         {@link #NO_MEMBER}
+	 */
+	public int getScheduleWith() {
+		return scheduleWith;
+	}
+
+	public boolean isTeamLeader() {
+		return teamLeader;
+	}
+
+	/**
+	 * @return the last scheduled day, or {@link #NEVER}
+	 */
+	public int getLastScheduled() {
+		return lastScheduled;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	// Changed copies
+
+	/**
+	 * @param day
+	 *            - the new last scheduled day
+	 * @return a copy scheduled on that day
+	 */
+	public MemberRecord withLastScheduled( int day ) {
+		return new MemberRecord( number, firstName, lastName, scheduleWith,
+				teamLeader, day, version );
+	}
+
+	/**
+	 * @param version
+	 *            - the new version
+	 * @return a copy at that version
+	 */
+	public MemberRecord withVersion( int version ) {
+		return new MemberRecord( number, firstName, lastName, scheduleWith,
+				teamLeader, lastScheduled, version );
+	}
+
+	// Days
+
+	/**
+	 * Turn a date into a day number, days since 1/1/1970 (see
+	 * {@link DayFormat}). Only the calendar day in the local time zone counts,
+	 * not the time.
+	 *
+	 * @param date
+	 *            - a date or null
+	 * @return the day or {@link #NEVER} if the date is null
+	 */
+	public static int toDay( Date date ) {
+		if ( date == null ) {
+			return NEVER;
+		}
+
+		long millis = date.getTime();
+		return (int) Math.floorDiv( millis
+				+ TimeZone.getDefault().getOffset( millis ), MILLIS_PER_DAY );
+	}
+
+	/**
+	 * Turn a day number back into a date, at midnight local time.
+	 *
+	 * @param day
+	 *            - from {@link #toDay(Date)}
+	 * @return the date or null if the day is {@link #NEVER}
+	 */
+	public static Date toDate( int day ) {
+		if ( day == NEVER ) {
+			return null;
+		}
+
+		return Date.from( DayFormat.toLocalDate( day )
+				.atStartOfDay( ZoneId.systemDefault() ).toInstant() );
+	}
+
+	@Override
+	public String toString() {
+		return number + "\t" + firstName + "\t" + lastName + "\t"
+				+ ( scheduleWith == NO_MEMBER ? "" : scheduleWith ) + "\t"
+				+ teamLeader + "\t" + lastScheduled + "\t" + version;
+	}
+
+}
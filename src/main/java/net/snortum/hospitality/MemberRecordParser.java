@@ -0,0 +1,272 @@
+package net.snortum.hospitality;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Parses one tab separated member record straight from the bytes of a buffer.
+ * This replaces the regular expression that was used to load the data file.
+ * Member numbers and dates are built from the digits as they are read, so the
+ * only Strings created are the first and last names. A parser is not thread
+ * safe; use one per loading thread.
+ *
+ * <p>
+ * The record format is:
+ * </p>
+ *
+ * <pre>
+ * number TAB first TAB last TAB [schedule with] TAB true|false TAB [MM/dd/yyyy]
+ * </pre>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class MemberRecordParser {
+
+	// Constants
+	private final static byte TAB = '\t';
+	private final static byte SLASH = '/';
+	private final static int NO_NUMBER = -1;
+
+	// Fields
+	private final Charset charset;
+	private byte[] nameBytes = new byte[64];
+	private int pos;
+
+	/**
+	 * Create a parser that decodes names with the given character set.
+	 *
+	 * @param charset
+	 *            - the character set of the data file
+	 */
+	public MemberRecordParser( Charset charset ) {
+		this.charset = charset;
+	}
+
+	/**
+	 * Parse one line into a member. The "schedule with" member can't be
+	 * resolved until all records are read, so its number is saved in
+	 * <code>schedWithHash</code>.
+	 *
+	 * @param buf
+	 *            - buffer holding the line, read with absolute gets
+	 * @param start
+	 *            - index of the first byte of the line
+	 * @param end
+	 *            - index one past the last byte, line terminator excluded
+	 * @param schedWithHash
+	 *            - member number =&gt; schedule with number
+	 * @return the member, or null if the line is not in record format
+	 */
+	public HospitalityMember parse( ByteBuffer buf, int start, int end,
+			Map<Integer, Integer> schedWithHash ) {
+		pos = start;
+
+		int memberNo = parseNumber( buf, end );
+		if ( memberNo == NO_NUMBER || !skipTab( buf, end ) ) {
+			return null;
+		}
+
+		String first = parseName( buf, end );
+		if ( first == null || !skipTab( buf, end ) ) {
+			return null;
+		}
+
+		String last = parseName( buf, end );
+		if ( last == null || !skipTab( buf, end ) ) {
+			return null;
+		}
+
+		int schedWith = parseNumber( buf, end );
+		if ( !skipTab( buf, end ) ) {
+			return null;
+		}
+
+		int leader = parseBoolean( buf, end );
+		if ( leader < 0 ) {
+			return null;
+		}
+
+		// the last scheduled date is optional, as is the tab in front of it
+		int lastSched = MemberRecord.NEVER;
+		if ( skipTab( buf, end ) ) {
+			lastSched = parseDay( buf, end );
+		}
+
+		if ( schedWith != NO_NUMBER ) {
+			schedWithHash.put( memberNo, schedWith );
+		}
+
+		return new HospitalityMember( memberNo, first, last, null,
+				leader == 1, lastSched );
+	}
+
+	/**
+	 * Read a run of digits as a non-negative int.
+	 *
+	 * @return the number or {@link #NO_NUMBER} if there are no digits or the
+	 *         number is too big
+	 */
+	private int parseNumber( ByteBuffer buf, int end ) {
+		long value = 0;
+		int digits = 0;
+
+		while ( pos < end ) {
+			int d = buf.get( pos ) - '0';
+			if ( d < 0 || d > 9 ) {
+				break;
+			}
+			value = value * 10 + d;
+			if ( value > Integer.MAX_VALUE ) {
+				return NO_NUMBER;
+			}
+			digits++;
+			pos++;
+		}
+
+		return digits > 0 ? (int) value : NO_NUMBER;
+	}
+
+	/**
+	 * Read a non-empty run of bytes up to the next tab.
+	 *
+	 * @return the name or null if the field is empty
+	 */
+	private String parseName( ByteBuffer buf, int end ) {
+		int nameStart = pos;
+
+		while ( pos < end && buf.get( pos ) != TAB ) {
+			pos++;
+		}
+
+		int length = pos - nameStart;
+		if ( length == 0 ) {
+			return null;
+		}
+
+		if ( buf.hasArray() ) {
+			return new String( buf.array(), buf.arrayOffset() + nameStart,
+					length, charset );
+		}
+
+		// direct or mapped buffer, copy into scratch space first
+		if ( nameBytes.length < length ) {
+			nameBytes = new byte[length * 2];
+		}
+
+		for ( int i = 0; i < length; i++ ) {
+			nameBytes[i] = buf.get( nameStart + i );
+		}
+
+		return new String( nameBytes, 0, length, charset );
+	}
+
+	/**
+	 * Read "true" or "false" in any case.
+	 *
+	 * @return 1 for true, 0 for false, -1 for anything else
+	 */
+	private int parseBoolean( ByteBuffer buf, int end ) {
+		if ( matchIgnoreCase( buf, end, "true" ) ) {
+			return 1;
+		}
+
+		if ( matchIgnoreCase( buf, end, "false" ) ) {
+			return 0;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Match an ASCII lower case word at the current position, ignoring case.
+	 * The position moves past the word only if it matches.
+	 */
+	private boolean matchIgnoreCase( ByteBuffer buf, int end, String word ) {
+		int length = word.length();
+
+		if ( end - pos < length ) {
+			return false;
+		}
+
+		for ( int i = 0; i < length; i++ ) {
+			if ( ( buf.get( pos + i ) | 0x20 ) != word.charAt( i ) ) {
+				return false;
+			}
+		}
+
+		pos += length;
+		return true;
+	}
+
+	/**
+	 * Read a date as M/d/yyyy. Spreadsheets drop leading zeros from the month
+	 * and day, so one or two digits are accepted for each.
+	 *
+	 * @return the day (see {@link DayFormat}) or {@link MemberRecord#NEVER}
+	 *         if there isn't a valid one
+	 */
+	private int parseDay( ByteBuffer buf, int end ) {
+		int month = parseDigits( buf, end, 1, 2 );
+		if ( month < 0 || !skip( buf, end, SLASH ) ) {
+			return MemberRecord.NEVER;
+		}
+
+		int day = parseDigits( buf, end, 1, 2 );
+		if ( day < 0 || !skip( buf, end, SLASH ) ) {
+			return MemberRecord.NEVER;
+		}
+
+		int year = parseDigits( buf, end, 4, 4 );
+		if ( year < 0 ) {
+			return MemberRecord.NEVER;
+		}
+
+		// lenient, like SimpleDateFormat
+		return DayFormat.of( year, month, day );
+	}
+
+	/**
+	 * Read between <code>min</code> and <code>max</code> digits.
+	 *
+	 * @return the number or -1 if there are too few digits
+	 */
+	private int parseDigits( ByteBuffer buf, int end, int min, int max ) {
+		int value = 0;
+		int digits = 0;
+
+		while ( pos < end && digits < max ) {
+			int d = buf.get( pos ) - '0';
+			if ( d < 0 || d > 9 ) {
+				break;
+			}
+			value = value * 10 + d;
+			digits++;
+			pos++;
+		}
+
+		return digits >= min ? value : -1;
+	}
+
+	/**
+	 * @return true if the next byte is a tab, which is skipped
+	 */
+	private boolean skipTab( ByteBuffer buf, int end ) {
+		return skip( buf, end, TAB );
+	}
+
+	/**
+	 * @return true if the next byte is <code>b</code>, which is skipped
+	 */
+	private boolean skip( ByteBuffer buf, int end, byte b ) {
+		if ( pos < end && buf.get( pos ) == b ) {
+			pos++;
+			return true;
+		}
+
+		return false;
+	}
+
+}
@@ -0,0 +1,176 @@
+package net.snortum.hospitality;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.TreeMap;
+
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+
+/**
+ * Opens the member repository chosen by system properties, helper class for
+ * {@link Schedule} and {@link HospitalityMembers}.
+ *
+ * <ul>
+ * <li><code>hospitality.repository</code> = <code>text</code> (the default),
+ * <code>jdbc</code>, <code>mapped</code> or <code>memory</code></li>
+ * <li><code>hospitality.jdbc.url</code> = the JDBC URL, by default
+ * <code>jdbc:h2:./HospitalityMembers</code></li>
+ * <li><code>hospitality.mapped.file</code> = the mapped member file, by
+ * default <code>HospitalityMembers.map</code>. If there is none, it is made
+ * from the text data file.</li>
+ * </ul>
+ *
+ * <p>
+ * The repository is opened once for the whole program, so every window that
+ * opens it gets the same one and its listeners hear the other windows'
+ * writes.
+ * </p>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public class MemberRepositories {
+
+	// Constants
+	public final static String REPOSITORY_PROPERTY = "hospitality.repository";
+	public final static String JDBC_URL_PROPERTY = "hospitality.jdbc.url";
+	public final static String MAPPED_FILE_PROPERTY = "hospitality.mapped.file";
+	private final static String DEFAULT_JDBC_URL = "jdbc:h2:./HospitalityMembers";
+	private final static String DEFAULT_MAPPED_FILE = "HospitalityMembers.map";
+
+	// Fields
+	private static MemberRepository shared; // guarded by the class
+
+	// All members are static
+	private MemberRepositories() {
+	}
+
+	/**
+	 * Open the configured repository, or return it if it is already open. The
+	 * program aborts if it can't be opened, as it does when the data file
+	 * can't be opened.
+	 *
+	 * @param frame
+	 *            - JFrame in which to display the errors. Only the frame of
+	 *            the window that opens the repository first is used.
+	 * @return the repository
+	 */
+	public static synchronized MemberRepository open( JFrame frame ) {
+		if ( shared == null ) {
+			shared = openConfigured( frame );
+		}
+
+		return shared;
+	}
+
+	// Private methods
+
+	/**
+	 * Open the repository chosen by the system properties.
+	 */
+	private static MemberRepository openConfigured( JFrame frame ) {
+		String type = System.getProperty( REPOSITORY_PROPERTY, "text" );
+
+		if ( type.equals( "memory" ) ) {
+			return new InMemoryMemberRepository();
+		}
+
+		if ( type.equals( "jdbc" ) ) {
+			String url =
+					System.getProperty( JDBC_URL_PROPERTY, DEFAULT_JDBC_URL );
+			try {
+				return new JdbcMemberRepository( frame, url );
+			}
+			catch ( SQLException e ) {
+				String message =
+						"Cannot open database " + url + ": " + e.getMessage()
+								+ "\nProgram will abort";
+				Utility.showMessage( frame, message,
+						"Cannot Open Database", JOptionPane.ERROR_MESSAGE );
+				System.exit( 1 );
+			}
+		}
+
+		if ( type.equals( "mapped" ) ) {
+			return openMapped( frame );
+		}
+
+		return new TextMemberRepository( frame );
+	}
+
+	/**
+	 * Open the mapped member file, filling a new one from the text data file.
+	 */
+	private static MemberRepository openMapped( JFrame frame ) {
+		File mapFile =
+				new File( System.getProperty( MAPPED_FILE_PROPERTY,
+						DEFAULT_MAPPED_FILE ) );
+
+		try {
+			if ( !mapFile.exists() ) {
+				fillMapped( frame, mapFile );
+			}
+
+			return new MappedMemberRepository( frame, mapFile );
+		}
+		catch ( IOException e ) {
+			String message =
+					"Cannot open member file " + mapFile + ": "
+							+ e.getMessage() + "\nProgram will abort";
+			Utility.showMessage( frame, message, "Cannot Open File",
+					JOptionPane.ERROR_MESSAGE );
+			System.exit( 1 );
+			return null;
+		}
+	}
+
+	/**
+	 * Make the mapped member file from the text data file. It is filled under
+	 * another name and then renamed, so a program stopped part way never
+	 * leaves a mapped file with members missing.
+	 *
+	 * @throws IOException
+	 *             if the members can't be read or written; there is still no
+	 *             mapped file
+	 */
+	private static void fillMapped( JFrame frame, File mapFile )
+			throws IOException {
+		TreeMap<Integer, HospitalityMember> tree =
+				new TextMemberRepository( frame ).findAll();
+
+		if ( tree == null ) {
+			throw new IOException( "The members couldn't be read" );
+		}
+
+		File temp =
+				File.createTempFile( mapFile.getName(), ".tmp", mapFile
+						.getAbsoluteFile().getParentFile() );
+
+		try {
+			MappedMemberStore.create( temp, tree.values() );
+
+			try {
+				Files.move( temp.toPath(), mapFile.toPath(),
+						StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING );
+			}
+			catch ( AtomicMoveNotSupportedException e ) {
+				Files.move( temp.toPath(), mapFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING );
+			}
+		}
+		catch ( IllegalArgumentException e ) {
+			throw new IOException( e.getMessage() );
+		}
+		finally {
+			temp.delete(); // already gone if it was renamed
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+package net.snortum.hospitality;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Data access for hospitality members. {@link Schedule} and
+ * {@link HospitalityMembers} only talk to the members through this interface,
+ * so the data can live in the text file, an embedded database or memory. Use
+ * {@link MemberRepositories#open(javax.swing.JFrame)} to get the configured
+ * one.
+ *
+ * <p>
+ * Writes take a batch of members so that each user action is one write, not
+ * one write per member. Errors are shown to the user by the implementation.
+ * {@link MemberListener}s are told about each write that succeeds.
+ * </p>
+ *
+ * <p>
+ * Writes are optimistic. Each member has a version, moved on by every write.
+ * A write names the versions it was made from; if another session wrote one
+ * of those members since, or removed one that was being scheduled, nothing is
+ * written and the conflicting member numbers are returned, so the caller can
+ * read them again and retry. No lock is held between reading and writing. On
+ * success the versions of the members passed in are moved on to the ones
+ * stored.
+ * </p>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public interface MemberRepository {
+
+	/**
+	 * Load every member, with "schedule with" linked.
+	 *
+	 * @return treeMap of memberId => member object, or null on error. The map
+	 *         belongs to the caller.
+	 */
+	TreeMap<Integer, HospitalityMember> findAll();
+
+	/**
+	 * Load one member.
+	 *
+	 * @param number
+	 *            - the member number
+	 * @return the member or null if there is no such member
+	 */
+	HospitalityMember findById( Integer number );
+
+	/**
+	 * Load the members scheduled longest ago, for selection. Members never
+	 * scheduled come first; ties go to the lower member number. Each member's
+	 * "schedule with" member is linked, even if it isn't one of the oldest.
+	 *
+	 * @param limit
+	 *            - how many members to load at most
+	 * @return the oldest members, oldest first
+	 */
+	List<HospitalityMember> findOldest( int limit );
+
+	/**
+	 * Load the team leaders scheduled longest ago, in the same order as
+	 * {@link #findOldest(int)}.
+	 *
+	 * @param limit
+	 *            - how many team leaders to load at most
+	 * @return the oldest team leaders, oldest first
+	 */
+	List<HospitalityMember> findOldestTeamLeaders( int limit );
+
+	/**
+	 * Load the members whose "schedule with" member is this one. A member
+	 * with no "schedule with" of its own can still be in a group, through the
+	 * members that name it.
+	 *
+	 * @param number
+	 *            - the member number
+	 * @return the members, with "schedule with" linked, empty if there are
+	 *         none
+	 */
+	List<HospitalityMember> findScheduledWith( Integer number );
+
+	/**
+	 * Add or replace members, in one write.
+	 *
+	 * @param members
+	 *            - new or changed members, changed members with the version
+	 *            they were read at
+	 * @return the numbers of members changed by someone else, empty if the
+	 *         write was made
+	 */
+	List<Integer> upsertAll( Collection<HospitalityMember> members );
+
+	/**
+	 * Remove a member.
+	 *
+	 * @param number
+	 *            - the member number
+	 */
+	void delete( Integer number );
+
+	/**
+	 * Set the last scheduled date of members, in one write.
+	 *
+	 * @param members
+	 *            - the members scheduled
+	 * @param date
+	 *            - the date they were scheduled
+	 * @return the numbers of members changed by someone else, empty if the
+	 *         write was made
+	 */
+	List<Integer> recordScheduled( Collection<HospitalityMember> members,
+			Date date );
+
+	/**
+	 * Set the last scheduled dates for a whole schedule, many dates, in one
+	 * write. A member on more than one date ends up with the latest.
+	 *
+	 * @param plan
+	 *            - date => members scheduled on that date
+	 * @return the numbers of members changed by someone else, empty if the
+	 *         write was made
+	 */
+	List<Integer> recordSchedule( SortedMap<Date, List<HospitalityMember>> plan );
+
+	/**
+	 * Be told about each write once it is done.
+	 *
+	 * @param listener
+	 *            - the listener to add
+	 */
+	void addMemberListener( MemberListener listener );
+
+	/**
+	 * Stop being told about writes.
+	 *
+	 * @param listener
+	 *            - the listener to remove
+	 */
+	void removeMemberListener( MemberListener listener );
+
+}
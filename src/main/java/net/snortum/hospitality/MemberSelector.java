@@ -0,0 +1,216 @@
+package net.snortum.hospitality;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The rules for selecting a team, helper class for {@link Schedule} and
+ * {@link ScheduleEngine}. Members are taken oldest scheduled first, members
+ * who schedule together are added as a group, and one space is kept for a
+ * team leader. If there are no team leaders left, the oldest member who
+ * schedules with no one, either way round, is added instead.
+ *
+ * <p>
+ * Why each member was selected is kept here, for this run only, rather than
+ * in the members, so selecting never changes a member.
+ * </p>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class MemberSelector {
+
+	// Constants
+	final static int TEAM_SIZE = 5;
+
+	// Fields
+	private final CandidateIndex candidates;
+	private final Map<Integer, String> reasons = new HashMap<Integer, String>();
+
+	/**
+	 * @param candidates
+	 *            - the members to select from
+	 */
+	MemberSelector( CandidateIndex candidates ) {
+		this.candidates = candidates;
+	}
+
+	/**
+	 * @param hm
+	 *            - a selected member
+	 * @return why the member was selected, or "" if it wasn't
+	 */
+	String reasonFor( HospitalityMember hm ) {
+		String reason = reasons.get( hm.getMemberNumber() );
+		return reason == null ? "" : reason;
+	}
+
+	/**
+	 * Select members until the team is full. Members already in the list stay
+	 * in it. Members looked at but not selected are put back for next time.
+	 *
+	 * @param selectedMembers
+	 *            - the team so far, added to
+	 */
+	void select( List<HospitalityMember> selectedMembers ) {
+		boolean isTeamLeaderSelected = hasTeamLeader( selectedMembers );
+		List<HospitalityMember> skipped = new ArrayList<HospitalityMember>();
+
+		// Get five members but leave a space for the team leader
+		while ( selectedMembers.size() < TEAM_SIZE
+				&& ( isTeamLeaderSelected
+						|| selectedMembers.size() < TEAM_SIZE - 1 ) ) {
+			HospitalityMember nominee = candidates.poll();
+
+			// any more members?
+			if ( nominee == null ) {
+				break;
+			}
+
+			if ( isTeamLeaderSelected && nominee.isTeamLeader() ) {
+				skipped.add( nominee );
+				continue;
+			}
+
+			if ( selectedMembers.contains( nominee ) ) {
+				continue;
+			}
+
+			// check for sched with members, named by the nominee or naming it
+			if ( candidates.groupOf( nominee ).size() == 1 ) {
+				selectedMembers.add( nominee );
+				reasons.put( nominee.getMemberNumber(),
+						"Oldest scheduled date" );
+
+				if ( nominee.isTeamLeader() ) {
+					isTeamLeaderSelected = true;
+				}
+			}
+			else if ( !selectGroup( selectedMembers, room( selectedMembers,
+					isTeamLeaderSelected ), nominee, "Oldest scheduled date" ) ) {
+				skipped.add( nominee );
+			}
+			else if ( !isTeamLeaderSelected ) {
+				isTeamLeaderSelected = hasTeamLeader( selectedMembers );
+			}
+		}
+
+		selectTeamLeader( selectedMembers, isTeamLeaderSelected );
+
+		// leaders and groups that didn't fit can be selected next time
+		for ( HospitalityMember hm : skipped ) {
+			candidates.restore( hm );
+		}
+	}
+
+	// Private methods
+
+	/**
+	 * Select a team leader, helper for {@link #select(List)}. A team leader
+	 * who schedules with others is only added if they all fit.
+	 */
+	private void selectTeamLeader( List<HospitalityMember> selectedMembers,
+			boolean isTeamLeaderSelected ) {
+		if ( isTeamLeaderSelected || selectedMembers.size() >= TEAM_SIZE ) {
+			return;
+		}
+
+		List<HospitalityMember> skipped = new ArrayList<HospitalityMember>();
+		HospitalityMember hm = candidates.pollTeamLeader();
+
+		while ( hm != null
+				&& !selectGroup( selectedMembers,
+						room( selectedMembers, true ), hm, "Added team leader" ) ) {
+			skipped.add( hm );
+			hm = candidates.pollTeamLeader();
+		}
+
+		for ( HospitalityMember leader : skipped ) {
+			candidates.restore( leader );
+		}
+
+		if ( hm != null ) {
+			return;
+		}
+
+		// if no team leader found, add anyone who schedules alone
+		skipped.clear();
+		hm = candidates.pollSolo();
+
+		while ( hm != null && candidates.groupOf( hm ).size() > 1 ) {
+			skipped.add( hm );
+			hm = candidates.pollSolo();
+		}
+
+		for ( HospitalityMember named : skipped ) {
+			candidates.restore( named );
+		}
+
+		if ( hm != null ) {
+			selectedMembers.add( hm );
+			reasons.put( hm.getMemberNumber(), "No team leaders found" );
+		}
+	}
+
+	/**
+	 * @return how many more members fit, keeping a space for the team leader
+	 *         if there isn't one yet
+	 */
+	private static int room( List<HospitalityMember> selectedMembers,
+			boolean isTeamLeaderSelected ) {
+		return ( isTeamLeaderSelected ? TEAM_SIZE : TEAM_SIZE - 1 )
+				- selectedMembers.size();
+	}
+
+	/**
+	 * Select a member and everyone who must be scheduled with it, helper for
+	 * {@link #select(List)}. The group is added whole or not at all.
+	 *
+	 * @param room
+	 *            - how many members fit
+	 * @param reason
+	 *            - why the nominee was selected
+	 * @return false if the group doesn't fit on the team
+	 */
+	private boolean selectGroup( List<HospitalityMember> selectedMembers,
+			int room, HospitalityMember nominee, String reason ) {
+		MemberGroups.Group group = candidates.groupOf( nominee );
+
+		if ( group.size() > room && selectedMembers.size() > 0 ) {
+			return false;
+		}
+
+		// add nominee
+		selectedMembers.add( nominee );
+		reasons.put( nominee.getMemberNumber(), reason );
+
+		// add the rest of the group
+		for ( HospitalityMember hm : group.getMembers() ) {
+			if ( hm != nominee && !selectedMembers.contains( hm ) ) {
+				selectedMembers.add( hm );
+				reasons.put( hm.getMemberNumber(), "Schedule with "
+						+ nominee.getMemberNumber().toString() );
+				candidates.remove( hm );
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return true if one of the members is a team leader
+	 */
+	private static boolean hasTeamLeader( List<HospitalityMember> members ) {
+		for ( HospitalityMember hm : members ) {
+			if ( hm.isTeamLeader() ) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+}
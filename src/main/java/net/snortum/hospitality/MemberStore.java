@@ -0,0 +1,607 @@
+package net.snortum.hospitality;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Members shared by several sessions. The members are kept as
+ * {@link MemberRecord}s in a concurrent sorted map. A write changes only the
+ * records it writes, so it costs O(k log N) however big the roster is.
+ * Writes take a write lock, one at a time. One member is read without any
+ * lock, while reads of the whole roster take a read lock, so they never see
+ * half of a write. "Schedule with" is a member number, so changing one member
+ * never touches another. The members who schedule with each member are kept
+ * too, so they are found without a scan.
+ *
+ * <p>
+ * Member objects are made only for what is asked for, and belong to the
+ * caller.
+ * </p>
+ *
+ * <p>
+ * Each write moves the version of the members it changes on by one. Members
+ * passed in must carry the version they were read at; if any is out of date
+ * the whole write is dropped and their numbers are returned. On success the
+ * versions of the members passed in are moved on to match.
+ * </p>
+ *
+ * <p>
+ * Changes another program made to the same data file are put in with the
+ * <code>apply</code> methods and {@link #reload(SortedMap)}. They move
+ * versions on too, so a write from a member as it was before is a conflict.
+ * </p>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public class MemberStore {
+
+	// Fields
+	private final ConcurrentSkipListMap<Integer, MemberRecord> records =
+			new ConcurrentSkipListMap<Integer, MemberRecord>();
+	private final Map<Integer, Set<Integer>> scheduledBy =
+			new HashMap<Integer, Set<Integer>>(); // guarded by lock
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Create an empty store.
+	 */
+	public MemberStore() {
+	}
+
+	/**
+	 * Create a store from loaded members.
+	 *
+	 * @param loaded
+	 *            - memberId => member object, with "schedule with" linked
+	 */
+	public MemberStore( SortedMap<Integer, HospitalityMember> loaded ) {
+		for ( HospitalityMember hm : loaded.values() ) {
+			store( hm.getMemberNumber(), MemberRecord.of( hm ) );
+		}
+	}
+
+	/**
+	 * @return the records, read only. The map changes as members are written.
+	 */
+	public SortedMap<Integer, MemberRecord> records() {
+		return Collections.unmodifiableSortedMap( records );
+	}
+
+	/**
+	 * @return treeMap of memberId => member object, with "schedule with"
+	 *         linked, as of now. The map and members belong to the caller.
+	 */
+	public TreeMap<Integer, HospitalityMember> snapshot() {
+		lock.readLock().lock();
+
+		try {
+			TreeMap<Integer, HospitalityMember> tree =
+					new TreeMap<Integer, HospitalityMember>();
+
+			for ( Integer number : records.keySet() ) {
+				member( number, tree );
+			}
+
+			return tree;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the members as of now, copied into a new {@link MemberTable}
+	 *         in member number order. The table belongs to the caller.
+	 */
+	public MemberTable table() {
+		lock.readLock().lock();
+
+		try {
+			return MemberTable.of( records.values() );
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param number
+	 *            - the member number
+	 * @return the member, with its "schedule with" member linked, or null
+	 */
+	public HospitalityMember get( Integer number ) {
+		return member( number, new HashMap<Integer, HospitalityMember>() );
+	}
+
+	/**
+	 * Find the members scheduled longest ago without making objects for the
+	 * rest. Never scheduled first; ties go to the lower member number.
+	 *
+	 * @param limit
+	 *            - how many to return at most
+	 * @param leadersOnly
+	 *            - true for team leaders only
+	 * @return the oldest members, oldest first, with "schedule with" linked
+	 */
+	public List<HospitalityMember> oldest( int limit, boolean leadersOnly ) {
+		lock.readLock().lock();
+
+		try {
+			PriorityQueue<MemberRecord> heap =
+					new PriorityQueue<MemberRecord>( Math.max( 1,
+							Math.min( limit, records.size() ) ),
+							Collections.reverseOrder( MemberRecord.OLDEST_FIRST ) );
+
+			for ( MemberRecord record : records.values() ) {
+				if ( leadersOnly && !record.isTeamLeader() ) {
+					continue;
+				}
+
+				if ( heap.size() < limit ) {
+					heap.add( record );
+				}
+				else if ( limit > 0
+						&& MemberRecord.OLDEST_FIRST.compare( record,
+								heap.peek() ) < 0 ) {
+					heap.poll();
+					heap.add( record );
+				}
+			}
+
+			List<MemberRecord> oldest = new ArrayList<MemberRecord>( heap );
+			Collections.sort( oldest, MemberRecord.OLDEST_FIRST );
+			Map<Integer, HospitalityMember> made =
+					new HashMap<Integer, HospitalityMember>();
+			List<HospitalityMember> members =
+					new ArrayList<HospitalityMember>( oldest.size() );
+
+			for ( MemberRecord record : oldest ) {
+				members.add( member( record.getNumber(), made ) );
+			}
+
+			return members;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param number
+	 *            - a member number
+	 * @return the members whose "schedule with" member is this one, with
+	 *         "schedule with" linked, lowest number first
+	 */
+	public List<HospitalityMember> scheduledWith( Integer number ) {
+		lock.readLock().lock();
+
+		try {
+			List<HospitalityMember> members = new ArrayList<HospitalityMember>();
+			Set<Integer> numbers = scheduledBy.get( number );
+
+			if ( numbers != null ) {
+				Map<Integer, HospitalityMember> made =
+						new HashMap<Integer, HospitalityMember>();
+
+				for ( Integer by : new TreeSet<Integer>( numbers ) ) {
+					members.add( member( by, made ) );
+				}
+			}
+
+			return members;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Add or replace members.
+	 *
+	 * @param changed
+	 *            - new or changed members
+	 * @return the numbers of members changed since they were read, empty if
+	 *         the write was made
+	 */
+	public List<Integer> upsertAll( Collection<HospitalityMember> changed ) {
+		lock.writeLock().lock();
+
+		try {
+			List<Integer> conflicts = new ArrayList<Integer>();
+			Set<Integer> written = new HashSet<Integer>();
+
+			for ( HospitalityMember hm : changed ) {
+				check( hm, written, conflicts );
+			}
+
+			if ( !conflicts.isEmpty() ) {
+				return conflicts;
+			}
+
+			written.clear();
+
+			for ( HospitalityMember hm : changed ) {
+				MemberRecord current = records.get( hm.getMemberNumber() );
+				MemberRecord record = MemberRecord.of( hm );
+
+				if ( current != null && written.add( hm.getMemberNumber() ) ) {
+					record = record.withVersion( current.getVersion() + 1 );
+				}
+				else if ( current != null ) {
+					record = record.withVersion( current.getVersion() );
+				}
+
+				store( hm.getMemberNumber(), record );
+			}
+
+			moveOn( changed );
+			return conflicts;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove a member.
+	 *
+	 * @param number
+	 *            - the member number
+	 * @return true if there was such a member
+	 */
+	public boolean delete( Integer number ) {
+		lock.writeLock().lock();
+
+		try {
+			return unstore( number );
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Set the last scheduled date of members.
+	 *
+	 * @param scheduled
+	 *            - the members scheduled
+	 * @param date
+	 *            - the date they were scheduled
+	 * @return the numbers of members changed since they were read, empty if
+	 *         the write was made
+	 */
+	public List<Integer> recordScheduled(
+			Collection<HospitalityMember> scheduled, Date date ) {
+		SortedMap<Date, List<HospitalityMember>> plan =
+				new TreeMap<Date, List<HospitalityMember>>();
+		plan.put( date, new ArrayList<HospitalityMember>( scheduled ) );
+		return recordSchedule( plan );
+	}
+
+	/**
+	 * Set the last scheduled dates of a whole schedule in one write. A member
+	 * on more than one date is checked and moved on once, and ends up with
+	 * the latest date. A member no longer stored is a conflict.
+	 *
+	 * @param plan
+	 *            - date => members scheduled on that date
+	 * @return the numbers of members changed since they were read, empty if
+	 *         the write was made
+	 */
+	public List<Integer> recordSchedule(
+			SortedMap<Date, List<HospitalityMember>> plan ) {
+		lock.writeLock().lock();
+
+		try {
+			List<Integer> conflicts = new ArrayList<Integer>();
+			Set<Integer> written = new HashSet<Integer>();
+
+			for ( List<HospitalityMember> team : plan.values() ) {
+				for ( HospitalityMember hm : team ) {
+					if ( !records.containsKey( hm.getMemberNumber() ) ) {
+						if ( !conflicts.contains( hm.getMemberNumber() ) ) {
+							conflicts.add( hm.getMemberNumber() );
+						}
+					}
+					else {
+						check( hm, written, conflicts );
+					}
+				}
+			}
+
+			if ( !conflicts.isEmpty() ) {
+				return conflicts;
+			}
+
+			written.clear();
+
+			for ( Map.Entry<Date, List<HospitalityMember>> entry : plan
+					.entrySet() ) {
+				int day = MemberRecord.toDay( entry.getKey() );
+
+				for ( HospitalityMember hm : entry.getValue() ) {
+					MemberRecord current = records.get( hm.getMemberNumber() );
+
+					if ( written.add( hm.getMemberNumber() ) ) {
+						current = current.withVersion( current.getVersion() + 1 );
+					}
+
+					records.put( hm.getMemberNumber(),
+							current.withLastScheduled( day ) );
+				}
+			}
+
+			for ( List<HospitalityMember> team : plan.values() ) {
+				moveOn( team );
+			}
+
+			return conflicts;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Changes made by other programs
+
+	/**
+	 * Put a member added or changed by another program.
+	 *
+	 * @param record
+	 *            - the member as written; its version is ignored
+	 */
+	public void applyUpsert( MemberRecord record ) {
+		lock.writeLock().lock();
+
+		try {
+			put( record );
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove a member removed by another program.
+	 *
+	 * @param number
+	 *            - the member number
+	 */
+	public void applyDelete( Integer number ) {
+		delete( number );
+	}
+
+	/**
+	 * Set the last scheduled day of a member scheduled by another program.
+	 *
+	 * @param number
+	 *            - the member number
+	 * @param day
+	 *            - the last scheduled day
+	 */
+	public void applyScheduled( Integer number, int day ) {
+		lock.writeLock().lock();
+
+		try {
+			MemberRecord current = records.get( number );
+
+			if ( current != null ) {
+				records.put( number, current.withLastScheduled( day )
+						.withVersion( current.getVersion() + 1 ) );
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replace the members with the ones read again from the file, after
+	 * another program rewrote it. Members that are the same keep their
+	 * versions.
+	 *
+	 * @param loaded
+	 *            - memberId => member object, with "schedule with" linked
+	 * @return the numbers of the members added, changed or removed
+	 */
+	public Set<Integer> reload( SortedMap<Integer, HospitalityMember> loaded ) {
+		lock.writeLock().lock();
+
+		try {
+			Set<Integer> changed = new HashSet<Integer>();
+
+			for ( Integer number : records.keySet() ) {
+				if ( !loaded.containsKey( number ) ) {
+					unstore( number );
+					changed.add( number );
+				}
+			}
+
+			for ( HospitalityMember hm : loaded.values() ) {
+				if ( put( MemberRecord.of( hm ) ) ) {
+					changed.add( hm.getMemberNumber() );
+				}
+			}
+
+			return changed;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Private methods
+
+	/**
+	 * Note a conflict if the member is stored at another version. Each member
+	 * is checked once.
+	 */
+	private void check( HospitalityMember hm, Set<Integer> written,
+			List<Integer> conflicts ) {
+		MemberRecord current = records.get( hm.getMemberNumber() );
+
+		if ( current != null && written.add( hm.getMemberNumber() )
+				&& current.getVersion() != hm.getVersion() ) {
+			conflicts.add( hm.getMemberNumber() );
+		}
+	}
+
+	/**
+	 * After a write, with the write lock held, move the versions of the
+	 * caller's members on to the ones stored.
+	 */
+	private void moveOn( Collection<HospitalityMember> changed ) {
+		for ( HospitalityMember hm : changed ) {
+			MemberRecord stored = records.get( hm.getMemberNumber() );
+
+			if ( stored != null ) {
+				hm.setVersion( stored.getVersion() );
+			}
+		}
+	}
+
+	/**
+	 * Put a record written elsewhere, with the write lock held. A new member
+	 * starts at version 0; a changed one moves on by one.
+	 *
+	 * @return false if the member was stored just so already
+	 */
+	private boolean put( MemberRecord record ) {
+		Integer number = Integer.valueOf( record.getNumber() );
+		MemberRecord current = records.get( number );
+
+		if ( current != null && same( current, record ) ) {
+			return false;
+		}
+
+		store( number, record.withVersion( current == null ? 0 : current
+				.getVersion() + 1 ) );
+		return true;
+	}
+
+	/**
+	 * Store a record, with the write lock held, and note whom it schedules
+	 * with.
+	 */
+	private void store( Integer number, MemberRecord record ) {
+		MemberRecord current = records.put( number, record );
+
+		if ( current != null
+				&& current.getScheduleWith() == record.getScheduleWith() ) {
+			return;
+		}
+
+		unlink( number, current );
+
+		if ( record.getScheduleWith() != MemberRecord.NO_MEMBER ) {
+			Integer with = Integer.valueOf( record.getScheduleWith() );
+			Set<Integer> numbers = scheduledBy.get( with );
+
+			if ( numbers == null ) {
+				numbers = new HashSet<Integer>();
+				scheduledBy.put( with, numbers );
+			}
+
+			numbers.add( number );
+		}
+	}
+
+	/**
+	 * Remove a record, with the write lock held.
+	 *
+	 * @return true if there was such a record
+	 */
+	private boolean unstore( Integer number ) {
+		MemberRecord current = records.remove( number );
+		unlink( number, current );
+		return current != null;
+	}
+
+	/**
+	 * Forget whom a record, no longer stored, scheduled with.
+	 */
+	private void unlink( Integer number, MemberRecord record ) {
+		if ( record == null
+				|| record.getScheduleWith() == MemberRecord.NO_MEMBER ) {
+			return;
+		}
+
+		Integer with = Integer.valueOf( record.getScheduleWith() );
+		Set<Integer> numbers = scheduledBy.get( with );
+
+		if ( numbers != null ) {
+			numbers.remove( number );
+
+			if ( numbers.isEmpty() ) {
+				scheduledBy.remove( with );
+			}
+		}
+	}
+
+	/**
+	 * @return true if two records have the same fields, whatever their
+	 *         versions
+	 */
+	private static boolean same( MemberRecord record0, MemberRecord record1 ) {
+		return record0.getNumber() == record1.getNumber()
+				&& equal( record0.getFirstName(), record1.getFirstName() )
+				&& equal( record0.getLastName(), record1.getLastName() )
+				&& record0.getScheduleWith() == record1.getScheduleWith()
+				&& record0.isTeamLeader() == record1.isTeamLeader()
+				&& record0.getLastScheduled() == record1.getLastScheduled();
+	}
+
+	private static boolean equal( String string0, String string1 ) {
+		return string0 == null ? string1 == null : string0.equals( string1 );
+	}
+
+	/**
+	 * Make the member object for a number, and its "schedule with" member,
+	 * once each.
+	 *
+	 * @param made
+	 *            - member objects made so far, added to
+	 * @return the member or null if there's no such record
+	 */
+	private HospitalityMember member( Integer number,
+			Map<Integer, HospitalityMember> made ) {
+		HospitalityMember hm = made.get( number );
+
+		if ( hm != null ) {
+			return hm;
+		}
+
+		MemberRecord record = records.get( number );
+
+		if ( record == null ) {
+			return null;
+		}
+
+		hm = record.toMember();
+		made.put( number, hm );
+
+		if ( record.getScheduleWith() != MemberRecord.NO_MEMBER ) {
+			hm.setScheduleWith( member(
+					Integer.valueOf( record.getScheduleWith() ), made ) );
+		}
+
+		return hm;
+	}
+
+}
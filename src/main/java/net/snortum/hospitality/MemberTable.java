@@ -0,0 +1,557 @@
+package net.snortum.hospitality;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Members stored by column, for very large rosters. Each field is a primitive
+ * array indexed by row, team leaders are a bit set, and names are UTF-8 bytes
+ * in one arena, each distinct name stored once. A million members take a few
+ * dozen megabytes and no objects per member, and scanning a column reads
+ * memory in order.
+ *
+ * <p>
+ * Rows are found by member number through an {@link IntIntMap}. Selection and
+ * sorting run on the columns: {@link #oldestRows(int, boolean)} and
+ * {@link #sortedRows()} compare packed long keys, and member objects are only
+ * made for the rows asked for with {@link #toMember(int)},
+ * {@link #oldest(int, boolean)}, {@link #get(int)} or
+ * {@link #scheduledWith(int)}. {@link MemberStore#table()} copies a loaded
+ * roster into a table, and {@link ScheduleEngine} can plan from one through
+ * a {@link TableMemberRepository}.
+ * </p>
+ *
+ * <p>
+ * Rows are only ever added. Dates, team leader and "schedule with" can be
+ * changed in place; names can't. A table is not thread safe; share it between
+ * threads only once it is no longer changed.
+ * </p>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public class MemberTable {
+
+	// Constants
+	private final static Charset UTF_8 = Charset.forName( "UTF-8" );
+
+	// Fields
+	private int size;
+	private int[] ids;
+	private int[] schedWith;
+	private int[] lastScheduled;
+	private int[] versions;
+	private final BitSet leaders = new BitSet();
+	private int[] firstNames;
+	private int[] lastNames;
+	private byte[] arena;
+	private int[] nameStart;
+	private int nameCount;
+	private Map<String, Integer> nameIndex;
+	private boolean numberOrder = true;
+	private final IntIntMap rows;
+
+	/**
+	 * Create an empty table.
+	 *
+	 * @param capacity
+	 *            - how many members to make room for
+	 */
+	public MemberTable( int capacity ) {
+		capacity = Math.max( 16, capacity );
+		ids = new int[capacity];
+		schedWith = new int[capacity];
+		lastScheduled = new int[capacity];
+		versions = new int[capacity];
+		firstNames = new int[capacity];
+		lastNames = new int[capacity];
+		arena = new byte[capacity * 8];
+		nameStart = new int[capacity + 1];
+		rows = new IntIntMap( capacity );
+	}
+
+	/**
+	 * @param records
+	 *            - the members, in the order to add them
+	 * @return a table holding them
+	 */
+	public static MemberTable of( Collection<MemberRecord> records ) {
+		MemberTable table = new MemberTable( records.size() );
+
+		for ( MemberRecord record : records ) {
+			table.add( record );
+		}
+
+		return table;
+	}
+
+	/**
+	 * Add a member.
+	 *
+	 * @param record
+	 *            - the member
+	 * @return its row
+	 * @throws IllegalArgumentException
+	 *             if the member number is already in the table
+	 */
+	public int add( MemberRecord record ) {
+		if ( rows.get( record.getNumber() ) != IntIntMap.MISSING ) {
+			throw new IllegalArgumentException( "Member "
+					+ record.getNumber() + " is already in the table" );
+		}
+
+		if ( size == ids.length ) {
+			grow();
+		}
+
+		if ( size > 0 && record.getNumber() < ids[size - 1] ) {
+			numberOrder = false;
+		}
+
+		int row = size++;
+		ids[row] = record.getNumber();
+		schedWith[row] = record.getScheduleWith();
+		lastScheduled[row] = record.getLastScheduled();
+		versions[row] = record.getVersion();
+		leaders.set( row, record.isTeamLeader() );
+		firstNames[row] = name( record.getFirstName() );
+		lastNames[row] = name( record.getLastName() );
+		rows.put( record.getNumber(), row );
+		return row;
+	}
+
+	/**
+	 * @return how many members are in the table
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param number
+	 *            - a member number
+	 * @return the member's row or -1 if it isn't in the table
+	 */
+	public int rowOf( int number ) {
+		return rows.get( number );
+	}
+
+	// Columns
+
+	public int getNumber( int row ) {
+		return ids[check( row )];
+	}
+
+	/**
+	 * @return the number of the member to schedule with, or
+	 *         {@link MemberRecord#NO_MEMBER}
+	 */
+	public int getScheduleWith( int row ) {
+		return schedWith[check( row )];
+	}
+
+	/**
+	 * @return the last scheduled day, or {@link MemberRecord#NEVER}
+	 */
+	public int getLastScheduled( int row ) {
+		return lastScheduled[check( row )];
+	}
+
+	public int getVersion( int row ) {
+		return versions[check( row )];
+	}
+
+	public boolean isTeamLeader( int row ) {
+		return leaders.get( check( row ) );
+	}
+
+	public String getFirstName( int row ) {
+		return string( firstNames[check( row )] );
+	}
+
+	public String getLastName( int row ) {
+		return string( lastNames[check( row )] );
+	}
+
+	public void setScheduleWith( int row, int number ) {
+		schedWith[check( row )] = number;
+	}
+
+	public void setTeamLeader( int row, boolean teamLeader ) {
+		leaders.set( check( row ), teamLeader );
+	}
+
+	/**
+	 * Schedule a member on a day, moving its version on.
+	 *
+	 * @param row
+	 *            - the member's row
+	 * @param day
+	 *            - the day, see {@link MemberRecord#toDay(java.util.Date)}
+	 */
+	public void setLastScheduled( int row, int day ) {
+		lastScheduled[check( row )] = day;
+		versions[row]++;
+	}
+
+	/**
+	 * @return memberId => new member object, with "schedule with" linked, for
+	 *         every row
+	 */
+	public TreeMap<Integer, HospitalityMember> members() {
+		TreeMap<Integer, HospitalityMember> tree =
+				new TreeMap<Integer, HospitalityMember>();
+
+		for ( int row = 0; row < size; row++ ) {
+			member( row, tree );
+		}
+
+		return tree;
+	}
+
+	/**
+	 * @param number
+	 *            - a member number
+	 * @return a new member object, with "schedule with" linked, or null if
+	 *         the member isn't in the table
+	 */
+	public HospitalityMember get( int number ) {
+		int row = rows.get( number );
+
+		if ( row == IntIntMap.MISSING ) {
+			return null;
+		}
+
+		return member( row, new HashMap<Integer, HospitalityMember>() );
+	}
+
+	/**
+	 * Find the members whose "schedule with" member is this one, in one pass
+	 * over the "schedule with" column.
+	 *
+	 * @param number
+	 *            - a member number
+	 * @return new member objects, with "schedule with" linked, lowest number
+	 *         first
+	 */
+	public List<HospitalityMember> scheduledWith( int number ) {
+		List<HospitalityMember> members = new ArrayList<HospitalityMember>();
+
+		if ( number == MemberRecord.NO_MEMBER ) {
+			return members;
+		}
+
+		Map<Integer, HospitalityMember> made =
+				new HashMap<Integer, HospitalityMember>();
+
+		for ( int row = 0; row < size; row++ ) {
+			if ( schedWith[row] == number ) {
+				members.add( member( row, made ) );
+			}
+		}
+
+		Collections.sort( members, new Comparator<HospitalityMember>() {
+			@Override
+			public int compare( HospitalityMember arg0,
+					HospitalityMember arg1 ) {
+				return arg0.getMemberNumber().compareTo(
+						arg1.getMemberNumber() );
+			}
+		} );
+		return members;
+	}
+
+	/**
+	 * @return the member in a row as a record
+	 */
+	public MemberRecord record( int row ) {
+		return new MemberRecord( getNumber( row ), getFirstName( row ),
+				getLastName( row ), schedWith[row], leaders.get( row ),
+				lastScheduled[row], versions[row] );
+	}
+
+	/**
+	 * @return a new member object for a row, "schedule with" not linked
+	 */
+	public HospitalityMember toMember( int row ) {
+		HospitalityMember hm =
+				new HospitalityMember( Integer.valueOf( getNumber( row ) ),
+						getFirstName( row ), getLastName( row ), null,
+						leaders.get( row ), lastScheduled[row] );
+		hm.setVersion( versions[row] );
+		return hm;
+	}
+
+	// Selection and sorting
+
+	/**
+	 * Sort every row. Rows added in member number order, as
+	 * {@link MemberStore#table()} adds them, are sorted by {@link DateSort} in
+	 * O(N + days); others on packed (day, number) keys.
+	 *
+	 * @return every row, oldest last scheduled first, never scheduled before
+	 *         that, ties to the lower member number
+	 */
+	public int[] sortedRows() {
+		if ( numberOrder ) {
+			return DateSort.order( lastScheduled, size );
+		}
+
+		long[] keys = new long[size];
+
+		for ( int row = 0; row < size; row++ ) {
+			keys[row] = key( row );
+		}
+
+		Arrays.sort( keys );
+		return toRows( keys, size );
+	}
+
+	/**
+	 * Find the oldest rows without sorting them all. A heap of the
+	 * <code>limit</code> best so far is kept in a long array, so this is
+	 * O(N log limit) with no objects made. When at least half the members are
+	 * asked for, as a doubling window soon is, they are taken from
+	 * {@link #sortedRows()} instead.
+	 *
+	 * @param limit
+	 *            - how many rows to return at most
+	 * @param leadersOnly
+	 *            - true for team leaders only
+	 * @return the rows, in the order of {@link #sortedRows()}
+	 */
+	public int[] oldestRows( int limit, boolean leadersOnly ) {
+		if ( !leadersOnly && (long) limit * 2 >= size ) {
+			int[] sorted = sortedRows();
+			return sorted.length > limit ? Arrays.copyOf( sorted,
+					Math.max( 0, limit ) ) : sorted;
+		}
+
+		long[] heap = new long[Math.max( 0, Math.min( limit, size ) )];
+		int count = 0;
+
+		int row = leadersOnly ? leaders.nextSetBit( 0 ) : 0;
+
+		while ( row >= 0 && row < size ) {
+			long key = key( row );
+
+			if ( count < heap.length ) {
+				heap[count] = key;
+				siftUp( heap, count++ );
+			}
+			else if ( count > 0 && key < heap[0] ) {
+				heap[0] = key;
+				siftDown( heap, count );
+			}
+
+			row = leadersOnly ? leaders.nextSetBit( row + 1 ) : row + 1;
+		}
+
+		long[] keys = Arrays.copyOf( heap, count );
+		Arrays.sort( keys );
+		return toRows( keys, count );
+	}
+
+	/**
+	 * The oldest members, as {@link MemberRepository#findOldest(int)} returns
+	 * them.
+	 *
+	 * @param limit
+	 *            - how many to return at most
+	 * @param leadersOnly
+	 *            - true for team leaders only
+	 * @return the oldest members, oldest first, with "schedule with" linked
+	 */
+	public List<HospitalityMember> oldest( int limit, boolean leadersOnly ) {
+		int[] oldest = oldestRows( limit, leadersOnly );
+		Map<Integer, HospitalityMember> made =
+				new HashMap<Integer, HospitalityMember>();
+		List<HospitalityMember> members =
+				new ArrayList<HospitalityMember>( oldest.length );
+
+		for ( int row : oldest ) {
+			members.add( member( row, made ) );
+		}
+
+		return members;
+	}
+
+	// Private methods
+
+	private int check( int row ) {
+		if ( row < 0 || row >= size ) {
+			throw new IndexOutOfBoundsException( "Row " + row + " of " + size );
+		}
+
+		return row;
+	}
+
+	/**
+	 * @return (day, member number) packed so that comparing longs compares
+	 *         members. Member numbers are positive.
+	 */
+	private long key( int row ) {
+		return ( (long) lastScheduled[row] << 32 ) | ( ids[row] & 0xFFFFFFFFL );
+	}
+
+	/**
+	 * @return the rows of the first <code>count</code> keys
+	 */
+	private int[] toRows( long[] keys, int count ) {
+		int[] result = new int[count];
+
+		for ( int i = 0; i < count; i++ ) {
+			result[i] = rows.get( (int) keys[i] );
+		}
+
+		return result;
+	}
+
+	/**
+	 * Max-heap: move a new key up to its place. Also used by
+	 * {@link MappedMemberStore}.
+	 */
+	static void siftUp( long[] heap, int i ) {
+		long key = heap[i];
+
+		while ( i > 0 ) {
+			int parent = ( i - 1 ) >>> 1;
+
+			if ( heap[parent] >= key ) {
+				break;
+			}
+
+			heap[i] = heap[parent];
+			i = parent;
+		}
+
+		heap[i] = key;
+	}
+
+	/**
+	 * Max-heap: move a new top key down to its place. Also used by
+	 * {@link MappedMemberStore}.
+	 */
+	static void siftDown( long[] heap, int count ) {
+		long key = heap[0];
+		int i = 0;
+
+		while ( true ) {
+			int child = 2 * i + 1;
+
+			if ( child >= count ) {
+				break;
+			}
+
+			if ( child + 1 < count && heap[child + 1] > heap[child] ) {
+				child++;
+			}
+
+			if ( heap[child] <= key ) {
+				break;
+			}
+
+			heap[i] = heap[child];
+			i = child;
+		}
+
+		heap[i] = key;
+	}
+
+	/**
+	 * Make the member object for a row, and its "schedule with" member, once
+	 * each.
+	 */
+	private HospitalityMember member( int row,
+			Map<Integer, HospitalityMember> made ) {
+		HospitalityMember hm = made.get( ids[row] );
+
+		if ( hm != null ) {
+			return hm;
+		}
+
+		hm = toMember( row );
+		made.put( ids[row], hm );
+		int partner = rows.get( schedWith[row] );
+
+		if ( schedWith[row] != MemberRecord.NO_MEMBER
+				&& partner != IntIntMap.MISSING ) {
+			hm.setScheduleWith( member( partner, made ) );
+		}
+
+		return hm;
+	}
+
+	/**
+	 * @return the index of a name in the arena, adding it if needed
+	 */
+	private int name( String name ) {
+		if ( name == null ) {
+			name = "";
+		}
+
+		if ( nameIndex == null ) {
+			nameIndex = new HashMap<String, Integer>();
+
+			for ( int i = 0; i < nameCount; i++ ) {
+				nameIndex.put( string( i ), i );
+			}
+		}
+
+		Integer index = nameIndex.get( name );
+
+		if ( index != null ) {
+			return index;
+		}
+
+		byte[] bytes = name.getBytes( UTF_8 );
+		int start = nameStart[nameCount];
+
+		if ( start + bytes.length > arena.length ) {
+			arena =
+					Arrays.copyOf( arena, Math.max( arena.length * 2, start
+							+ bytes.length ) );
+		}
+
+		if ( nameCount + 2 > nameStart.length ) {
+			nameStart = Arrays.copyOf( nameStart, nameStart.length * 2 );
+		}
+
+		System.arraycopy( bytes, 0, arena, start, bytes.length );
+		nameStart[nameCount + 1] = start + bytes.length;
+		nameIndex.put( name, nameCount );
+		return nameCount++;
+	}
+
+	/**
+	 * @return a name from the arena
+	 */
+	private String string( int index ) {
+		return new String( arena, nameStart[index], nameStart[index + 1]
+				- nameStart[index], UTF_8 );
+	}
+
+	/**
+	 * Double the room for rows.
+	 */
+	private void grow() {
+		int capacity = Math.max( 16, ids.length * 2 );
+		ids = Arrays.copyOf( ids, capacity );
+		schedWith = Arrays.copyOf( schedWith, capacity );
+		lastScheduled = Arrays.copyOf( lastScheduled, capacity );
+		versions = Arrays.copyOf( versions, capacity );
+		firstNames = Arrays.copyOf( firstNames, capacity );
+		lastNames = Arrays.copyOf( lastNames, capacity );
+	}
+
+}
@@ -0,0 +1,308 @@
+package net.snortum.hospitality;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+
+/**
+ * Writes to a {@link MemberRepository} on a thread of their own, so that
+ * saving never holds up the window however slow the disk is. Writes are made
+ * one at a time, in the order they were asked for. Each write's result is
+ * handed to its {@link Done} on the event thread.
+ *
+ * <p>
+ * Saves of members are committed in groups. The members saved collect in a
+ * batch, keyed by member number, which is written {@link #FLUSH_DELAY} ms
+ * after the first of them, or at once when {@link #MAX_BATCH} members have
+ * collected, so a burst of data entry is a few writes rather than one per
+ * save. A member saved twice is written once, as last saved. Other writes,
+ * and closing, write the batch first, so writes stay in order. The version
+ * a member is written with is taken from the member it was read from just
+ * before the write, on the writer thread, so a member saved again while its
+ * last save is being written carries the version that save ends with. If
+ * some members of a batch were changed by someone else, the rest of the
+ * batch is written again without them, so one conflict never loses the
+ * other saves.
+ * </p>
+ *
+ * <p>
+ * Writes still waiting when the program exits, the batch too, are made
+ * before it ends.
+ * </p>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class MemberWriter {
+
+	// Constants
+	/** How long saved members wait for more to be written with, in ms */
+	final static long FLUSH_DELAY = 300;
+	/** How many saved members are written at once without waiting */
+	final static int MAX_BATCH = 100;
+	private final static long CLOSE_WAIT = 60; // seconds
+
+	// Fields
+	private final JFrame frame;
+	private final MemberRepository repository;
+	private final ScheduledExecutorService writer = Executors
+			.newSingleThreadScheduledExecutor( new ThreadFactory() {
+				@Override
+				public Thread newThread( Runnable r ) {
+					Thread thread = new Thread( r, "member-writer" );
+					thread.setDaemon( true );
+					return thread;
+				}
+			} );
+	private Saves waiting; // guarded by this
+
+	/**
+	 * What to do once a write is made. Called on the event thread.
+	 */
+	interface Done {
+		/**
+		 * @param conflicts
+		 *            - the numbers of members changed by someone else, which
+		 *            weren't written, empty if the whole write was made. The
+		 *            other members of a batch of saves were written.
+		 */
+		void written( List<Integer> conflicts );
+	}
+
+	/**
+	 * Members saved together in one write, and whom to tell.
+	 */
+	private class Saves implements Runnable {
+		private final Map<Integer, HospitalityMember> members =
+				new LinkedHashMap<Integer, HospitalityMember>();
+		private final Map<Integer, HospitalityMember> readFrom =
+				new HashMap<Integer, HospitalityMember>();
+		private final List<Done> done = new ArrayList<Done>();
+		private boolean started = false; // guarded by MemberWriter.this
+
+		@Override
+		public void run() {
+			// runs once, when flushed or when the delay is up
+			synchronized ( MemberWriter.this ) {
+				if ( started ) {
+					return;
+				}
+
+				started = true;
+
+				if ( waiting == this ) {
+					waiting = null;
+				}
+			}
+
+			for ( HospitalityMember hm : members.values() ) {
+				HospitalityMember read = readFrom.get( hm.getMemberNumber() );
+
+				if ( read != null ) {
+					hm.setVersion( read.getVersion() );
+				}
+			}
+
+			tell( done, upsertAll( members.values() ) );
+		}
+	}
+
+	/**
+	 * Write to a repository.
+	 *
+	 * @param frame
+	 *            - JFrame in which to display the errors
+	 * @param repository
+	 *            - where the members are
+	 */
+	MemberWriter( JFrame frame, MemberRepository repository ) {
+		this.frame = frame;
+		this.repository = repository;
+		Runtime.getRuntime().addShutdownHook(
+				new Thread( "member-writer-close" ) {
+					@Override
+					public void run() {
+						close();
+					}
+				} );
+	}
+
+	/**
+	 * Add or replace a member.
+	 *
+	 * @param hm
+	 *            - a new or changed member
+	 * @param readFrom
+	 *            - the member as it was read, or null for a new member
+	 * @param done
+	 *            - what to do once it's written, or null. Saves put together
+	 *            tell the same Done once.
+	 */
+	synchronized void upsert( HospitalityMember hm,
+			HospitalityMember readFrom, Done done ) {
+		if ( waiting == null ) {
+			waiting = new Saves();
+			submit( waiting, FLUSH_DELAY );
+		}
+
+		HospitalityMember replaced =
+				waiting.members.put( hm.getMemberNumber(), hm );
+
+		if ( replaced == null || readFrom != replaced ) {
+			waiting.readFrom.put( hm.getMemberNumber(), readFrom );
+		}
+
+		if ( done != null && !waiting.done.contains( done ) ) {
+			waiting.done.add( done );
+		}
+
+		if ( waiting.members.size() >= MAX_BATCH ) {
+			flush();
+		}
+	}
+
+	/**
+	 * Write the members saved so far without waiting for more.
+	 */
+	synchronized void flush() {
+		if ( waiting != null ) {
+			submit( waiting, 0 );
+			waiting = null;
+		}
+	}
+
+	/**
+	 * Remove a member.
+	 *
+	 * @param number
+	 *            - the member number
+	 */
+	synchronized void delete( final Integer number ) {
+		flush();
+		submit( new Runnable() {
+			@Override
+			public void run() {
+				repository.delete( number );
+			}
+		}, 0 );
+	}
+
+	/**
+	 * Set the last scheduled date of members.
+	 *
+	 * @param members
+	 *            - the members scheduled, which mustn't change until the write
+	 *            is done
+	 * @param date
+	 *            - the date they were scheduled
+	 * @param done
+	 *            - what to do once it's written
+	 */
+	synchronized void recordScheduled(
+			final Collection<HospitalityMember> members, final Date date,
+			final Done done ) {
+		flush();
+		submit( new Runnable() {
+			@Override
+			public void run() {
+				List<Done> all = new ArrayList<Done>();
+				all.add( done );
+				tell( all, repository.recordScheduled( members, date ) );
+			}
+		}, 0 );
+	}
+
+	/**
+	 * Make the writes still waiting, then stop.
+	 */
+	void close() {
+		flush();
+		writer.shutdown();
+
+		try {
+			writer.awaitTermination( CLOSE_WAIT, TimeUnit.SECONDS );
+		}
+		catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Private methods
+
+	/**
+	 * Run a write on the writer thread after a delay in ms. Writes with no
+	 * delay run in the order submitted. A write that fails with an unexpected
+	 * error is reported and its {@link Done} is not called.
+	 */
+	private void submit( final Runnable write, long delay ) {
+		writer.schedule( new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write.run();
+				}
+				catch ( RuntimeException e ) {
+					Utility.showMessage( frame, "Saving members: " + e,
+							"Save Error", JOptionPane.ERROR_MESSAGE );
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Write a batch of saves, writing again without the members that
+	 * conflicted until the rest are written, helper for {@link Saves#run()}.
+	 *
+	 * @return the numbers of the members not written
+	 */
+	private List<Integer> upsertAll( Collection<HospitalityMember> members ) {
+		Map<Integer, HospitalityMember> batch =
+				new LinkedHashMap<Integer, HospitalityMember>();
+
+		for ( HospitalityMember hm : members ) {
+			batch.put( hm.getMemberNumber(), hm );
+		}
+
+		List<Integer> conflicts = new ArrayList<Integer>();
+
+		while ( !batch.isEmpty() ) {
+			List<Integer> found = repository.upsertAll( batch.values() );
+			int before = batch.size();
+			batch.keySet().removeAll( found );
+			conflicts.addAll( found );
+
+			// written, or nothing left to leave out
+			if ( found.isEmpty() || batch.size() == before ) {
+				break;
+			}
+		}
+
+		return conflicts;
+	}
+
+	private static void tell( final List<Done> done,
+			final List<Integer> conflicts ) {
+		SwingUtilities.invokeLater( new Runnable() {
+			@Override
+			public void run() {
+				for ( Done d : done ) {
+					d.written( conflicts );
+				}
+			}
+		} );
+	}
+
+}
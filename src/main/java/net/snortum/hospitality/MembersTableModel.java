@@ -0,0 +1,145 @@
+package net.snortum.hospitality;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * All members as table rows, helper class for the Members View of
+ * {@link HospitalityMembers}. Setting the members only copies references in
+ * member number order; a cell's text is made when the table asks for it,
+ * which a JTable only does for the rows on screen. So a roster of any size is
+ * shown at once, and updating it after a save doesn't rebuild any text. One
+ * member saved or removed changes only its own row, found by a binary search.
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class MembersTableModel extends AbstractTableModel {
+
+	private static final long serialVersionUID = 1L;
+
+	// Constants
+	private final static String[] COLUMNS = { "Number", "Name",
+			"Schedule With", "Team Leader", "Last Scheduled" };
+	private final static Comparator<HospitalityMember> BY_NUMBER =
+			new Comparator<HospitalityMember>() {
+				@Override
+				public int compare( HospitalityMember arg0,
+						HospitalityMember arg1 ) {
+					return arg0.getMemberNumber().compareTo(
+							arg1.getMemberNumber() );
+				}
+			};
+
+	// Fields
+	private HospitalityMember[] rows = new HospitalityMember[0];
+
+	/**
+	 * Show these members, replacing the ones shown.
+	 *
+	 * @param tree
+	 *            - memberId => member object
+	 */
+	void setMembers( Map<Integer, HospitalityMember> tree ) {
+		rows = tree.values().toArray( new HospitalityMember[tree.size()] );
+		fireTableDataChanged();
+	}
+
+	/**
+	 * Show a new or changed member, replacing the row with its number or
+	 * adding a row in number order.
+	 *
+	 * @param hm
+	 *            - the member
+	 */
+	void putMember( HospitalityMember hm ) {
+		int row = Arrays.binarySearch( rows, hm, BY_NUMBER );
+
+		if ( row >= 0 ) {
+			rows[row] = hm;
+			fireTableRowsUpdated( row, row );
+			return;
+		}
+
+		row = -row - 1;
+		HospitalityMember[] grown = new HospitalityMember[rows.length + 1];
+		System.arraycopy( rows, 0, grown, 0, row );
+		grown[row] = hm;
+		System.arraycopy( rows, row, grown, row + 1, rows.length - row );
+		rows = grown;
+		fireTableRowsInserted( row, row );
+	}
+
+	/**
+	 * Stop showing a member.
+	 *
+	 * @param hm
+	 *            - the member, or any member with its number
+	 */
+	void removeMember( HospitalityMember hm ) {
+		int row = Arrays.binarySearch( rows, hm, BY_NUMBER );
+
+		if ( row < 0 ) {
+			return;
+		}
+
+		HospitalityMember[] shrunk = new HospitalityMember[rows.length - 1];
+		System.arraycopy( rows, 0, shrunk, 0, row );
+		System.arraycopy( rows, row + 1, shrunk, row, shrunk.length - row );
+		rows = shrunk;
+		fireTableRowsDeleted( row, row );
+	}
+
+	/**
+	 * @param row
+	 *            - a row of the table
+	 * @return the member shown on the row
+	 */
+	HospitalityMember getMember( int row ) {
+		return rows[row];
+	}
+
+	@Override
+	public int getRowCount() {
+		return rows.length;
+	}
+
+	@Override
+	public int getColumnCount() {
+		return COLUMNS.length;
+	}
+
+	@Override
+	public String getColumnName( int column ) {
+		return COLUMNS[column];
+	}
+
+	@Override
+	public Class<?> getColumnClass( int column ) {
+		return column == 0 ? Integer.class : String.class;
+	}
+
+	@Override
+	public Object getValueAt( int row, int column ) {
+		HospitalityMember hm = rows[row];
+
+		switch ( column ) {
+		case 0:
+			return hm.getMemberNumber();
+		case 1:
+			return hm.displayFullName();
+		case 2:
+			return hm.getScheduleWith() == null ? "" : hm.getScheduleWith()
+					.displayFullName();
+		case 3:
+			return hm.isTeamLeader() ? "Yes" : "";
+		default:
+			return hm.displayLastScheduled();
+		}
+	}
+
+}
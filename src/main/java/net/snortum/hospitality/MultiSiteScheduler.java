@@ -0,0 +1,239 @@
+package net.snortum.hospitality;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plans the same service dates for many sites at once, one data file for each
+ * site. Each site is loaded and planned by a {@link ScheduleEngine} on its own
+ * task in a thread pool, so the sites don't wait on each other. A site that
+ * can't be loaded doesn't stop the others, and isn't planned; its error is
+ * kept in {@link #getErrors()}. Member numbers aren't shared between sites:
+ * the repositories leave the program's next member number alone.
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public class MultiSiteScheduler {
+
+	// Fields
+	private final List<String> fileNames;
+	private final List<String> errors = Collections
+			.synchronizedList( new ArrayList<String>() );
+
+	/**
+	 * Main - plan weeks of service dates for each data file and print them.
+	 *
+	 * @param args
+	 *            - the first date (MM/dd/yyyy), the number of weeks, optionally
+	 *            <code>save</code> to record the plans, then the data files
+	 */
+	public static void main( String[] args ) throws InterruptedException {
+		int filesStart = args.length > 2 && args[2].equals( "save" ) ? 3 : 2;
+
+		if ( args.length <= filesStart ) {
+			System.err.println( "Usage: MultiSiteScheduler first-date weeks "
+					+ "[save] file..." );
+			System.exit( 1 );
+		}
+
+		Date first;
+		int weeks;
+
+		try {
+			first = MemberRecord.toDate( DayFormat.parse( args[0] ) );
+			weeks = Integer.parseInt( args[1] );
+		}
+		catch ( ParseException e ) {
+			System.err.println( "Bad first date: " + args[0] );
+			System.exit( 1 );
+			return;
+		}
+		catch ( NumberFormatException e ) {
+			System.err.println( "Bad number of weeks: " + args[1] );
+			System.exit( 1 );
+			return;
+		}
+
+		MultiSiteScheduler scheduler =
+				new MultiSiteScheduler( Arrays.asList( args ).subList(
+						filesStart, args.length ) );
+		Map<String, SortedMap<Date, List<HospitalityMember>>> plans =
+				scheduler.plan( ScheduleEngine.weekly( first, weeks ),
+						filesStart == 3 );
+
+		for ( String error : scheduler.getErrors() ) {
+			System.err.println( error );
+		}
+
+		for ( Map.Entry<String, SortedMap<Date, List<HospitalityMember>>> site : plans
+				.entrySet() ) {
+			System.out.println( site.getKey() );
+
+			for ( Map.Entry<Date, List<HospitalityMember>> entry : site
+					.getValue().entrySet() ) {
+				System.out.print( "\t"
+						+ DayFormat.format( MemberRecord.toDay( entry.getKey() ) ) );
+
+				for ( HospitalityMember hm : entry.getValue() ) {
+					System.out.print( "\t" + hm.getMemberNumber() );
+				}
+
+				System.out.println();
+			}
+		}
+	}
+
+	/**
+	 * @param fileNames
+	 *            - one data file for each site
+	 */
+	public MultiSiteScheduler( List<String> fileNames ) {
+		this.fileNames = new ArrayList<String>( fileNames );
+	}
+
+	/**
+	 * Plan every site, in parallel, and wait for them all.
+	 *
+	 * @param dates
+	 *            - the service dates, the same for every site
+	 * @param save
+	 *            - true to record each site's plan in its data file
+	 * @return data file => plan, in the order the files were given. Sites
+	 *         with errors are left out.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the sites
+	 */
+	public Map<String, SortedMap<Date, List<HospitalityMember>>> plan(
+			final List<Date> dates, final boolean save )
+			throws InterruptedException {
+		int threads =
+				Math.max( 1, Math.min( fileNames.size(), Runtime.getRuntime()
+						.availableProcessors() ) );
+		ExecutorService executor =
+				Executors.newFixedThreadPool( threads, new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread( Runnable r ) {
+						return new Thread( r, "site-scheduler-"
+								+ count.incrementAndGet() );
+					}
+				} );
+		Map<String, Future<SortedMap<Date, List<HospitalityMember>>>> futures =
+				new LinkedHashMap<String, Future<SortedMap<Date, List<HospitalityMember>>>>();
+
+		try {
+			for ( final String fileName : fileNames ) {
+				futures.put( fileName, executor
+						.submit( new Callable<SortedMap<Date, List<HospitalityMember>>>() {
+							@Override
+							public SortedMap<Date, List<HospitalityMember>> call()
+									throws IOException {
+								return planSite( fileName, dates, save );
+							}
+						} ) );
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+
+		Map<String, SortedMap<Date, List<HospitalityMember>>> plans =
+				new LinkedHashMap<String, SortedMap<Date, List<HospitalityMember>>>();
+
+		for ( Map.Entry<String, Future<SortedMap<Date, List<HospitalityMember>>>> entry : futures
+				.entrySet() ) {
+			try {
+				plans.put( entry.getKey(), entry.getValue().get() );
+			}
+			catch ( ExecutionException e ) {
+				errors.add( entry.getKey() + ": " + e.getCause().getMessage() );
+			}
+		}
+
+		return plans;
+	}
+
+	/**
+	 * @return errors and "schedule with" problems, each starting with its data
+	 *         file
+	 */
+	public List<String> getErrors() {
+		synchronized ( errors ) {
+			return new ArrayList<String>( errors );
+		}
+	}
+
+	/**
+	 * Load and plan one site, on a pool thread.
+	 */
+	private SortedMap<Date, List<HospitalityMember>> planSite(
+			String fileName, List<Date> dates, boolean save )
+			throws IOException {
+		// opening would make an empty file, and plan an empty site
+		if ( !new File( fileName ).isFile() ) {
+			throw new IOException( "No such data file" );
+		}
+
+		HospitalityMembersFile membersFile =
+				new HospitalityMembersFile( fileName );
+		TextMemberRepository repository =
+				new TextMemberRepository( null, membersFile );
+
+		// the file and its lock are let go once the site is planned
+		try {
+			String error = membersFile.open();
+
+			if ( error != null ) {
+				throw new IOException( error );
+			}
+
+			MemberTable table = repository.table();
+
+			if ( table == null ) {
+				throw new IOException( "The members couldn't be read" );
+			}
+
+			// the site's roster is only read through the table while planning
+			ScheduleEngine engine = new ScheduleEngine( repository, table );
+			SortedMap<Date, List<HospitalityMember>> plan = engine.plan( dates );
+
+			for ( String problem : engine.takeProblems() ) {
+				errors.add( fileName + ": " + problem );
+			}
+
+			if ( save ) {
+				List<Integer> conflicts = engine.commit( plan );
+
+				if ( !conflicts.isEmpty() ) {
+					throw new IOException( "Not saved, members " + conflicts
+							+ " were changed by someone else" );
+				}
+			}
+
+			return plan;
+		}
+		finally {
+			repository.close();
+		}
+	}
+
+}
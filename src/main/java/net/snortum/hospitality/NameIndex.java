@@ -0,0 +1,278 @@
+package net.snortum.hospitality;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+/**
+ * Members by name, for the Find tab of {@link HospitalityMembers}. Names are
+ * folded before they are indexed or looked up: accents are taken off and
+ * case is ignored, so "Muller" finds "M&uuml;ller" and "mul" finds both. Keys are
+ * kept in sorted maps, so finding every name starting with a prefix is a
+ * O(log N) seek and then a walk over the k names found. A search by last and
+ * first name seeks once for each last name that starts with the one given.
+ *
+ * <p>
+ * There are two maps. One is by last name then first name, for searches that
+ * give a last name, with or without a first name; the other is by first name,
+ * for searches that give only a first name. Each key ends with the member
+ * number, so members with the same name each have their own key.
+ * </p>
+ *
+ * <p>
+ * The index is a {@link MemberListener}, so it stays current with the
+ * repository's writes. It can be read by one thread while another updates it;
+ * updates and resets take turns.
+ * </p>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class NameIndex implements MemberListener {
+
+	// Constants
+	private final static char SEPARATOR = '\0';
+	private final static char NEXT_NAME = '\u0001';
+	private final static char AFTER_ALL = '\uffff';
+	private final static Pattern MARKS = Pattern.compile( "\\p{M}+" );
+
+	private final static int NUMBER_DIGITS = 10;
+
+	// Fields
+	// replaced by reset() and changed by the listener methods, guarded by this
+	private volatile ConcurrentNavigableMap<String, Integer> byLast =
+			new ConcurrentSkipListMap<String, Integer>();
+	private volatile ConcurrentNavigableMap<String, Integer> byFirst =
+			new ConcurrentSkipListMap<String, Integer>();
+	private volatile Map<Integer, String[]> keysOf =
+			new ConcurrentHashMap<Integer, String[]>();
+
+	/**
+	 * Index members, replacing whatever was indexed. The keys are sorted
+	 * first and added in order, which is much faster than adding them one by
+	 * one. The new maps are built without the lock, then replace the old ones
+	 * under it, so an update is made wholly to the old maps or the new.
+	 *
+	 * @param members
+	 *            - all members, each number once
+	 */
+	void reset( Collection<HospitalityMember> members ) {
+		String[] lastKeys = new String[members.size()];
+		String[] firstKeys = new String[members.size()];
+		Map<Integer, String[]> newKeysOf =
+				new ConcurrentHashMap<Integer, String[]>( members.size() * 2 );
+		int i = 0;
+
+		for ( HospitalityMember hm : members ) {
+			String[] keys = keys( hm );
+			lastKeys[i] = keys[0];
+			firstKeys[i++] = keys[1];
+			newKeysOf.put( hm.getMemberNumber(), keys );
+		}
+
+		ConcurrentNavigableMap<String, Integer> newByLast = sorted( lastKeys );
+		ConcurrentNavigableMap<String, Integer> newByFirst =
+				sorted( firstKeys );
+
+		synchronized ( this ) {
+			keysOf = newKeysOf;
+			byLast = newByLast;
+			byFirst = newByFirst;
+		}
+	}
+
+	/**
+	 * @return how many members are indexed
+	 */
+	int size() {
+		return keysOf.size();
+	}
+
+	/**
+	 * Find members whose names start with the ones given. Either name may be
+	 * empty, but not both.
+	 *
+	 * @param last
+	 *            - the start of the last name, or empty
+	 * @param first
+	 *            - the start of the first name, or empty
+	 * @param limit
+	 *            - how many members to return at most
+	 * @return member numbers, by last name, first name then number, or by
+	 *         first name then number if no last name was given
+	 */
+	List<Integer> find( String last, String first, int limit ) {
+		String foldedLast = fold( last );
+		String foldedFirst = fold( first );
+		List<Integer> found = new ArrayList<Integer>();
+
+		if ( foldedLast.isEmpty() && foldedFirst.isEmpty() ) {
+			return found;
+		}
+
+		if ( foldedLast.isEmpty() ) {
+			collect( startingWith( byFirst, foldedFirst ), limit, found );
+		}
+		else if ( foldedFirst.isEmpty() ) {
+			collect( startingWith( byLast, foldedLast ), limit, found );
+		}
+		else {
+			collect( byLast, foldedLast, foldedFirst, limit, found );
+		}
+
+		return found;
+	}
+
+	/**
+	 * Take accents and case off names, so that names can be compared as they
+	 * are said rather than as they are typed.
+	 *
+	 * @param name
+	 *            - a name or null
+	 * @return the folded name, empty for null
+	 */
+	static String fold( String name ) {
+		if ( name == null ) {
+			return "";
+		}
+
+		String trimmed = name.trim();
+		boolean plain = true;
+
+		for ( int i = 0; i < trimmed.length() && plain; i++ ) {
+			plain = trimmed.charAt( i ) < 0x80;
+		}
+
+		if ( !plain ) {
+			trimmed =
+					MARKS.matcher(
+							Normalizer.normalize( trimmed, Normalizer.Form.NFD ) )
+							.replaceAll( "" );
+		}
+
+		return trimmed.toLowerCase( Locale.ROOT );
+	}
+
+	// Listener methods
+
+	@Override
+	public synchronized void membersUpdated(
+			Collection<HospitalityMember> members ) {
+		for ( HospitalityMember hm : members ) {
+			memberRemoved( hm.getMemberNumber() );
+
+			String[] keys = keys( hm );
+			byLast.put( keys[0], hm.getMemberNumber() );
+			byFirst.put( keys[1], hm.getMemberNumber() );
+			keysOf.put( hm.getMemberNumber(), keys );
+		}
+	}
+
+	@Override
+	public synchronized void memberRemoved( Integer number ) {
+		String[] keys = keysOf.remove( number );
+
+		if ( keys != null ) {
+			byLast.remove( keys[0] );
+			byFirst.remove( keys[1] );
+		}
+	}
+
+	@Override
+	public void membersScheduled( Collection<HospitalityMember> members,
+			Date date ) {
+		// names don't change
+	}
+
+	// Private methods
+
+	/**
+	 * @return the part of the map whose keys start with the prefix
+	 */
+	private static NavigableMap<String, Integer> startingWith(
+			ConcurrentNavigableMap<String, Integer> map, String prefix ) {
+		return map.subMap( prefix, true, prefix + AFTER_ALL, false );
+	}
+
+	/**
+	 * Walk the keys found, keeping them all.
+	 */
+	private static void collect( NavigableMap<String, Integer> range,
+			int limit, List<Integer> found ) {
+		for ( Integer number : range.values() ) {
+			if ( found.size() >= limit ) {
+				return;
+			}
+
+			found.add( number );
+		}
+	}
+
+	/**
+	 * Find the keys of {@link #byLast} whose last name starts with
+	 * <code>last</code> and whose first name starts with <code>first</code>.
+	 * For each last name, the first names are a range of their own, so there
+	 * is one seek for the range and one to skip to the next last name, and
+	 * names that don't match aren't walked over.
+	 */
+	private static void collect( ConcurrentNavigableMap<String, Integer> byLast,
+			String last, String first, int limit, List<Integer> found ) {
+		String key = byLast.ceilingKey( last );
+
+		while ( key != null && key.startsWith( last ) && found.size() < limit ) {
+			String lastName = key.substring( 0, key.indexOf( SEPARATOR ) );
+			collect( startingWith( byLast, lastName + SEPARATOR + first ),
+					limit, found );
+			key = byLast.ceilingKey( lastName + NEXT_NAME );
+		}
+	}
+
+	/**
+	 * @return the keys of a member in {@link #byLast} and {@link #byFirst}.
+	 *         Each ends with the member number, padded so that keys sort in
+	 *         number order.
+	 */
+	private static String[] keys( HospitalityMember hm ) {
+		String digits = Integer.toString( hm.getMemberNumber() );
+		StringBuilder sb = new StringBuilder( NUMBER_DIGITS );
+
+		for ( int i = digits.length(); i < NUMBER_DIGITS; i++ ) {
+			sb.append( '0' );
+		}
+
+		String number = sb.append( digits ).toString();
+		String first = fold( hm.getFirstName() );
+		return new String[] {
+				fold( hm.getLastName() ) + SEPARATOR + first + SEPARATOR
+						+ number, first + SEPARATOR + number };
+	}
+
+	/**
+	 * @return a map of the keys to the member numbers they end with
+	 */
+	private static ConcurrentNavigableMap<String, Integer> sorted(
+			String[] keys ) {
+		ConcurrentNavigableMap<String, Integer> map =
+				new ConcurrentSkipListMap<String, Integer>();
+		Arrays.sort( keys );
+
+		for ( String key : keys ) {
+			map.put( key, Integer.valueOf( key.substring( key.length()
+					- NUMBER_DIGITS ) ) );
+		}
+
+		return map;
+	}
+
+}
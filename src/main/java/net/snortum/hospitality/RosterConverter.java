@@ -0,0 +1,119 @@
+package net.snortum.hospitality;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Converts a data file between the tab separated text format and the binary
+ * format of {@link BinaryRosterFormat}. The format of the input file is found
+ * from its header and the output is written in the other format, so a binary
+ * roster can always be brought back into a spreadsheet.
+ *
+ * <pre>
+ * java net.snortum.hospitality.RosterConverter input output
+ * </pre>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public class RosterConverter {
+
+	/**
+	 * Main - convert one file.
+	 *
+	 * @param args
+	 *            - input file name, output file name
+	 */
+	public static void main( String[] args ) {
+		if ( args.length != 2 ) {
+			System.err.println( "Usage: RosterConverter input output" );
+			System.exit( 2 );
+		}
+
+		try {
+			boolean toBinary = convert( new File( args[0] ), new File( args[1] ) );
+			System.out.println( "Wrote " + args[1] + " in "
+					+ ( toBinary ? "binary" : "text" ) + " format" );
+		}
+		catch ( IOException e ) {
+			System.err.println( "Cannot convert " + args[0] + ": "
+					+ e.getMessage() );
+			System.exit( 1 );
+		}
+	}
+
+	/**
+	 * Convert a file to the other format.
+	 *
+	 * @param input
+	 *            - text or binary data file
+	 * @param output
+	 *            - file to write, replaced if it exists
+	 * @return true if the output is binary, false if it is text
+	 * @throws IOException
+	 */
+	public static boolean convert( File input, File output )
+			throws IOException {
+		Charset charset = Charset.defaultCharset();
+		FileInputStream fis = new FileInputStream( input );
+		TreeMap<Integer, HospitalityMember> tree;
+		boolean toBinary;
+
+		try {
+			FileChannel channel = fis.getChannel();
+			toBinary = !BinaryRosterFormat.hasMagic( channel );
+
+			if ( toBinary ) {
+				tree = readText( channel, charset );
+			}
+			else {
+				tree = BinaryRosterFormat.read( channel );
+			}
+		}
+		finally {
+			fis.close();
+		}
+
+		SnapshotWriter writer = new SnapshotWriter( output, charset );
+
+		if ( toBinary ) {
+			writer.writeBuffer( BinaryRosterFormat.encode( tree.values() ) );
+		}
+		else {
+			writer.writeMembers( tree.values() );
+		}
+
+		return toBinary;
+	}
+
+	/**
+	 * Read a text file, reporting bad lines on standard error.
+	 */
+	private static TreeMap<Integer, HospitalityMember> readText(
+			FileChannel channel, Charset charset ) throws IOException {
+		TreeMap<Integer, HospitalityMember> tree =
+				new TreeMap<Integer, HospitalityMember>();
+		Map<Integer, Integer> schedWithHash = new HashMap<Integer, Integer>();
+		List<String> badLines = new ArrayList<String>();
+
+		HospitalityMembersFile.readText( channel, charset, tree,
+				schedWithHash, badLines );
+		HospitalityMembersFile.linkScheduleWith( tree, schedWithHash );
+
+		for ( String line : badLines ) {
+			System.err.println( "Bad record format, skipped: " + line );
+		}
+
+		return tree;
+	}
+
+}
@@ -6,18 +6,12 @@ import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
@@ -32,6 +26,8 @@ import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 
 /**
  * <p>
@@ -52,6 +48,12 @@ import javax.swing.KeyStroke;
  * You can press Select again if you want to schedule five more members.
  * </p>
  * 
+ * <p>
+ * If another session scheduled one of the selected members first, that member
+ * is replaced by the next oldest and the team is scheduled again. You are told
+ * who was replaced.
+ * </p>
+ * 
  * @author Knute Snortum, (c) copyright 2011-2013
  * @version 1.1
  */
@@ -70,11 +72,18 @@ public class Schedule {
 			checkSelected4, checkSelected5;
 	private JFormattedTextField textUpdateDate;
 
+	// Constants
+	private final static String TITLE = "Schedule Hospitality Members";
+	private final static int CANDIDATE_WINDOW = 100;
+	private final static int SCHEDULE_TRIES = 3;
+
 	// Data globals
-	private HospitalityMember[] hma;
-	private HashMap<Integer, HospitalityMember> hmMap;
+	private CandidateIndex candidates;
+	private MemberSelector selector;
 	private ArrayList<HospitalityMember> selectedMembers;
-	private TreeMap<Integer, HospitalityMember> tree;
+	private MemberRepository repository;
+	private MemberWriter writer;
+	private boolean scheduling = false;
 
 	/**
 	 * Main - run the GUI.
@@ -83,16 +92,22 @@ public class Schedule {
 	 *            - not used
 	 */
 	public static void main( String[] args ) {
-		Schedule gui = new Schedule();
-		gui.start();
+		SwingUtilities.invokeLater( new Runnable() {
+			@Override
+			public void run() {
+				Schedule gui = new Schedule();
+				gui.start();
+			}
+		} );
 	}
 
 	/**
-	 * Create the GUI frame, menus, open file, load records, select and display
-	 * members
+	 * Create the GUI frame and menus and show them, then open the file, load
+	 * records, select and display members on a background thread. The window
+	 * is disabled until they are shown.
 	 */
 	private void start() {
-		frame = new JFrame( "Schedule Hospitality Members" );
+		frame = new JFrame( TITLE + " - Loading..." );
 		frame.setDefaultCloseOperation( JFrame.EXIT_ON_CLOSE );
 		frame.setLocation( 100, 100 );
 		contentPane = (JPanel) frame.getContentPane();
@@ -100,15 +115,59 @@ public class Schedule {
 
 		makeMenus();
 		makeContent();
-		HospitalityMembersFile.openFile( frame );
-		tree = HospitalityMembersFile.loadRecords( frame );
-		sortRecords();
-		selectedMembers = new ArrayList<HospitalityMember>();
-		selectMembers();
-		displayMembers();
+		Utility.setEnabledAll( contentPane, false );
+		Utility.setEnabledAll( frame.getJMenuBar(), false );
 
 		frame.pack();
 		frame.setVisible( true );
+
+		new SwingWorker<List<HospitalityMember>, Void>() {
+			private MemberRepository opened;
+			private CandidateIndex index;
+			private MemberSelector opener;
+
+			@Override
+			protected List<HospitalityMember> doInBackground() {
+				opened = MemberRepositories.open( frame );
+				index = new CandidateIndex( opened, CANDIDATE_WINDOW );
+
+				// the index is only used on the event thread
+				opened.addMemberListener( MemberListeners.onEventThread( index ) );
+				opener = new MemberSelector( index );
+				List<HospitalityMember> selected =
+						new ArrayList<HospitalityMember>();
+				opener.select( selected );
+				return selected;
+			}
+
+			@Override
+			protected void done() {
+				frame.setTitle( TITLE );
+
+				try {
+					selectedMembers = new ArrayList<HospitalityMember>( get() );
+				}
+				catch ( InterruptedException e ) {
+					return;
+				}
+				catch ( ExecutionException e ) {
+					Utility.showMessage( frame, "Loading members: "
+							+ e.getCause(), "Load Error",
+							JOptionPane.ERROR_MESSAGE );
+					return;
+				}
+
+				repository = opened;
+				writer = new MemberWriter( frame, repository );
+				candidates = index;
+				selector = opener;
+				MemberGroups.reportProblems( frame,
+						candidates.takeGroupProblems() );
+				displayMembers();
+				Utility.setEnabledAll( contentPane, true );
+				Utility.setEnabledAll( frame.getJMenuBar(), true );
+			}
+		}.execute();
 	}
 
 	/**
@@ -430,36 +489,13 @@ public class Schedule {
 		panel.add( label );
 
 		textUpdateDate =
-				new JFormattedTextField( new SimpleDateFormat(
-						HospitalityMember.DATE_FORMAT ) );
+				new JFormattedTextField( DayFormat.FORMATTER.toFormat() );
 		textUpdateDate.setPreferredSize( new Dimension( 70, 20 ) );
 		panel.add( textUpdateDate );
 
 		return panel;
 	}
 
-	/**
-	 * Sort members by date.
-	 * 
-	 * <ul>
-	 * <li><code>hmal</code> = temp variable to create <code>hma</code></li>
-	 * <li><code>hma</code> = sorted members</li>
-	 * <li><code>hmMap</code> = keyed members to update selected boolean</li>
-	 * </ul>
-	 */
-	private void sortRecords() {
-		Collection<HospitalityMember> hmal = tree.values();
-		hma = new HospitalityMember[hmal.size()];
-		hma = hmal.toArray( hma );
-		Arrays.sort( hma, new DateSort() );
-		hmal = null;
-		hmMap = new HashMap<Integer, HospitalityMember>();
-
-		for ( HospitalityMember i : hma ) {
-			hmMap.put( i.getMemberNumber(), i );
-		}
-	}
-
 	/**
 	 * Select from file menu. Select and display members.
 	 */
@@ -467,6 +503,11 @@ public class Schedule {
 
 		@Override
 		public void actionPerformed( ActionEvent arg0 ) {
+			// the team being saved can't change
+			if ( scheduling ) {
+				return;
+			}
+
 			selectMembers();
 			displayMembers();
 		}
@@ -477,156 +518,48 @@ public class Schedule {
 	 * Select members, helper method for {@link SelectListener#actionPerformed}
 	 */
 	private void selectMembers() {
-		int hmIdx = 0;
-		boolean isTeamLeaderSelected = false;
-
-		// Get five members but leave a space for the team leader
-		while ( selectedMembers.size() < 5
-				|| ( isTeamLeaderSelected == false && selectedMembers.size() < 4 ) ) {
-			HospitalityMember nominee = hma[hmIdx++];
-
-			if ( nominee.isLookedAt() ) {
-				continue;
-			}
-
-			nominee.setLookedAt( true );
-
-			if ( isTeamLeaderSelected && nominee.isTeamLeader() ) {
-				continue;
-			}
-
-			boolean alreadySelected = false;
+		selector.select( selectedMembers );
+		MemberGroups.reportProblems( frame, candidates.takeGroupProblems() );
+	}
 
-			for ( HospitalityMember hm : selectedMembers ) {
-				if ( hm == nominee ) {
-					alreadySelected = true;
-					break;
-				}
-			}
+	/**
+	 * Take members another session scheduled first off the team, with the
+	 * members they schedule with, and read them again. Helper method for
+	 * {@link ScheduleListener#actionPerformed}
+	 */
+	private void dropConflicts( List<Integer> conflicts ) {
+		for ( Integer number : conflicts ) {
+			HospitalityMember hm = candidates.get( number );
 
-			if ( alreadySelected ) {
+			if ( hm == null ) {
 				continue;
 			}
 
-			if ( nominee.isTeamLeader() ) {
-				isTeamLeaderSelected = true;
-			}
-
-			// check for sched with members
-			if ( nominee.getScheduleWith() == null ) {
-				selectedMembers.add( nominee );
-				nominee.setReason( "Oldest scheduled date" );
-			}
-			else {
-				selectSchedMembers( isTeamLeaderSelected, nominee );
-			}
-
-			// any more members?
-			if ( hmIdx >= hma.length ) {
-				break;
-			}
-		}
-
-		selectTeamLeader( hmIdx, isTeamLeaderSelected );
-	}
-
-	/**
-	 * Select a team leader, helper for {@link #selectedMembers}.
-	 * 
-	 * @param hmIdx
-	 *            - index to member array
-	 * @param isTeamLeaderSelected
-	 */
-	private void selectTeamLeader( int hmIdx, boolean isTeamLeaderSelected ) {
-		int saveHmIdx = hmIdx;
-
-		while ( hmIdx < hma.length && isTeamLeaderSelected == false ) {
-			if ( !hma[hmIdx].isLookedAt() ) {
-				if ( hma[hmIdx].isTeamLeader() ) {
-					selectedMembers.add( hma[hmIdx] );
-					hma[hmIdx].setReason( "Added team leader" );
-					hma[hmIdx].setLookedAt( true );
-					isTeamLeaderSelected = true;
-					break;
+			for ( HospitalityMember member : candidates.groupOf( hm )
+					.getMembers() ) {
+				if ( selectedMembers.remove( member )
+						&& !conflicts.contains( member.getMemberNumber() ) ) {
+					candidates.restore( member );
 				}
 			}
-
-			hmIdx++;
 		}
 
-		// if no team leader found, add anyone
-		if ( isTeamLeaderSelected == false ) {
-			hmIdx = saveHmIdx;
-
-			while ( hmIdx < hma.length ) {
-				if ( !hma[hmIdx].isLookedAt() ) {
-					if ( hma[hmIdx].getScheduleWith() == null ) {
-						selectedMembers.add( hma[hmIdx] );
-						hma[hmIdx].setReason( "No team leaders found" );
-						hma[hmIdx].setLookedAt( true );
-						break;
-					}
-				}
-
-				hmIdx++;
-			}
+		for ( Integer number : conflicts ) {
+			candidates.reload( number );
 		}
 	}
 
 	/**
-	 * Select schedule members, helper for {@link #selectedMembers}.
-	 * 
-	 * @param isTeamLeaderSelected
-	 * @param nominee
+	 * @return the member numbers of some members
 	 */
-	private void selectSchedMembers( boolean isTeamLeaderSelected,
-			HospitalityMember nominee ) {
-		while ( selectedMembers.size() < 4
-				|| ( isTeamLeaderSelected == false && selectedMembers.size() < 3 ) ) {
-
-			// add nominee
-			selectedMembers.add( nominee );
-			nominee.setReason( "Oldest scheduled date" );
-
-			// should we add the sched with member?
-			HospitalityMember schedWith = nominee.getScheduleWith();
-			boolean moreToSchedule = true;
-			boolean schedWithFound = false;
-
-			// check selected members first
-			do {
-				for ( HospitalityMember j : selectedMembers )
-					if ( schedWith.equals( j ) ) {
-						schedWithFound = true;
-						break;
-					}
-
-				if ( schedWithFound == true ) {
-					break;
-				}
-
-				// add sched with member
-				selectedMembers.add( schedWith );
-				schedWith.setReason( "Schedule with "
-						+ nominee.getMemberNumber().toString() );
-				schedWith.setLookedAt( true );
+	private static List<Integer> numbers( List<HospitalityMember> members ) {
+		List<Integer> numbers = new ArrayList<Integer>();
 
-				// Check this member for sched with
-				if ( schedWith.getScheduleWith() == null ) {
-					moreToSchedule = false;
-					break;
-				}
-
-				schedWith = schedWith.getScheduleWith();
-			}
-			while ( selectedMembers.size() < 4
-					|| ( isTeamLeaderSelected == false && selectedMembers
-							.size() < 3 ) );
-
-			if ( schedWithFound || !moreToSchedule ) {
-				break;
-			}
+		for ( HospitalityMember hm : members ) {
+			numbers.add( hm.getMemberNumber() );
 		}
+
+		return numbers;
 	}
 
 	/**
@@ -642,8 +575,8 @@ public class Schedule {
 			hm = it.next();
 			labelMember1.setText( hm.displayFullName() );
 			labelMemberNumber1.setText( hm.getMemberNumber().toString() );
-			labelReason1.setText( hm.getReason() );
-			checkSelected1.setSelected( hm.isLookedAt() );
+			labelReason1.setText( selector.reasonFor( hm ) );
+			checkSelected1.setSelected( true );
 		}
 		else {
 			labelMember1.setText( "" );
@@ -657,8 +590,8 @@ public class Schedule {
 			hm = it.next();
 			labelMember2.setText( hm.displayFullName() );
 			labelMemberNumber2.setText( hm.getMemberNumber().toString() );
-			labelReason2.setText( hm.getReason() );
-			checkSelected2.setSelected( hm.isLookedAt() );
+			labelReason2.setText( selector.reasonFor( hm ) );
+			checkSelected2.setSelected( true );
 		}
 		else {
 			labelMember2.setText( "" );
@@ -672,8 +605,8 @@ public class Schedule {
 			hm = it.next();
 			labelMember3.setText( hm.displayFullName() );
 			labelMemberNumber3.setText( hm.getMemberNumber().toString() );
-			labelReason3.setText( hm.getReason() );
-			checkSelected3.setSelected( hm.isLookedAt() );
+			labelReason3.setText( selector.reasonFor( hm ) );
+			checkSelected3.setSelected( true );
 		}
 		else {
 			labelMember3.setText( "" );
@@ -687,8 +620,8 @@ public class Schedule {
 			hm = it.next();
 			labelMember4.setText( hm.displayFullName() );
 			labelMemberNumber4.setText( hm.getMemberNumber().toString() );
-			labelReason4.setText( hm.getReason() );
-			checkSelected4.setSelected( hm.isLookedAt() );
+			labelReason4.setText( selector.reasonFor( hm ) );
+			checkSelected4.setSelected( true );
 		}
 		else {
 			labelMember4.setText( "" );
@@ -702,8 +635,8 @@ public class Schedule {
 			hm = it.next();
 			labelMember5.setText( hm.displayFullName() );
 			labelMemberNumber5.setText( hm.getMemberNumber().toString() );
-			labelReason5.setText( hm.getReason() );
-			checkSelected5.setSelected( hm.isLookedAt() );
+			labelReason5.setText( selector.reasonFor( hm ) );
+			checkSelected5.setSelected( true );
 		}
 		else {
 			labelMember5.setText( "" );
@@ -744,7 +677,7 @@ public class Schedule {
 
 			if ( !memberNumber.isEmpty() ) {
 				HospitalityMember hm =
-						hmMap.get( new Integer( Integer.parseInt( memberNumber ) ) );
+						candidates.get( new Integer( Integer.parseInt( memberNumber ) ) );
 
 				if ( !thisCheckBox.isSelected() ) {
 					for ( HospitalityMember i : selectedMembers ) {
@@ -762,20 +695,24 @@ public class Schedule {
 	}
 
 	/**
-	 * Schedule all selected members and write back to file.
+	 * Schedule all selected members and save the dates. The dates are saved in
+	 * the background; a second press while they are being saved is ignored.
 	 */
 	private class ScheduleListener implements ActionListener {
 
 		@Override
 		public void actionPerformed( ActionEvent arg0 ) {
+			if ( scheduling ) {
+				return;
+			}
 
 			// update date
 			Date updateDate;
-			SimpleDateFormat formatter =
-					new SimpleDateFormat( HospitalityMember.DATE_FORMAT );
 
 			try {
-				updateDate = formatter.parse( textUpdateDate.getText() );
+				updateDate =
+						MemberRecord.toDate( DayFormat.parse( textUpdateDate
+								.getText() ) );
 			}
 			catch ( ParseException e ) {
 				//@formatter:off
@@ -788,50 +725,73 @@ public class Schedule {
 				return;
 			}
 
-			for ( HospitalityMember i : selectedMembers ) {
-				i.setLastScheduled( updateDate );
-			}
+			scheduling = true;
+			new ScheduleDone( updateDate ).write();
+		}
 
-			// write back to file
-			BufferedWriter bw;
-			try {
-				bw = new BufferedWriter( new FileWriter( HospitalityMembersFile.getFileName() ) );
-			}
-			catch ( IOException e1 ) {
-				//@formatter:off
-				JOptionPane.showMessageDialog( 
-						frame, 
-						"Cannot open file \"" + HospitalityMembersFile.getFileName() + "\" for writing", 
-						"File Open Error",
-						JOptionPane.ERROR_MESSAGE );
-				//formatter:on
-				return;
-			}
+	}
 
-			// TODO this is bad IO, turn selectedMembers into hash?
-			for ( HospitalityMember myHM : tree.values() ) {
+	/**
+	 * One batched write for all selected members, replacing members another
+	 * session scheduled first and writing again, up to
+	 * {@link #SCHEDULE_TRIES} times. Helper class for
+	 * {@link ScheduleListener#actionPerformed}
+	 */
+	private class ScheduleDone implements MemberWriter.Done {
+		private final Date updateDate;
+		private final List<Integer> before = numbers( selectedMembers );
+		private final List<Integer> replaced = new ArrayList<Integer>();
+		private int tries = 0;
+
+		ScheduleDone( Date updateDate ) {
+			this.updateDate = updateDate;
+		}
 
-				// is this an updated record?
-				for ( HospitalityMember i : selectedMembers ) {
-					if ( myHM.getMemberNumber() == i.getMemberNumber() ) {
-						myHM = i;
-						break;
-					}
-				}
+		void write() {
+			tries++;
+			writer.recordScheduled( new ArrayList<HospitalityMember>(
+					selectedMembers ), updateDate, this );
+		}
 
-				try {
-					bw.write( myHM.toFile() );
-				}
-				catch ( IOException e2 ) {
-					e2.printStackTrace();
-					System.exit( 1 );
+		@Override
+		public void written( List<Integer> conflicts ) {
+			if ( !conflicts.isEmpty() ) {
+				replaced.addAll( conflicts );
+				dropConflicts( conflicts );
+				selectMembers();
+
+				if ( tries == SCHEDULE_TRIES ) {
+					scheduling = false;
+					displayMembers();
+					//@formatter:off
+					JOptionPane.showMessageDialog( 
+							frame, 
+							"Members " + replaced + " were scheduled by another "
+							+ "session.\nPlease check the team and schedule again", 
+							"Schedule Conflict",
+							JOptionPane.WARNING_MESSAGE );
+					//@formatter:on
+					return;
 				}
-			}
 
-			try {
-				bw.close();
+				write();
+				return;
 			}
-			catch ( IOException e3 ) {
+
+			scheduling = false;
+
+			if ( !replaced.isEmpty() ) {
+				List<Integer> added = numbers( selectedMembers );
+				added.removeAll( before );
+
+				//@formatter:off
+				JOptionPane.showMessageDialog( 
+						frame, 
+						"Members " + replaced + " were scheduled by another "
+						+ "session and were replaced by " + added, 
+						"Schedule Conflict",
+						JOptionPane.INFORMATION_MESSAGE );
+				//@formatter:on
 			}
 
 			// clear screen
@@ -0,0 +1,210 @@
+package net.snortum.hospitality;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Plans many service dates in one pass, without the GUI. Each date gets a team
+ * chosen by the same rules as the Schedule window (see {@link MemberSelector}).
+ * As each date is planned the members chosen move to that date in a working
+ * copy of the candidate index, so the next date picks the members who are now
+ * oldest. Nothing is saved until {@link #commit(SortedMap)}, which writes the
+ * whole plan in one batch. If another session scheduled any of the members
+ * since they were read, nothing is written; see {@link MemberRepository}.
+ *
+ * <p>
+ * For a large roster, the engine can plan from a {@link MemberTable} copied
+ * from the repository, so the oldest members are found on the table's columns
+ * and the plan is still written to the repository.
+ * </p>
+ *
+ * <pre>
+ * ScheduleEngine engine = new ScheduleEngine( repository );
+ * SortedMap&lt;Date, List&lt;HospitalityMember&gt;&gt; plan =
+ * 		engine.plan( ScheduleEngine.weekly( firstDate, 52 ) );
+ * engine.commit( plan );
+ * </pre>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public class ScheduleEngine {
+
+	// Constants
+	private final static int CANDIDATE_WINDOW = 100;
+
+	// Fields
+	private final MemberRepository repository;
+	private final CandidateIndex candidates;
+	private final MemberSelector selector;
+
+	/**
+	 * Main - plan weeks of service dates and print them.
+	 *
+	 * @param args
+	 *            - the first date (MM/dd/yyyy), the number of weeks and
+	 *            optionally <code>save</code> to record the plan
+	 */
+	public static void main( String[] args ) {
+		if ( args.length < 2 ) {
+			System.err.println( "Usage: ScheduleEngine first-date weeks [save]" );
+			System.exit( 1 );
+		}
+
+		Date first;
+		int weeks;
+
+		try {
+			first = MemberRecord.toDate( DayFormat.parse( args[0] ) );
+			weeks = Integer.parseInt( args[1] );
+		}
+		catch ( ParseException e ) {
+			System.err.println( "Bad first date: " + args[0] );
+			System.exit( 1 );
+			return;
+		}
+		catch ( NumberFormatException e ) {
+			System.err.println( "Bad number of weeks: " + args[1] );
+			System.exit( 1 );
+			return;
+		}
+
+		ScheduleEngine engine =
+				new ScheduleEngine( MemberRepositories.open( null ) );
+		SortedMap<Date, List<HospitalityMember>> plan =
+				engine.plan( weekly( first, weeks ) );
+
+		for ( String problem : engine.takeProblems() ) {
+			System.err.println( problem );
+		}
+
+		for ( Map.Entry<Date, List<HospitalityMember>> entry : plan.entrySet() ) {
+			System.out.println( DayFormat.format( MemberRecord.toDay( entry
+					.getKey() ) ) );
+
+			for ( HospitalityMember hm : entry.getValue() ) {
+				System.out.println( "\t" + hm.getMemberNumber() + "\t"
+						+ hm.displayFullName()
+						+ ( hm.isTeamLeader() ? "\t(team leader)" : "" ) );
+			}
+		}
+
+		if ( args.length > 2 && args[2].equals( "save" ) ) {
+			List<Integer> conflicts = engine.commit( plan );
+
+			if ( !conflicts.isEmpty() ) {
+				System.err.println( "Not saved, members " + conflicts
+						+ " were changed by someone else" );
+				System.exit( 1 );
+			}
+		}
+	}
+
+	/**
+	 * Read the first members from the repository.
+	 *
+	 * @param repository
+	 *            - where the members are
+	 */
+	public ScheduleEngine( MemberRepository repository ) {
+		this( repository, repository );
+	}
+
+	/**
+	 * Plan from a table of the repository's members.
+	 *
+	 * @param repository
+	 *            - where the plan is written
+	 * @param table
+	 *            - the members to plan from, as read from the repository
+	 */
+	public ScheduleEngine( MemberRepository repository, MemberTable table ) {
+		this( repository, new TableMemberRepository( table ) );
+	}
+
+	/**
+	 * @param repository
+	 *            - where the plan is written
+	 * @param source
+	 *            - where the members are read
+	 */
+	private ScheduleEngine( MemberRepository repository,
+			MemberRepository source ) {
+		this.repository = repository;
+		this.candidates = new CandidateIndex( source, CANDIDATE_WINDOW );
+		this.selector = new MemberSelector( candidates );
+	}
+
+	/**
+	 * Make dates a week apart, at midnight.
+	 *
+	 * @param first
+	 *            - the first date
+	 * @param count
+	 *            - how many dates
+	 * @return the dates, in order
+	 */
+	public static List<Date> weekly( Date first, int count ) {
+		List<Date> dates = new ArrayList<Date>( count );
+		int day = MemberRecord.toDay( first );
+
+		for ( int i = 0; i < count; i++ ) {
+			dates.add( MemberRecord.toDate( day + 7 * i ) );
+		}
+
+		return dates;
+	}
+
+	/**
+	 * Choose a team for each date, earliest date first. Planning again carries
+	 * on from the dates already planned, even if they weren't committed.
+	 *
+	 * @param dates
+	 *            - the service dates
+	 * @return date => team, in date order
+	 */
+	public SortedMap<Date, List<HospitalityMember>> plan( List<Date> dates ) {
+		List<Date> sorted = new ArrayList<Date>( dates );
+		Collections.sort( sorted );
+		SortedMap<Date, List<HospitalityMember>> plan =
+				new TreeMap<Date, List<HospitalityMember>>();
+
+		for ( Date date : sorted ) {
+			List<HospitalityMember> team = new ArrayList<HospitalityMember>();
+			selector.select( team );
+			plan.put( date, team );
+
+			// only the working copy changes until the plan is committed
+			candidates.membersScheduled( team, date );
+		}
+
+		return plan;
+	}
+
+	/**
+	 * Record the last scheduled dates of a plan in one write.
+	 *
+	 * @param plan
+	 *            - from {@link #plan(List)}
+	 * @return the numbers of members scheduled by someone else since they
+	 *         were read, empty if the plan was written
+	 */
+	public List<Integer> commit( SortedMap<Date, List<HospitalityMember>> plan ) {
+		return repository.recordSchedule( plan );
+	}
+
+	/**
+	 * @return problems with "schedule with" found since the last call
+	 */
+	public List<String> takeProblems() {
+		return candidates.takeGroupProblems();
+	}
+
+}
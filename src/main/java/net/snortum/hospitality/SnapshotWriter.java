@@ -0,0 +1,249 @@
+package net.snortum.hospitality;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+/**
+ * Writes a complete data file so that a crash can never leave it half
+ * written. Records are encoded into one large direct buffer and written to a
+ * temporary file in the same directory, which is forced to disk and then
+ * moved over the data file in one step. Either the old file or the new file
+ * survives, never a mix.
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class SnapshotWriter {
+
+	// Constants
+	private final static int BUFFER_SIZE = 1024 * 1024;
+	private final static String TEMP_SUFFIX = ".tmp";
+
+	// Fields
+	private final Path target;
+	private final Path temp;
+	private final CharsetEncoder encoder;
+	private ByteBuffer buf;
+	private FileChannel channel;
+
+	/**
+	 * Create a writer for a data file.
+	 *
+	 * @param file
+	 *            - the data file to replace
+	 * @param charset
+	 *            - the character set of the data file
+	 */
+	public SnapshotWriter( File file, Charset charset ) {
+		this.target = file.getAbsoluteFile().toPath();
+		this.temp = target.resolveSibling( target.getFileName() + TEMP_SUFFIX );
+		this.encoder = charset.newEncoder();
+	}
+
+	// Public methods
+
+	/**
+	 * Write members in file format.
+	 *
+	 * @param members
+	 *            - the members, in the order to write them
+	 * @throws IOException
+	 *             if the file can't be written; the data file is unchanged
+	 */
+	public synchronized void writeMembers( Collection<HospitalityMember> members )
+			throws IOException {
+		open();
+		try {
+			for ( HospitalityMember hm : members ) {
+				put( hm.toFile() );
+			}
+			commit();
+		}
+		finally {
+			abort();
+		}
+	}
+
+	/**
+	 * Write records that are already in file format.
+	 *
+	 * @param records
+	 *            - one line per member, new lines included
+	 * @throws IOException
+	 *             if the file can't be written; the data file is unchanged
+	 */
+	public synchronized void writeRecords( Collection<String> records ) throws IOException {
+		open();
+		try {
+			for ( String record : records ) {
+				put( record );
+			}
+			commit();
+		}
+		finally {
+			abort();
+		}
+	}
+
+	/**
+	 * Write a whole file that is already encoded, such as a binary roster.
+	 *
+	 * @param data
+	 *            - the file contents, from position to limit
+	 * @throws IOException
+	 *             if the file can't be written; the data file is unchanged
+	 */
+	public synchronized void writeBuffer( ByteBuffer data ) throws IOException {
+		open();
+		try {
+			while ( data.hasRemaining() ) {
+				channel.write( data );
+			}
+			commit();
+		}
+		finally {
+			abort();
+		}
+	}
+
+	// Private methods
+
+	/**
+	 * Open the temporary file, replacing any left by an earlier crash.
+	 */
+	private void open() throws IOException {
+		if ( buf == null ) {
+			buf = ByteBuffer.allocateDirect( BUFFER_SIZE );
+		}
+
+		buf.clear();
+		encoder.reset();
+		channel =
+				FileChannel.open( temp, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING,
+						StandardOpenOption.WRITE );
+	}
+
+	/**
+	 * Encode text into the buffer, writing the buffer out whenever it fills.
+	 */
+	private void put( CharSequence text ) throws IOException {
+		CharBuffer chars = CharBuffer.wrap( text );
+
+		while ( true ) {
+			CoderResult result = encoder.encode( chars, buf, false );
+
+			if ( result.isUnderflow() ) {
+				return;
+			}
+
+			if ( result.isOverflow() ) {
+				flush();
+			}
+			else {
+				throw new CharacterCodingException();
+			}
+		}
+	}
+
+	/**
+	 * Write out whatever is in the buffer.
+	 */
+	private void flush() throws IOException {
+		buf.flip();
+		while ( buf.hasRemaining() ) {
+			channel.write( buf );
+		}
+		buf.clear();
+	}
+
+	/**
+	 * Force the temporary file to disk and move it over the data file.
+	 */
+	private void commit() throws IOException {
+		CharBuffer empty = CharBuffer.allocate( 0 );
+		while ( encoder.encode( empty, buf, true ).isOverflow() ) {
+			flush();
+		}
+		while ( encoder.flush( buf ).isOverflow() ) {
+			flush();
+		}
+
+		flush();
+		channel.force( true );
+		channel.close();
+		channel = null;
+
+		try {
+			Files.move( temp, target, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING );
+		}
+		catch ( AtomicMoveNotSupportedException e ) {
+			Files.move( temp, target, StandardCopyOption.REPLACE_EXISTING );
+		}
+
+		forceDirectory();
+	}
+
+	/**
+	 * Make the rename itself durable. Not every platform can open a
+	 * directory, in which case the rename is left to the file system.
+	 */
+	private void forceDirectory() {
+		Path dir = target.getParent();
+		if ( dir == null ) {
+			return;
+		}
+
+		try {
+			FileChannel dirChannel =
+					FileChannel.open( dir, StandardOpenOption.READ );
+			try {
+				dirChannel.force( true );
+			}
+			finally {
+				dirChannel.close();
+			}
+		}
+		catch ( IOException e ) {
+		}
+	}
+
+	/**
+	 * Clean up after a failed write; does nothing after a commit.
+	 */
+	private void abort() {
+		if ( channel == null ) {
+			return;
+		}
+
+		try {
+			channel.close();
+		}
+		catch ( IOException e ) {
+		}
+
+		channel = null;
+
+		try {
+			Files.deleteIfExists( temp );
+		}
+		catch ( IOException e ) {
+		}
+	}
+
+}
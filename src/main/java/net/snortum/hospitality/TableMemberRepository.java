@@ -0,0 +1,91 @@
+package net.snortum.hospitality;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A read only repository over a {@link MemberTable}, helper class for
+ * {@link ScheduleEngine}. Finding the oldest members runs on the table's
+ * columns, so planning from a large roster makes objects only for the members
+ * it looks at. Writes go to the repository the table was copied from; they
+ * are refused here.
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+class TableMemberRepository implements MemberRepository {
+
+	// Fields
+	private final MemberTable table;
+
+	/**
+	 * @param table
+	 *            - the members, not changed while this is used
+	 */
+	TableMemberRepository( MemberTable table ) {
+		this.table = table;
+	}
+
+	@Override
+	public TreeMap<Integer, HospitalityMember> findAll() {
+		return table.members();
+	}
+
+	@Override
+	public HospitalityMember findById( Integer number ) {
+		return table.get( number );
+	}
+
+	@Override
+	public List<HospitalityMember> findOldest( int limit ) {
+		return table.oldest( limit, false );
+	}
+
+	@Override
+	public List<HospitalityMember> findOldestTeamLeaders( int limit ) {
+		return table.oldest( limit, true );
+	}
+
+	@Override
+	public List<HospitalityMember> findScheduledWith( Integer number ) {
+		return table.scheduledWith( number );
+	}
+
+	@Override
+	public List<Integer> upsertAll( Collection<HospitalityMember> members ) {
+		throw new UnsupportedOperationException( "The table is read only" );
+	}
+
+	@Override
+	public void delete( Integer number ) {
+		throw new UnsupportedOperationException( "The table is read only" );
+	}
+
+	@Override
+	public List<Integer> recordScheduled(
+			Collection<HospitalityMember> members, Date date ) {
+		throw new UnsupportedOperationException( "The table is read only" );
+	}
+
+	@Override
+	public List<Integer> recordSchedule(
+			SortedMap<Date, List<HospitalityMember>> plan ) {
+		throw new UnsupportedOperationException( "The table is read only" );
+	}
+
+	/**
+	 * Nothing changes, so there is nothing to hear.
+	 */
+	@Override
+	public void addMemberListener( MemberListener listener ) {
+	}
+
+	@Override
+	public void removeMemberListener( MemberListener listener ) {
+	}
+
+}
@@ -0,0 +1,427 @@
+package net.snortum.hospitality;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+
+/**
+ * Members kept in the data file, through {@link HospitalityMembersFile}.
+ * Changes are appended to the journal rather than rewriting the file.
+ *
+ * <p>
+ * Safe to share between sessions. Reads come from a {@link MemberStore}
+ * without locking; writes take the repository's lock, one at a time, so the
+ * journal is written in the same order the changes were made. The lock is
+ * only held for the write itself, so sessions still conflict on versions
+ * rather than waiting on each other.
+ * </p>
+ *
+ * <p>
+ * Other programs may have the same file open. Versions aren't kept in the
+ * file, so each write locks the file and first reads what the others wrote
+ * since, moving those members' versions on; a write from a member another
+ * program changed is then a conflict, just as it is within one program.
+ * Once there are listeners, the file is also checked every
+ * {@link #WATCH_DELAY} ms, and the others' changes are read and passed on,
+ * as updates and removals, without waiting for a write.
+ * </p>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public class TextMemberRepository implements MemberRepository {
+
+	// Constants
+	/** How often the file is checked for other programs' changes, in ms */
+	final static long WATCH_DELAY = 2000;
+
+	// Fields
+	private final JFrame frame;
+	private final HospitalityMembersFile membersFile;
+	private volatile MemberStore store;
+	private boolean loadFailed; // guarded by this
+	private ScheduledExecutorService watcher; // guarded by this
+	private boolean closed; // guarded by this
+	private final MemberListeners listeners = new MemberListeners();
+
+	/**
+	 * Open the default data file.
+	 *
+	 * @param frame
+	 *            - JFrame in which to display the errors
+	 */
+	public TextMemberRepository( JFrame frame ) {
+		this( frame, new HospitalityMembersFile() );
+		membersFile.openFile( frame );
+	}
+
+	/**
+	 * Use a data file that is already open.
+	 *
+	 * @param frame
+	 *            - JFrame in which to display the errors, may be null
+	 * @param membersFile
+	 *            - the open data file
+	 */
+	TextMemberRepository( JFrame frame, HospitalityMembersFile membersFile ) {
+		this.frame = frame;
+		this.membersFile = membersFile;
+	}
+
+	@Override
+	public TreeMap<Integer, HospitalityMember> findAll() {
+		if ( !load() ) {
+			return null;
+		}
+
+		return store.snapshot();
+	}
+
+	@Override
+	public HospitalityMember findById( Integer number ) {
+		if ( !load() ) {
+			return null;
+		}
+
+		return store.get( number );
+	}
+
+	@Override
+	public List<HospitalityMember> findOldest( int limit ) {
+		if ( !load() ) {
+			return new ArrayList<HospitalityMember>();
+		}
+
+		return store.oldest( limit, false );
+	}
+
+	@Override
+	public List<HospitalityMember> findOldestTeamLeaders( int limit ) {
+		if ( !load() ) {
+			return new ArrayList<HospitalityMember>();
+		}
+
+		return store.oldest( limit, true );
+	}
+
+	@Override
+	public List<HospitalityMember> findScheduledWith( Integer number ) {
+		if ( !load() ) {
+			return new ArrayList<HospitalityMember>();
+		}
+
+		return store.scheduledWith( number );
+	}
+
+	@Override
+	public synchronized List<Integer> upsertAll(
+			Collection<HospitalityMember> members ) {
+		List<Integer> conflicts = new ArrayList<Integer>();
+		Set<Integer> changed = lock();
+
+		if ( changed == null ) {
+			return conflicts;
+		}
+
+		try {
+			conflicts = store.upsertAll( members );
+
+			if ( conflicts.isEmpty() ) {
+				membersFile.journalUpsert( frame, store, members );
+			}
+		}
+		finally {
+			membersFile.unlock();
+		}
+
+		fireChanged( changed );
+
+		if ( conflicts.isEmpty() ) {
+			listeners.fireUpdated( members );
+		}
+
+		return conflicts;
+	}
+
+	@Override
+	public synchronized void delete( Integer number ) {
+		Set<Integer> changed = lock();
+
+		if ( changed == null ) {
+			return;
+		}
+
+		boolean deleted;
+
+		try {
+			deleted = store.delete( number );
+
+			if ( deleted ) {
+				membersFile.journalDelete( frame, store, number );
+			}
+		}
+		finally {
+			membersFile.unlock();
+		}
+
+		fireChanged( changed );
+
+		if ( deleted ) {
+			listeners.fireRemoved( number );
+		}
+	}
+
+	@Override
+	public synchronized List<Integer> recordScheduled(
+			Collection<HospitalityMember> members, Date date ) {
+		List<Integer> conflicts = new ArrayList<Integer>();
+		Set<Integer> changed = lock();
+
+		if ( changed == null ) {
+			return conflicts;
+		}
+
+		try {
+			conflicts = store.recordScheduled( members, date );
+
+			if ( conflicts.isEmpty() ) {
+				membersFile.journalScheduled( frame, store, members, date );
+			}
+		}
+		finally {
+			membersFile.unlock();
+		}
+
+		fireChanged( changed );
+
+		if ( conflicts.isEmpty() ) {
+			listeners.fireScheduled( members, date );
+		}
+
+		return conflicts;
+	}
+
+	@Override
+	public synchronized List<Integer> recordSchedule(
+			SortedMap<Date, List<HospitalityMember>> plan ) {
+		List<Integer> conflicts = new ArrayList<Integer>();
+		Set<Integer> changed = lock();
+
+		if ( changed == null ) {
+			return conflicts;
+		}
+
+		try {
+			conflicts = store.recordSchedule( plan );
+
+			if ( conflicts.isEmpty() ) {
+				membersFile.journalSchedule( frame, store, plan );
+			}
+		}
+		finally {
+			membersFile.unlock();
+		}
+
+		fireChanged( changed );
+
+		if ( conflicts.isEmpty() ) {
+			for ( Map.Entry<Date, List<HospitalityMember>> entry : plan
+					.entrySet() ) {
+				listeners.fireScheduled( entry.getValue(), entry.getKey() );
+			}
+		}
+
+		return conflicts;
+	}
+
+	@Override
+	public void addMemberListener( MemberListener listener ) {
+		listeners.add( listener );
+		watch();
+	}
+
+	@Override
+	public void removeMemberListener( MemberListener listener ) {
+		listeners.remove( listener );
+	}
+
+	/**
+	 * Stop checking the data file for other programs' changes and let go of
+	 * it, once the repository is no longer used, helper method for
+	 * {@link MultiSiteScheduler}.
+	 */
+	synchronized void close() {
+		closed = true;
+
+		if ( watcher != null ) {
+			watcher.shutdown();
+			watcher = null;
+		}
+
+		membersFile.close();
+	}
+
+	/**
+	 * @return the members as of now in a new {@link MemberTable}, or null if
+	 *         the file couldn't be loaded, which has been reported
+	 */
+	MemberTable table() {
+		if ( !load() ) {
+			return null;
+		}
+
+		return store.table();
+	}
+
+	/**
+	 * Lock the data file for a write and catch up with the changes other
+	 * programs made to it, so their members' versions have moved on before
+	 * this write's are checked.
+	 *
+	 * @return the numbers of the members other programs changed, or null if
+	 *         the file couldn't be loaded, locked or read, which has been
+	 *         reported. Unless null, the caller must unlock the file.
+	 */
+	private Set<Integer> lock() {
+		if ( !load() ) {
+			String message =
+					"The members couldn't be read from "
+							+ membersFile.getFileName()
+							+ "\nNothing has been changed";
+			Utility.showMessage( frame, message, "File Write Error",
+					JOptionPane.ERROR_MESSAGE );
+			return null;
+		}
+
+		if ( !membersFile.lock( frame ) ) {
+			return null;
+		}
+
+		Set<Integer> changed = membersFile.catchUp( frame, store );
+
+		if ( changed == null ) {
+			membersFile.unlock();
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Start checking the file for other programs' changes, the first time
+	 * there is someone to tell.
+	 */
+	private synchronized void watch() {
+		if ( watcher != null || closed ) {
+			return;
+		}
+
+		watcher =
+				Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+					@Override
+					public Thread newThread( Runnable r ) {
+						Thread thread = new Thread( r, "member-watcher" );
+						thread.setDaemon( true );
+						return thread;
+					}
+				} );
+		watcher.scheduleWithFixedDelay( new Runnable() {
+			@Override
+			public void run() {
+				catchUp();
+			}
+		}, WATCH_DELAY, WATCH_DELAY, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Read the changes other programs made, if there are any, and tell the
+	 * listeners. Runs on the watcher thread; after an error, which has been
+	 * reported, the file isn't checked again.
+	 */
+	private synchronized void catchUp() {
+		if ( closed || store == null || !membersFile.changedElsewhere() ) {
+			return;
+		}
+
+		Set<Integer> changed = lock();
+
+		if ( changed == null ) {
+			watcher.shutdown();
+			return;
+		}
+
+		membersFile.unlock();
+		fireChanged( changed );
+	}
+
+	/**
+	 * Tell the listeners about members other programs changed.
+	 */
+	private void fireChanged( Set<Integer> changed ) {
+		List<HospitalityMember> updated = new ArrayList<HospitalityMember>();
+
+		for ( Integer number : changed ) {
+			HospitalityMember hm = store.get( number );
+
+			if ( hm == null ) {
+				listeners.fireRemoved( number );
+			}
+			else {
+				updated.add( hm );
+			}
+		}
+
+		if ( !updated.isEmpty() ) {
+			listeners.fireUpdated( updated );
+		}
+	}
+
+	/**
+	 * Load the members from the file on first use, or when a caller needs to
+	 * know at once whether it loads. After an error there are
+	 * no members: the file isn't read again, so the error is shown once, and
+	 * nothing is written, so the members that couldn't be read are never
+	 * written over.
+	 *
+	 * @return false if the file couldn't be loaded
+	 */
+	boolean load() {
+		if ( store != null ) {
+			return true;
+		}
+
+		synchronized ( this ) {
+			if ( store != null ) {
+				return true;
+			}
+
+			if ( loadFailed ) {
+				return false;
+			}
+
+			TreeMap<Integer, HospitalityMember> tree =
+					membersFile.loadRecords( frame );
+
+			if ( tree == null ) {
+				loadFailed = true;
+				return false;
+			}
+
+			store = new MemberStore( tree );
+			return true;
+		}
+	}
+
+}
@@ -1,5 +1,15 @@
 package net.snortum.hospitality;
 
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.GraphicsEnvironment;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 
@@ -12,10 +22,50 @@ import javax.swing.UnsupportedLookAndFeelException;
  */
 class Utility {
 	
+	// Constants
+	private final static boolean ON_WINDOWS = System.getProperty( "os.name",
+			"" ).startsWith( "Windows" );
+
 	// All members are static
 	private Utility() {
 	}
 
+	/**
+	 * The whole of a file, to be read once, helper for the data file readers.
+	 * The file is memory mapped, except on Windows, where it is read into a
+	 * buffer instead: a mapping can't be let go of there until it is garbage
+	 * collected, and while it is held the file can't be replaced, so the next
+	 * snapshot couldn't be written.
+	 *
+	 * @param channel
+	 *            - open channel to the file, smaller than 2GB
+	 * @return the contents, positioned at the start; only absolute gets are
+	 *         safe from more than one thread
+	 * @throws IOException
+	 *             if the file can't be read or is too large
+	 */
+	public static ByteBuffer readFile( FileChannel channel ) throws IOException {
+		long size = channel.size();
+
+		if ( size > Integer.MAX_VALUE ) {
+			throw new IOException( "File too large: " + size );
+		}
+
+		if ( !ON_WINDOWS ) {
+			return channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate( (int) size );
+
+		while ( buf.hasRemaining()
+				&& channel.read( buf, buf.position() ) >= 0 ) {
+			// read until full or the end of the file
+		}
+
+		buf.flip();
+		return buf;
+	}
+
 	/**
 	 * Look and feel, helper for {@link Schedule#start()} and
 	 * {@link HospitalityMembers#start()}.
@@ -45,4 +95,59 @@ class Utility {
 		}
 	}
 
+	/**
+	 * Show a message dialog. Without a frame, or without a display, the
+	 * message goes to standard error instead, so programs run without the GUI
+	 * don't stop on a dialog. Off the event thread, the dialog is shown later
+	 * on the event thread and this returns at once.
+	 * 
+	 * @param frame
+	 *            - JFrame in which to display the message, may be null
+	 * @param message
+	 *            - the message
+	 * @param title
+	 *            - the dialog title
+	 * @param messageType
+	 *            - a {@link JOptionPane} message type
+	 */
+	public static void showMessage( final JFrame frame, final String message,
+			final String title, final int messageType ) {
+		if ( frame == null || GraphicsEnvironment.isHeadless() ) {
+			System.err.println( title + ": " + message );
+			return;
+		}
+
+		if ( !SwingUtilities.isEventDispatchThread() ) {
+			SwingUtilities.invokeLater( new Runnable() {
+				@Override
+				public void run() {
+					JOptionPane.showMessageDialog( frame, message, title,
+							messageType );
+				}
+			} );
+			return;
+		}
+
+		JOptionPane.showMessageDialog( frame, message, title, messageType );
+	}
+
+	/**
+	 * Enable or disable a component and everything in it, such as the
+	 * contents of a window while its members are loading.
+	 * 
+	 * @param component
+	 *            - the component
+	 * @param enabled
+	 *            - true to enable
+	 */
+	public static void setEnabledAll( Component component, boolean enabled ) {
+		component.setEnabled( enabled );
+
+		if ( component instanceof Container ) {
+			for ( Component child : ( (Container) component ).getComponents() ) {
+				setEnabledAll( child, enabled );
+			}
+		}
+	}
+
 }
@@ -0,0 +1,110 @@
+package net.snortum.hospitality;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Checks for {@link CandidateIndex}. Run with assertions on:
+ *
+ * <pre>
+ * java -ea net.snortum.hospitality.CandidateIndexTest
+ * </pre>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public class CandidateIndexTest {
+
+	/**
+	 * Main - run the checks.
+	 *
+	 * @param args
+	 *            - not used
+	 */
+	public static void main( String[] args ) {
+		retryAfterConflict();
+		System.out.println( "CandidateIndexTest passed" );
+	}
+
+	/**
+	 * Another session schedules a member this session selected. The first
+	 * write conflicts, the member is read again, and the team selected in its
+	 * place is written.
+	 */
+	static void retryAfterConflict() {
+		List<HospitalityMember> roster = new ArrayList<HospitalityMember>();
+		roster.add( new HospitalityMember( 1, "Ann", "Leader", null, true,
+				MemberRecord.NEVER ) );
+
+		for ( int number = 2; number <= 8; number++ ) {
+			roster.add( new HospitalityMember( number, "Member", "No" + number,
+					null, false, MemberRecord.NEVER ) );
+		}
+
+		MemberRepository repository = new InMemoryMemberRepository( roster );
+		CandidateIndex candidates = new CandidateIndex( repository, 100 );
+		repository.addMemberListener( candidates );
+		MemberSelector selector = new MemberSelector( candidates );
+		List<HospitalityMember> team = new ArrayList<HospitalityMember>();
+		selector.select( team );
+		check( numbers( team ).contains( 2 ), "member 2 selected: " + team );
+
+		// the other session
+		Date elsewhere = MemberRecord.toDate( 16000 );
+		List<Integer> conflicts =
+				repository.recordScheduled(
+						Collections.singletonList( repository.findById( 2 ) ),
+						elsewhere );
+		check( conflicts.isEmpty(), "other session wrote: " + conflicts );
+
+		Date date = MemberRecord.toDate( 16007 );
+		conflicts =
+				repository.recordScheduled(
+						new ArrayList<HospitalityMember>( team ), date );
+		check( conflicts.equals( Collections.singletonList( 2 ) ),
+				"member 2 conflicts: " + conflicts );
+
+		// as Schedule does
+		team.remove( candidates.get( 2 ) );
+		candidates.reload( 2 );
+		check( candidates.get( 2 ).getLastScheduledDay() == 16000,
+				"member 2 read again: " + candidates.get( 2 ) );
+		selector.select( team );
+		check( !numbers( team ).contains( 2 ), "member 2 replaced: " + team );
+		check( team.size() == MemberSelector.TEAM_SIZE, "team full: " + team );
+
+		conflicts =
+				repository.recordScheduled(
+						new ArrayList<HospitalityMember>( team ), date );
+		check( conflicts.isEmpty(), "retry written: " + conflicts );
+	}
+
+	// Private methods
+
+	/**
+	 * @return the member numbers of some members
+	 */
+	private static List<Integer> numbers( List<HospitalityMember> members ) {
+		List<Integer> numbers = new ArrayList<Integer>();
+
+		for ( HospitalityMember hm : members ) {
+			numbers.add( hm.getMemberNumber() );
+		}
+
+		return numbers;
+	}
+
+	/**
+	 * @throws AssertionError
+	 *             if the condition is false
+	 */
+	private static void check( boolean condition, String message ) {
+		if ( !condition ) {
+			throw new AssertionError( message );
+		}
+	}
+
+}
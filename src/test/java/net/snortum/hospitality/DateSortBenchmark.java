@@ -0,0 +1,108 @@
+package net.snortum.hospitality;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times the {@link DateSort} bucket sort against
+ * <code>Arrays.sort( members, new DateSort() )</code> at 1k, 100k and 1M
+ * members, and checks that both give the same order. Run with:
+ *
+ * <pre>
+ * java -Xmx1g net.snortum.hospitality.DateSortBenchmark
+ * </pre>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public class DateSortBenchmark {
+
+	// Constants
+	private final static int[] SIZES = { 1000, 100000, 1000000 };
+	private final static int WARM_UP = 5;
+	private final static int RUNS = 10;
+	private final static int FIRST_DAY = 14000; // 2008
+	private final static int DAYS = 10 * 365;
+
+	/**
+	 * Main - print the time per sort for each size.
+	 *
+	 * @param args
+	 *            - not used
+	 */
+	public static void main( String[] args ) {
+		System.out.println( "members\tcomparator ms\tbucket ms" );
+
+		for ( int size : SIZES ) {
+			HospitalityMember[] members = roster( size );
+			check( members );
+			double comparator = time( members, true );
+			double bucket = time( members, false );
+			System.out.printf( "%d\t%.3f\t%.3f%n", size, comparator, bucket );
+		}
+	}
+
+	// Private methods
+
+	/**
+	 * @return members in number order, one in ten never scheduled
+	 */
+	private static HospitalityMember[] roster( int size ) {
+		Random random = new Random( size );
+		HospitalityMember[] members = new HospitalityMember[size];
+
+		for ( int i = 0; i < size; i++ ) {
+			int day =
+					random.nextInt( 10 ) == 0 ? MemberRecord.NEVER : FIRST_DAY
+							+ random.nextInt( DAYS );
+			members[i] =
+					new HospitalityMember( i + 1, "First", "Last", null,
+							false, day );
+		}
+
+		return members;
+	}
+
+	/**
+	 * @throws AssertionError
+	 *             if the sorts disagree
+	 */
+	private static void check( HospitalityMember[] members ) {
+		HospitalityMember[] byComparator = members.clone();
+		HospitalityMember[] byBucket = members.clone();
+		Arrays.sort( byComparator, new DateSort() );
+		DateSort.sort( byBucket );
+
+		if ( !Arrays.equals( byComparator, byBucket ) ) {
+			throw new AssertionError( "Sorts disagree at " + members.length );
+		}
+	}
+
+	/**
+	 * @return the average milliseconds to sort a copy of the members
+	 */
+	private static double time( HospitalityMember[] members,
+			boolean comparator ) {
+		long total = 0;
+
+		for ( int run = 0; run < WARM_UP + RUNS; run++ ) {
+			HospitalityMember[] copy = members.clone();
+			long start = System.nanoTime();
+
+			if ( comparator ) {
+				Arrays.sort( copy, new DateSort() );
+			}
+			else {
+				DateSort.sort( copy );
+			}
+
+			if ( run >= WARM_UP ) {
+				total += System.nanoTime() - start;
+			}
+		}
+
+		return total / 1e6 / RUNS;
+	}
+
+}
@@ -0,0 +1,104 @@
+package net.snortum.hospitality;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks for {@link MemberWriter}. Run with:
+ *
+ * <pre>
+ * java -Djava.awt.headless=true net.snortum.hospitality.MemberWriterTest
+ * </pre>
+ *
+ * @author Knute Snortum, (c) copyright 2011-2013
+ * @version 1.0
+ *
+ */
+public class MemberWriterTest {
+
+	/**
+	 * Main - run the checks.
+	 *
+	 * @param args
+	 *            - not used
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a write
+	 */
+	public static void main( String[] args ) throws InterruptedException {
+		batchWithOneConflict();
+		System.out.println( "MemberWriterTest passed" );
+	}
+
+	/**
+	 * Three saves are batched. Another session changed one of them first, so
+	 * only that one is reported and the other two are written.
+	 */
+	static void batchWithOneConflict() throws InterruptedException {
+		List<HospitalityMember> roster = new ArrayList<HospitalityMember>();
+
+		for ( int number = 1; number <= 3; number++ ) {
+			roster.add( new HospitalityMember( number, "Member", "No" + number,
+					null, false, MemberRecord.NEVER ) );
+		}
+
+		MemberRepository repository = new InMemoryMemberRepository( roster );
+		List<HospitalityMember> read = new ArrayList<HospitalityMember>();
+
+		for ( int number = 1; number <= 3; number++ ) {
+			read.add( repository.findById( number ) );
+		}
+
+		// the other session
+		HospitalityMember other = repository.findById( 2 );
+		other.setLastName( "Other" );
+		check( repository.upsertAll( Collections.singletonList( other ) )
+				.isEmpty(), "other session wrote" );
+
+		final List<Integer> reported = new ArrayList<Integer>();
+		final CountDownLatch written = new CountDownLatch( 1 );
+		MemberWriter writer = new MemberWriter( null, repository );
+		MemberWriter.Done done = new MemberWriter.Done() {
+			@Override
+			public void written( List<Integer> conflicts ) {
+				reported.addAll( conflicts );
+				written.countDown();
+			}
+		};
+
+		for ( HospitalityMember hm : read ) {
+			HospitalityMember changed =
+					new HospitalityMember( hm.getMemberNumber(), "Changed",
+							hm.getLastName(), null, false, MemberRecord.NEVER );
+			writer.upsert( changed, hm, done );
+		}
+
+		writer.flush();
+		check( written.await( 10, TimeUnit.SECONDS ), "batch written" );
+		check( reported.equals( Arrays.asList( 2 ) ), "only member 2 reported: "
+				+ reported );
+		check( repository.findById( 1 ).getFirstName().equals( "Changed" ),
+				"member 1 written" );
+		check( repository.findById( 3 ).getFirstName().equals( "Changed" ),
+				"member 3 written" );
+		check( repository.findById( 2 ).getLastName().equals( "Other" ),
+				"member 2 left as the other session wrote it" );
+		writer.close();
+	}
+
+	// Private methods
+
+	/**
+	 * @throws AssertionError
+	 *             if the condition is false
+	 */
+	private static void check( boolean condition, String message ) {
+		if ( !condition ) {
+			throw new AssertionError( message );
+		}
+	}
+
+}